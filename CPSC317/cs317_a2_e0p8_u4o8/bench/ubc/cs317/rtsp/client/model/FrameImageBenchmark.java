@@ -0,0 +1,85 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+
+/**
+ * Decoding a JPEG frame and scaling it to the display size with
+ * Frame.getImage(width, height), which is what presenting a frame costs when
+ * it wasn't prepared ahead, and with the reader and image pool of a
+ * FrameDecoder, which is what preparing it costs. The frame is generated
+ * once, at the size of the course videos.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FrameImageBenchmark {
+	private static final int FRAME_WIDTH = 384;
+	private static final int FRAME_HEIGHT = 288;
+
+	@Param({ "384x288", "800x600", "1920x1080" })
+	public String displaySize;
+
+	private Frame frame;
+	private FrameDecoder decoder;
+	private int width;
+	private int height;
+
+	@Setup
+	public void setup() throws IOException {
+		String[] size = displaySize.split("x");
+		width = Integer.parseInt(size[0]);
+		height = Integer.parseInt(size[1]);
+
+		// noise and shapes, so the JPEG is about as large as a real frame
+		BufferedImage image = new BufferedImage(FRAME_WIDTH, FRAME_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(317);
+		Graphics2D g = image.createGraphics();
+		for (int i = 0; i < 200; i++) {
+			g.setColor(new Color(random.nextInt(0xffffff)));
+			g.fillOval(random.nextInt(FRAME_WIDTH), random.nextInt(FRAME_HEIGHT), 40, 30);
+		}
+		g.dispose();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", out);
+		frame = new Frame((byte) 26, true, (short) 0, 0, out.toByteArray());
+		decoder = new FrameDecoder(new SessionMetrics());
+	}
+
+	@Benchmark
+	public Image decodeAndScale() {
+		return frame.getImage(width, height);
+	}
+
+	@Benchmark
+	public Image decodePooled() throws IOException {
+		BufferedImage image = decoder.decodeImage(frame, width, height);
+		decoder.recycle(image);
+		return image;
+	}
+}
@@ -0,0 +1,82 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Inserting a batch of frames into the JitterBuffer in network order (with a
+ * given fraction of them displaced by a few positions) and draining it the
+ * way the playout does. The score is per frame, and includes taking the
+ * frame's buffer from the pool and returning it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JitterBufferBenchmark {
+	private static final int BATCH = 256;
+	private static final int MAXIMUM_DISPLACEMENT = 8;
+
+	@Param({ "0", "0.05", "0.3" })
+	public double reorderRate;
+
+	private BufferPool pool;
+	private JitterBuffer buffer;
+	private int[] arrivalOrder;
+	private long base;
+
+	@Setup
+	public void setup() {
+		pool = new BufferPool(64, BATCH * 2);
+		buffer = new JitterBuffer(1024);
+		// a fixed arrival pattern, frames swapped with one up to a few positions later
+		Random random = new Random(317);
+		arrivalOrder = new int[BATCH];
+		for (int i = 0; i < BATCH; i++)
+			arrivalOrder[i] = i;
+		for (int i = 0; i < BATCH - MAXIMUM_DISPLACEMENT; i++) {
+			if (random.nextDouble() >= reorderRate) continue;
+			int j = i + 1 + random.nextInt(MAXIMUM_DISPLACEMENT);
+			int swap = arrivalOrder[i];
+			arrivalOrder[i] = arrivalOrder[j];
+			arrivalOrder[j] = swap;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void insertAndDrain(Blackhole blackhole) {
+		for (int i = 0; i < BATCH; i++) {
+			long sequence = base + arrivalOrder[i];
+			Frame frame = new Frame((byte) 26, true, (short) sequence, (int) (sequence * 40), pool.acquire(), 0, 0,
+					pool);
+			frame.setExtendedNumbers(sequence, sequence * 40);
+			if (buffer.offer(frame) != JitterBuffer.ACCEPTED) frame.release();
+		}
+		Frame next;
+		while ((next = buffer.peek()) != null) {
+			blackhole.consume(next.getExtendedTimestamp());
+			buffer.advanceTo(next.getExtendedSequenceNumber());
+		}
+		base += BATCH;
+	}
+}
@@ -0,0 +1,97 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * The per packet work of the receiver: parsing a datagram into a pooled
+ * Frame, reading its payload and releasing it back to the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPPacketBenchmark {
+
+	@Param({ "1000", "12000" })
+	public int payloadLength;
+
+	private BufferPool pool;
+	private byte[] packet;
+	private Frame frame;
+
+	@Setup
+	public void setup() {
+		pool = new BufferPool(16 * 1024, 16);
+		packet = new byte[12 + payloadLength];
+		packet[0] = (byte) 0x80;
+		packet[1] = (byte) (0x80 | 26);
+		packet[3] = 42;
+		packet[7] = 40;
+		for (int i = 12; i < packet.length; i++)
+			packet[i] = (byte) i;
+		frame = RTSPConnection.parseRTPPacket(fill(pool.acquire()), pool);
+	}
+
+	// what the receiver does with a datagram, minus the read itself
+	private ByteBuffer fill(ByteBuffer buffer) {
+		buffer.clear();
+		buffer.put(packet);
+		buffer.flip();
+		return buffer;
+	}
+
+	@Benchmark
+	public Frame parse() {
+		Frame parsed = RTSPConnection.parseRTPPacket(fill(pool.acquire()), pool);
+		parsed.release();
+		return parsed;
+	}
+
+	@Benchmark
+	public Frame constructPooled() {
+		ByteBuffer buffer = pool.acquire();
+		Frame constructed = new Frame((byte) 26, true, (short) 42, 40, buffer, 12, payloadLength, pool);
+		constructed.release();
+		return constructed;
+	}
+
+	@Benchmark
+	public Frame constructCopy() {
+		return new Frame((byte) 26, true, (short) 42, 40, packet, 12, payloadLength);
+	}
+
+	@Benchmark
+	public ByteBuffer payloadBuffer() {
+		return frame.getPayloadBuffer();
+	}
+
+	@Benchmark
+	public byte[] payloadCopy() {
+		return frame.getPayload();
+	}
+
+	@Benchmark
+	public void retainRelease(Blackhole blackhole) {
+		blackhole.consume(frame.retain());
+		frame.release();
+	}
+}
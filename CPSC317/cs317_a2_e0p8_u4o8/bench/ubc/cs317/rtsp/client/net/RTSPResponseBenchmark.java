@@ -0,0 +1,83 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * Reading a typical RTSP response with RTSPResponse.readRTSPResponse and with
+ * the RTSPResponseParser the connection uses. The inputs are created once and
+ * replay the same response forever, so only the parsing is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTSPResponseBenchmark {
+	private static final String RESPONSE = "RTSP/1.0 200 OK\n" +
+			"CSeq: 3\n" +
+			"Session: 123456\n" +
+			"Transport: RTP/UDP; client_port= 25000;\n\n";
+
+	private BufferedReader reader;
+	private ByteBuffer bytes;
+	private RTSPResponseParser parser;
+
+	@Setup
+	public void setup() {
+		reader = new BufferedReader(new RepeatingReader(RESPONSE));
+		bytes = ByteBuffer.wrap(RESPONSE.getBytes(StandardCharsets.US_ASCII));
+		parser = new RTSPResponseParser();
+	}
+
+	@Benchmark
+	public RTSPResponse read() throws IOException, RTSPException {
+		return RTSPResponse.readRTSPResponse(reader);
+	}
+
+	@Benchmark
+	public long parse() throws RTSPException {
+		bytes.rewind();
+		parser.parse(bytes);
+		return parser.getResponseCode() + parser.getHeaderLong("CSeq", 0);
+	}
+
+	// a reader that never ends, repeating the same text
+	private static class RepeatingReader extends Reader {
+		private final char[] text;
+		private int position;
+
+		RepeatingReader(String text) {
+			this.text = text.toCharArray();
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) {
+			int count = Math.min(length, text.length - position);
+			System.arraycopy(text, position, buffer, offset, count);
+			position = (position + count) % text.length;
+			return count;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
@@ -13,6 +13,9 @@
 
 package ubc.cs317.rtsp.client.exception;
 
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
 public class RTSPException extends Exception {
 
 	public RTSPException(String message) {
@@ -26,4 +29,17 @@ public class RTSPException extends Exception {
 	public RTSPException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	/**
+	 * Returns the RTSPException a request failed with, given the exception of
+	 * its future (which may wrap it in a CompletionException or
+	 * ExecutionException), or wraps any other failure.
+	 */
+	public static RTSPException unwrap(Throwable failure) {
+		while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+				&& failure.getCause() != null)
+			failure = failure.getCause();
+		if (failure instanceof RTSPException) return (RTSPException) failure;
+		return new RTSPException(failure);
+	}
 }
@@ -0,0 +1,213 @@
+package ubc.cs317.rtsp.client.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless client that opens many RTSP sessions against a server at once,
+ * to find out how many streams it can serve. Every session plays the same
+ * video; their RTSP connections and RTP sockets all share one selector and
+ * one thread, and payloads are discarded (or checksummed) instead of being
+ * decoded and shown, so thousands of sessions only cost a few sockets each,
+ * or a single one with -tcp, which has the packets interleaved on the RTSP
+ * connection.
+ *
+ * The aggregate throughput is printed every second, and the quality of every
+ * session (loss, reordering, jitter) once the run is over.
+ *
+ * Usage: <code>LoadGenerator server port video sessions [seconds] [-checksum] [-tcp]</code>
+ */
+public class LoadGenerator {
+	private static final int PACKET_BUFFER_SIZE = 65536;
+	private static final int SESSIONS_PER_TICK = 20; // how fast sessions are opened, not to flood the server with SYNs
+	private static final long TICK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final long TEARDOWN_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+	private static final long DEFAULT_DURATION_S = 30;
+
+	private final InetSocketAddress server;
+	private final String videoName;
+	private final int sessionCount;
+	private final boolean checksum;
+	private final boolean interleaved;
+	private final PrintStream out;
+
+	private final List<LoadSession> sessions = new ArrayList<LoadSession>();
+	private final ByteBuffer packetBuffer = ByteBuffer.allocate(PACKET_BUFFER_SIZE);
+	private Selector selector;
+
+	// aggregate at the last report
+	private long reportNanos;
+	private long reportPackets;
+	private long reportBytes;
+
+	/**
+	 * Creates a generator. Nothing is opened until <code>run</code> is called.
+	 *
+	 * @param server
+	 *            The address of the RTSP server.
+	 * @param videoName
+	 *            The video every session plays.
+	 * @param sessionCount
+	 *            The number of concurrent sessions.
+	 * @param checksum
+	 *            Whether the payload of every packet is checksummed. The
+	 *            checksum of sessions that received the whole video should
+	 *            match.
+	 * @param interleaved
+	 *            Whether packets are received on the RTSP connection
+	 *            (RTP/AVP/TCP) instead of a UDP socket per session.
+	 * @param out
+	 *            Where the reports are printed.
+	 */
+	public LoadGenerator(InetSocketAddress server, String videoName, int sessionCount, boolean checksum,
+			boolean interleaved, PrintStream out) {
+		this.server = server;
+		this.videoName = videoName;
+		this.sessionCount = sessionCount;
+		this.checksum = checksum;
+		this.interleaved = interleaved;
+		this.out = out;
+	}
+
+	/**
+	 * Opens the sessions, streams for the given duration, tears every session
+	 * down and prints the results. Blocks until done.
+	 *
+	 * @param duration
+	 *            How long the sessions stream, counted from when the first
+	 *            session is opened.
+	 */
+	public void run(long duration, TimeUnit unit) throws IOException {
+		selector = Selector.open();
+		try {
+			long start = System.nanoTime();
+			long end = start + unit.toNanos(duration);
+			reportNanos = start;
+			long nextTick = start;
+
+			while (System.nanoTime() < end) {
+				long now = System.nanoTime();
+				if (now >= nextTick) {
+					openSessions(SESSIONS_PER_TICK);
+					nextTick = now + TICK_NS;
+				}
+				if (now - reportNanos >= REPORT_INTERVAL_NS) report(now);
+				long wait = sessions.size() < sessionCount ? nextTick - now : reportNanos + REPORT_INTERVAL_NS - now;
+				select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+			}
+
+			for (LoadSession session : sessions)
+				session.teardown();
+			long teardownEnd = System.nanoTime() + TEARDOWN_TIMEOUT_NS;
+			while (!allDone() && System.nanoTime() < teardownEnd)
+				select(TimeUnit.NANOSECONDS.toMillis(TICK_NS));
+			for (LoadSession session : sessions)
+				session.fail("No response to TEARDOWN.");
+
+			printSummary(System.nanoTime() - start);
+		}
+		finally {
+			selector.close();
+		}
+	}
+
+	private void openSessions(int count) {
+		for (int i = 0; i < count && sessions.size() < sessionCount; i++) {
+			LoadSession session = new LoadSession(sessions.size() + 1, videoName, checksum, interleaved);
+			sessions.add(session);
+			session.open(selector, server);
+		}
+	}
+
+	private void select(long timeoutMillis) throws IOException {
+		if (selector.select(timeoutMillis) == 0) return;
+		long now = System.nanoTime();
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (key.isValid()) ((LoadSession) key.attachment()).handle(key, packetBuffer, now);
+		}
+	}
+
+	private boolean allDone() {
+		for (LoadSession session : sessions)
+			if (!session.isDone()) return false;
+		return true;
+	}
+
+	// prints the aggregate throughput since the last report
+	private void report(long now) {
+		long packets = 0;
+		long bytes = 0;
+		int playing = 0;
+		int failed = 0;
+		for (LoadSession session : sessions) {
+			packets += session.getPackets();
+			bytes += session.getBytes();
+			if (session.getState() == LoadSession.PLAYING) playing++;
+			else if (session.getState() == LoadSession.FAILED) failed++;
+		}
+		double seconds = (double) (now - reportNanos) / TimeUnit.SECONDS.toNanos(1);
+		out.printf("%d/%d sessions playing, %d failed, %.0f pkts/s, %.2f Mbit/s%n", playing, sessionCount, failed,
+				(packets - reportPackets) / seconds, (bytes - reportBytes) * 8 / seconds / 1e6);
+		reportNanos = now;
+		reportPackets = packets;
+		reportBytes = bytes;
+	}
+
+	private void printSummary(long elapsedNanos) {
+		out.println();
+		out.println("session   packets   lost  loss%  reordered  jitter(ms)  Mbit/s  checksum  result");
+		long packets = 0;
+		long bytes = 0;
+		long lost = 0;
+		long expected = 0;
+		int failed = 0;
+		for (LoadSession session : sessions) {
+			double seconds = (double) session.getReceivingNanos() / TimeUnit.SECONDS.toNanos(1);
+			long sessionExpected = session.getExpected();
+			out.printf("%7d %9d %6d %6.2f %10d %11.2f %7.2f  %08x  %s%n", session.getId(), session.getPackets(),
+					session.getLost(), sessionExpected == 0 ? 0 : session.getLost() * 100.0 / sessionExpected,
+					session.getReordered(), session.getJitter(),
+					seconds <= 0 ? 0 : session.getBytes() * 8 / seconds / 1e6, session.getChecksum(),
+					session.getFailure() == null ? "ok" : session.getFailure());
+			packets += session.getPackets();
+			bytes += session.getBytes();
+			lost += session.getLost();
+			expected += sessionExpected;
+			if (session.getFailure() != null) failed++;
+		}
+		double seconds = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+		out.printf("%ntotal: %d sessions, %d failed, %d packets, %.2f%% lost, %.0f pkts/s, %.2f Mbit/s%n",
+				sessions.size(), failed, packets, expected == 0 ? 0 : lost * 100.0 / expected, packets / seconds,
+				bytes * 8 / seconds / 1e6);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("Usage: LoadGenerator server port video sessions [seconds] [-checksum] [-tcp]");
+			System.exit(1);
+		}
+		long duration = DEFAULT_DURATION_S;
+		boolean checksum = false;
+		boolean interleaved = false;
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("-checksum")) checksum = true;
+			else if (args[i].equals("-tcp")) interleaved = true;
+			else duration = Long.parseLong(args[i]);
+		}
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+				args[2], Integer.parseInt(args[3]), checksum, interleaved, System.out);
+		generator.run(duration, TimeUnit.SECONDS);
+	}
+}
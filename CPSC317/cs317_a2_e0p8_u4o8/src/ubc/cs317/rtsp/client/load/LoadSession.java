@@ -0,0 +1,345 @@
+package ubc.cs317.rtsp.client.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.net.InterleavedFramer;
+import ubc.cs317.rtsp.client.net.RTPSourceState;
+import ubc.cs317.rtsp.client.net.RTSPResponseParser;
+
+/**
+ * One headless RTSP session driven by the LoadGenerator. The RTSP connection
+ * and the RTP socket are both non-blocking and registered on the generator's
+ * selector, and every method is called from the generator's thread, so a
+ * session needs no thread of its own. With interleaved transport there is no
+ * RTP socket, the packets are split from the responses on the RTSP
+ * connection. Payloads are never decoded: they are
+ * counted, and optionally checksummed, and the RFC 3550 reception statistics
+ * give the quality of the session.
+ */
+class LoadSession {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int RESPONSE_BUFFER_SIZE = 4096;
+	private static final int RECEIVE_BUFFER_SIZE = 128 * 1024;
+	private static final int RTP_HEADER_LENGTH = 12;
+	private static final int MAXIMUM_PACKETS_PER_READ = 64; // so one busy session can't starve the others
+
+	static final int CONNECTING = 0;
+	static final int SETUP = 1;
+	static final int PLAY = 2;
+	static final int PLAYING = 3;
+	static final int TEARDOWN = 4;
+	static final int CLOSED = 5;
+	static final int FAILED = 6;
+
+	private final int id;
+	private final String videoName;
+	private final boolean checksum;
+	private final boolean interleaved;
+
+	private SocketChannel control;
+	private DatagramChannel rtp;
+	private SelectionKey controlKey;
+	private final ByteBuffer out = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+	private final ByteBuffer in = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE).flip();
+	private final RTSPResponseParser parser = new RTSPResponseParser(RESPONSE_BUFFER_SIZE);
+	private final InterleavedFramer framer = new InterleavedFramer(BufferPool.getDefault());
+	private int state = CONNECTING;
+	private String failure;
+	private int cseq = 1;
+	private String sessionNo;
+
+	// reception
+	private final RTPSourceState sourceState = new RTPSourceState();
+	private final CRC32 crc = new CRC32();
+	private long packets;
+	private long bytes;
+	private long firstArrivalNanos;
+	private long lastArrivalNanos;
+
+	LoadSession(int id, String videoName, boolean checksum, boolean interleaved) {
+		this.id = id;
+		this.videoName = videoName;
+		this.checksum = checksum;
+		this.interleaved = interleaved;
+	}
+
+	/**
+	 * Opens the RTSP connection and the RTP socket, unless packets are
+	 * interleaved, and registers both on the selector. The SETUP request is
+	 * sent as soon as the connection is made.
+	 */
+	void open(Selector selector, InetSocketAddress server) {
+		try {
+			if (!interleaved) {
+				rtp = DatagramChannel.open();
+				rtp.configureBlocking(false);
+				rtp.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+				rtp.bind(new InetSocketAddress(0));
+				rtp.register(selector, SelectionKey.OP_READ, this);
+			}
+
+			control = SocketChannel.open();
+			control.configureBlocking(false);
+			control.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (control.connect(server)) {
+				controlKey = control.register(selector, SelectionKey.OP_READ, this);
+				sendSetup();
+			}
+			else {
+				controlKey = control.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+		catch (IOException e) {
+			fail("Unable to establish connection to RTSP server.");
+		}
+	}
+
+	/**
+	 * Handles a ready key of this session.
+	 *
+	 * @param packetBuffer
+	 *            A buffer shared by every session that RTP packets are read
+	 *            into. Its content is only valid during the call.
+	 */
+	void handle(SelectionKey key, ByteBuffer packetBuffer, long now) {
+		try {
+			if (key.channel() == rtp) {
+				receivePackets(packetBuffer, now);
+				return;
+			}
+			if (key.isConnectable()) {
+				control.finishConnect();
+				controlKey.interestOps(SelectionKey.OP_READ);
+				sendSetup();
+			}
+			if (key.isValid() && key.isWritable()) flush();
+			if (key.isValid() && key.isReadable()) readControl(now);
+		}
+		catch (IOException e) {
+			fail("Error I/O to server: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends a TEARDOWN request if the session is set up, or closes it right
+	 * away otherwise.
+	 */
+	void teardown() {
+		if (state == PLAY || state == PLAYING) {
+			state = TEARDOWN;
+			send("TEARDOWN " + videoName + " RTSP/1.0\n" +
+					"CSeq: " + cseq++ + "\n" +
+					"Session: " + sessionNo + "\n\n");
+		}
+		else if (state != TEARDOWN) {
+			close(CLOSED);
+		}
+	}
+
+	/**
+	 * Marks the session as failed and closes it.
+	 */
+	void fail(String reason) {
+		if (state == CLOSED || state == FAILED) return;
+		failure = reason;
+		close(FAILED);
+	}
+
+	private void sendSetup() {
+		state = SETUP;
+		send("SETUP " + videoName + " RTSP/1.0\n" +
+				"CSeq: " + cseq++ + "\n" +
+				"Transport: " + (interleaved ? "RTP/AVP/TCP;interleaved=0-1"
+						: "RTP/UDP; client_port= " + rtp.socket().getLocalPort() + ";") + "\n\n");
+	}
+
+	private void sendPlay() {
+		state = PLAY;
+		send("PLAY " + videoName + " RTSP/1.0\n" +
+				"CSeq: " + cseq++ + "\n" +
+				"Session: " + sessionNo + "\n\n");
+	}
+
+	private void send(String request) {
+		out.put(request.getBytes(ASCII));
+		try {
+			flush();
+		}
+		catch (IOException e) {
+			fail("Error I/O to server: " + e.getMessage());
+		}
+	}
+
+	// writes what the socket takes, and waits for it to be writable for the rest
+	private void flush() throws IOException {
+		out.flip();
+		control.write(out);
+		boolean pending = out.hasRemaining();
+		out.compact();
+		if (controlKey.isValid())
+			controlKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	// reads responses and interleaved packets, the rest of a packet goes straight into its buffer
+	private void readControl(long now) throws IOException {
+		ByteBuffer target = framer.getTarget();
+		int count;
+		if (target != null) {
+			count = control.read(target);
+		}
+		else {
+			in.clear(); // the parser and the framer keep what they need of a partial message
+			count = control.read(in);
+			in.flip();
+		}
+		if (count < 0) {
+			if (state == TEARDOWN) close(CLOSED);
+			else fail("Connection closed by server.");
+			return;
+		}
+		try {
+			if (target != null && framer.read(in) == InterleavedFramer.COMPLETE) interleavedPacketReceived(now);
+			while (state != CLOSED && state != FAILED && in.hasRemaining()) {
+				if (framer.isInFrame() || (!parser.isInResponse() && InterleavedFramer.startsFrame(in))) {
+					if (framer.read(in) == InterleavedFramer.COMPLETE) interleavedPacketReceived(now);
+				}
+				else if (parser.parse(in) == RTSPResponseParser.COMPLETE) {
+					handleResponse();
+				}
+			}
+		}
+		catch (RTSPException e) {
+			fail(e.getMessage());
+		}
+	}
+
+	// only the RTP channel is counted, RTCP is ignored
+	private void interleavedPacketReceived(long now) {
+		ByteBuffer packet = framer.takePacket();
+		if (framer.getChannel() == 0) receivePacket(packet, now);
+		BufferPool.getDefault().release(packet);
+	}
+
+	private void handleResponse() {
+		int code = parser.getResponseCode();
+		if (code != 200) {
+			fail("Server returned " + code + ".");
+			return;
+		}
+
+		switch (state) {
+		case SETUP:
+			sessionNo = parser.getHeaderValue("Session");
+			sendPlay();
+			break;
+		case PLAY:
+			state = PLAYING;
+			break;
+		case TEARDOWN:
+			close(CLOSED);
+			break;
+		}
+	}
+
+	private void receivePackets(ByteBuffer packetBuffer, long now) throws IOException {
+		packetBuffer.clear();
+		for (int i = 0; i < MAXIMUM_PACKETS_PER_READ && rtp.receive(packetBuffer) != null; i++) {
+			packetBuffer.flip();
+			receivePacket(packetBuffer, now);
+			packetBuffer.clear();
+		}
+	}
+
+	private void receivePacket(ByteBuffer packet, long now) {
+		int length = packet.limit();
+		if (length < RTP_HEADER_LENGTH) return;
+		int sequenceNumber = packet.getShort(2) & 0xffff;
+		int timestamp = packet.getInt(4);
+		int offset = RTP_HEADER_LENGTH + (packet.get(0) & 0x0f) * 4;
+		if (offset > length) return;
+
+		long sequence = sourceState.update(sequenceNumber);
+		if (sequence == RTPSourceState.INVALID_SEQUENCE) return;
+		sourceState.updateJitter(sourceState.extendTimestamp(timestamp), now);
+		if (packets == 0) firstArrivalNanos = now;
+		lastArrivalNanos = now;
+		packets++;
+		bytes += length;
+		if (checksum) crc.update(packet.array(), packet.arrayOffset() + offset, length - offset);
+	}
+
+	private void close(int finalState) {
+		state = finalState;
+		framer.reset();
+		try {
+			if (control != null) control.close();
+		}
+		catch (IOException e) {} // swallow
+		try {
+			if (rtp != null) rtp.close();
+		}
+		catch (IOException e) {} // swallow
+	}
+
+	int getId() {
+		return id;
+	}
+
+	int getState() {
+		return state;
+	}
+
+	boolean isDone() {
+		return state == CLOSED || state == FAILED;
+	}
+
+	String getFailure() {
+		return failure;
+	}
+
+	long getPackets() {
+		return packets;
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	long getLost() {
+		return packets == 0 ? 0 : sourceState.getLost();
+	}
+
+	long getExpected() {
+		return packets == 0 ? 0 : sourceState.getExpected();
+	}
+
+	long getReordered() {
+		return sourceState.getReordered();
+	}
+
+	double getJitter() {
+		return sourceState.getJitter();
+	}
+
+	long getChecksum() {
+		return crc.getValue();
+	}
+
+	/**
+	 * Returns the time between the first and the last packet, in nanoseconds.
+	 */
+	long getReceivingNanos() {
+		return lastArrivalNanos - firstArrivalNanos;
+	}
+}
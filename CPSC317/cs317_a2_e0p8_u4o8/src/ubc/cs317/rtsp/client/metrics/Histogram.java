@@ -0,0 +1,63 @@
+package ubc.cs317.rtsp.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with power of two buckets, so it takes
+ * the same memory however many values are recorded. Percentiles are
+ * approximate: they return the upper bound of the bucket they fall in.
+ * Recording is lock free and may be done from any thread.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value, negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound of the value below which the given fraction of
+	 * the recorded values fall.
+	 *
+	 * @param fraction
+	 *            A number between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) return i == BUCKETS - 1 ? max.get() : Math.min(max.get(), (1L << i) - 1);
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,63 @@
+package ubc.cs317.rtsp.client.metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a snapshot of the metrics of every registered session at a fixed
+ * interval. It is started when the first session is created if the system
+ * property <code>rtsp.metrics.dumpIntervalSeconds</code> is set to a
+ * positive number, so it can be turned on without recompiling.
+ */
+public class MetricsReporter {
+	public static final String INTERVAL_PROPERTY = "rtsp.metrics.dumpIntervalSeconds";
+
+	private static ScheduledExecutorService executor;
+
+	/**
+	 * Starts reporting to System.out if the interval system property is set.
+	 */
+	static void startFromSystemProperty() {
+		long interval = Long.getLong(INTERVAL_PROPERTY, 0);
+		if (interval > 0) start(interval, System.out);
+	}
+
+	/**
+	 * Starts printing snapshots. Does nothing if reporting already started.
+	 *
+	 * @param intervalSeconds
+	 *            The time between two snapshots, in seconds.
+	 * @param out
+	 *            Where snapshots are printed.
+	 */
+	public static synchronized void start(long intervalSeconds, final PrintStream out) {
+		if (executor != null) return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				for (SessionMetrics metrics : SessionMetrics.getRegistered())
+					out.println(metrics.snapshot());
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops printing snapshots.
+	 */
+	public static synchronized void stop() {
+		if (executor == null) return;
+		executor.shutdown();
+		executor = null;
+	}
+}
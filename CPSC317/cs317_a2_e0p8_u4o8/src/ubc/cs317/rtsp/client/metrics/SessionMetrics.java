@@ -0,0 +1,444 @@
+package ubc.cs317.rtsp.client.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live metrics of an RTSP session: counters, gauges and latency histograms
+ * that are always on and take constant memory. Every session registers its
+ * metrics as an MBean named
+ * <code>ubc.cs317.rtsp.client:type=Session,name=session-N</code>, and a
+ * snapshot of every registered session can be printed periodically by
+ * setting the system property <code>rtsp.metrics.dumpIntervalSeconds</code>.
+ *
+ * The receiver, the playout and the decoder update the metrics from their own
+ * threads; nothing here takes a lock.
+ */
+public class SessionMetrics implements SessionMetricsMBean {
+	private static final String DOMAIN = "ubc.cs317.rtsp.client";
+	private static final long RATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final AtomicInteger sessionCount = new AtomicInteger();
+	private static final List<SessionMetrics> registered = new CopyOnWriteArrayList<SessionMetrics>();
+
+	private final String name = "session-" + sessionCount.incrementAndGet();
+	private ObjectName objectName;
+	private volatile String videoName;
+
+	// reception, updated by the receiver thread
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private volatile long rateWindowStart;
+	private volatile long rateWindowPackets;
+	private volatile double packetsPerSecond;
+	private volatile long packetsLost;
+	private volatile long packetsReordered;
+	private volatile double lossRate;
+	private volatile double reorderRate;
+	private volatile double jitterMillis;
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong lateDrops = new AtomicLong();
+	private final AtomicLong overflowDrops = new AtomicLong();
+	private final AtomicLong packetsRequested = new AtomicLong();
+	private final AtomicLong packetsRecovered = new AtomicLong();
+	private final AtomicLong reportsSent = new AtomicLong();
+	private final AtomicLong senderReportsReceived = new AtomicLong();
+
+	// buffer and playout
+	private volatile int bufferedFrames;
+	private volatile long bufferedMillis;
+	private volatile long bufferedBytes;
+	private volatile long bufferTargetMillis;
+	private volatile double playoutRate = 1;
+	private volatile double clockDriftPpm;
+	private final AtomicLong serverPauses = new AtomicLong();
+	private final AtomicLong rebufferCount = new AtomicLong();
+	private final AtomicLong rebufferNanos = new AtomicLong();
+	private volatile long rebufferStart = -1;
+	private final AtomicLong framesPresented = new AtomicLong();
+	private final AtomicLong listenerDrops = new AtomicLong();
+	private final Histogram presentationLatency = new Histogram();
+	private final Histogram decodeLatency = new Histogram();
+
+	static {
+		MetricsReporter.startFromSystemProperty();
+	}
+
+	/**
+	 * Publishes the metrics as an MBean. Failing to do so is not fatal to the
+	 * session, the metrics are still updated.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(DOMAIN + ":type=Session,name=" + name);
+			server.registerMBean(this, objectName);
+		}
+		catch (JMException e) {
+			objectName = null;
+		}
+		registered.add(this);
+	}
+
+	/**
+	 * Removes the MBean, once the session is closed.
+	 */
+	public void unregister() {
+		registered.remove(this);
+		if (objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (JMException e) {} // swallow
+		objectName = null;
+	}
+
+	/**
+	 * Returns the metrics of every registered session.
+	 */
+	public static List<SessionMetrics> getRegistered() {
+		return registered;
+	}
+
+	/**
+	 * Returns the name of the session, unique in the process.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public void setVideoName(String videoName) {
+		this.videoName = videoName;
+	}
+
+	/**
+	 * Counts a received packet. Called by the receiver thread only.
+	 */
+	public void packetReceived(long arrivalNanos) {
+		packetsReceived.incrementAndGet();
+		long elapsed = arrivalNanos - rateWindowStart;
+		if (elapsed >= RATE_WINDOW_NS) {
+			if (rateWindowStart != 0)
+				packetsPerSecond = rateWindowPackets * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			rateWindowStart = arrivalNanos;
+			rateWindowPackets = 0;
+		}
+		rateWindowPackets++;
+	}
+
+	/**
+	 * Updates the reception statistics. Called by the receiver thread only.
+	 */
+	public void updateReception(long lost, long reordered, double lossRate, double reorderRate, double jitterMillis) {
+		this.packetsLost = lost;
+		this.packetsReordered = reordered;
+		this.lossRate = lossRate;
+		this.reorderRate = reorderRate;
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Counts a frame dropped because it arrived after its turn to be played.
+	 */
+	public void lateFrameDropped() {
+		lateDrops.incrementAndGet();
+	}
+
+	/**
+	 * Counts a frame dropped because it was already buffered.
+	 */
+	public void duplicateFrameDropped() {
+		duplicates.incrementAndGet();
+	}
+
+	/**
+	 * Counts a frame dropped because the buffer had no room for it, or
+	 * because it was over its budget.
+	 */
+	public void overflowFrameDropped() {
+		overflowDrops.incrementAndGet();
+	}
+
+	/**
+	 * Counts packets asked for again with a NACK, once per request.
+	 */
+	public void packetsRequested(int count) {
+		packetsRequested.addAndGet(count);
+	}
+
+	/**
+	 * Counts a packet that was asked for again and arrived in time to be
+	 * played.
+	 */
+	public void packetRecovered() {
+		packetsRecovered.incrementAndGet();
+	}
+
+	/**
+	 * Counts an RTCP receiver report sent to the server.
+	 */
+	public void reportSent() {
+		reportsSent.incrementAndGet();
+	}
+
+	/**
+	 * Counts an RTCP sender report received from the server.
+	 */
+	public void senderReportReceived() {
+		senderReportsReceived.incrementAndGet();
+	}
+
+	/**
+	 * Updates the speed of the playout and the estimated drift of the sender
+	 * clock it follows.
+	 */
+	public void updatePlayoutRate(double rate, double driftPpm) {
+		this.playoutRate = rate;
+		this.clockDriftPpm = driftPpm;
+	}
+
+	/**
+	 * Counts a PAUSE sent to the server because the buffer was full.
+	 */
+	public void serverPaused() {
+		serverPauses.incrementAndGet();
+	}
+
+	/**
+	 * Updates the state of the buffer.
+	 */
+	public void updateBuffer(int frames, long bytes, long millis, long targetMillis) {
+		this.bufferedFrames = frames;
+		this.bufferedBytes = bytes;
+		this.bufferedMillis = millis;
+		this.bufferTargetMillis = targetMillis;
+	}
+
+	/**
+	 * Notes that the playout ran out of frames and started buffering again.
+	 */
+	public void rebufferStarted(long now) {
+		rebufferCount.incrementAndGet();
+		rebufferStart = now;
+	}
+
+	/**
+	 * Notes that the playout has enough frames to play again.
+	 */
+	public void rebufferEnded(long now) {
+		long start = rebufferStart;
+		if (start < 0) return;
+		rebufferStart = -1;
+		rebufferNanos.addAndGet(now - start);
+	}
+
+	/**
+	 * Records the presentation of a frame.
+	 *
+	 * @param latencyNanos
+	 *            How late the frame was presented compared to its deadline.
+	 */
+	public void framePresented(long latencyNanos) {
+		framesPresented.incrementAndGet();
+		presentationLatency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+	}
+
+	/**
+	 * Counts a frame a listener never got, because it was too slow to keep up
+	 * with its queue.
+	 */
+	public void listenerFrameDropped() {
+		listenerDrops.incrementAndGet();
+	}
+
+	/**
+	 * Records how long a frame took to decode.
+	 */
+	public void frameDecoded(long decodeNanos) {
+		decodeLatency.record(TimeUnit.NANOSECONDS.toMicros(decodeNanos));
+	}
+
+	@Override
+	public String getVideoName() {
+		return videoName;
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	@Override
+	public double getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	@Override
+	public long getPacketsLost() {
+		return packetsLost;
+	}
+
+	@Override
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	@Override
+	public long getPacketsReordered() {
+		return packetsReordered;
+	}
+
+	@Override
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	@Override
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	@Override
+	public long getLateDrops() {
+		return lateDrops.get();
+	}
+
+	@Override
+	public long getOverflowDrops() {
+		return overflowDrops.get();
+	}
+
+	@Override
+	public long getPacketsRequested() {
+		return packetsRequested.get();
+	}
+
+	@Override
+	public long getPacketsRecovered() {
+		return packetsRecovered.get();
+	}
+
+	@Override
+	public long getReportsSent() {
+		return reportsSent.get();
+	}
+
+	@Override
+	public long getSenderReportsReceived() {
+		return senderReportsReceived.get();
+	}
+
+	@Override
+	public double getJitterMillis() {
+		return jitterMillis;
+	}
+
+	@Override
+	public int getBufferedFrames() {
+		return bufferedFrames;
+	}
+
+	@Override
+	public long getBufferedMillis() {
+		return bufferedMillis;
+	}
+
+	@Override
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	@Override
+	public long getServerPauses() {
+		return serverPauses.get();
+	}
+
+	@Override
+	public long getBufferTargetMillis() {
+		return bufferTargetMillis;
+	}
+
+	@Override
+	public double getPlayoutRate() {
+		return playoutRate;
+	}
+
+	@Override
+	public double getClockDriftPpm() {
+		return clockDriftPpm;
+	}
+
+	@Override
+	public long getRebufferCount() {
+		return rebufferCount.get();
+	}
+
+	@Override
+	public long getRebufferMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(rebufferNanos.get());
+	}
+
+	@Override
+	public long getFramesPresented() {
+		return framesPresented.get();
+	}
+
+	@Override
+	public long getListenerDrops() {
+		return listenerDrops.get();
+	}
+
+	@Override
+	public double getDecodeLatencyMeanMicros() {
+		return decodeLatency.getMean();
+	}
+
+	@Override
+	public long getDecodeLatencyP99Micros() {
+		return decodeLatency.getPercentile(0.99);
+	}
+
+	@Override
+	public double getPresentationLatencyMeanMicros() {
+		return presentationLatency.getMean();
+	}
+
+	@Override
+	public long getPresentationLatencyP99Micros() {
+		return presentationLatency.getPercentile(0.99);
+	}
+
+	@Override
+	public long getPresentationLatencyMaxMicros() {
+		return presentationLatency.getMax();
+	}
+
+	@Override
+	public String snapshot() {
+		return String.format("%s (%s): %.2f pkts/s, %d received, %d lost (%.1f%%), %d reordered (%.1f%%), "
+				+ "%d duplicates, %d late, %d overflow, %d requested/%d recovered, %d RR/%d SR, jitter %.1fms, "
+				+ "buffer %d frames/%dKB/%dms (target %dms), %d server pauses, rate %.3f (drift %.0fppm), "
+				+ "%d rebuffers/%dms, %d presented, %d listener drops, decode %.0f/%dus (mean/p99), "
+				+ "presentation %.0f/%d/%dus (mean/p99/max)",
+				name, videoName, packetsPerSecond, getPacketsReceived(), packetsLost, lossRate * 100,
+				packetsReordered, reorderRate * 100, getDuplicates(), getLateDrops(), getOverflowDrops(),
+				getPacketsRequested(), getPacketsRecovered(), getReportsSent(), getSenderReportsReceived(),
+				jitterMillis, bufferedFrames, bufferedBytes / 1024, bufferedMillis, bufferTargetMillis,
+				getServerPauses(), playoutRate, clockDriftPpm, getRebufferCount(), getRebufferMillis(),
+				getFramesPresented(), getListenerDrops(), getDecodeLatencyMeanMicros(),
+				getDecodeLatencyP99Micros(), getPresentationLatencyMeanMicros(),
+				getPresentationLatencyP99Micros(), getPresentationLatencyMaxMicros());
+	}
+
+	@Override
+	public String toString() {
+		return snapshot();
+	}
+}
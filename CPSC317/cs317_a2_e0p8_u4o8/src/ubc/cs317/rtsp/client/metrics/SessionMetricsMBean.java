@@ -0,0 +1,72 @@
+package ubc.cs317.rtsp.client.metrics;
+
+/**
+ * The management interface of SessionMetrics, as published through JMX.
+ * Latencies are in microseconds, durations of the stream in milliseconds.
+ */
+public interface SessionMetricsMBean {
+
+	public String getVideoName();
+
+	public long getPacketsReceived();
+
+	public double getPacketsPerSecond();
+
+	public long getPacketsLost();
+
+	public double getLossRate();
+
+	public long getPacketsReordered();
+
+	public double getReorderRate();
+
+	public long getDuplicates();
+
+	public long getLateDrops();
+
+	public long getOverflowDrops();
+
+	public long getPacketsRequested();
+
+	public long getPacketsRecovered();
+
+	public long getReportsSent();
+
+	public long getSenderReportsReceived();
+
+	public double getJitterMillis();
+
+	public int getBufferedFrames();
+
+	public long getBufferedMillis();
+
+	public long getBufferedBytes();
+
+	public long getServerPauses();
+
+	public long getBufferTargetMillis();
+
+	public double getPlayoutRate();
+
+	public double getClockDriftPpm();
+
+	public long getRebufferCount();
+
+	public long getRebufferMillis();
+
+	public long getFramesPresented();
+
+	public long getListenerDrops();
+
+	public double getDecodeLatencyMeanMicros();
+
+	public long getDecodeLatencyP99Micros();
+
+	public double getPresentationLatencyMeanMicros();
+
+	public long getPresentationLatencyP99Micros();
+
+	public long getPresentationLatencyMaxMicros();
+
+	public String snapshot();
+}
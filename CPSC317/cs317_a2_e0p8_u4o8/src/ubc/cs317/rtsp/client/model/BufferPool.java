@@ -0,0 +1,77 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of fixed size byte buffers used to receive packets without
+ * allocating a new array for every one of them. Buffers are taken with
+ * <code>acquire</code> and given back with <code>release</code>, usually
+ * through <code>Frame.release</code> once the frame has been played or
+ * dropped. Acquiring from an empty pool allocates a new buffer, releasing to a
+ * full pool lets the buffer be garbage collected, so the pool never blocks.
+ */
+public class BufferPool {
+	private static final int DEFAULT_BUFFER_SIZE = 15000;
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private static final BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_CAPACITY);
+
+	private final int bufferSize;
+	private final ByteBuffer[] free;
+	private int freeCount;
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param bufferSize
+	 *            The size in bytes of every buffer in the pool.
+	 * @param capacity
+	 *            The maximum number of idle buffers kept by the pool.
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.free = new ByteBuffer[capacity];
+	}
+
+	/**
+	 * Returns the pool shared by every session, with buffers large enough for
+	 * any RTP packet of the stream.
+	 */
+	public static BufferPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Returns the size in bytes of the buffers in this pool.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one if the pool is
+	 * empty. The buffer is backed by an accessible array.
+	 */
+	public ByteBuffer acquire() {
+		synchronized (this) {
+			if (freeCount > 0) {
+				ByteBuffer buffer = free[--freeCount];
+				free[freeCount] = null;
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used by the
+	 * caller afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize) return;
+		buffer.clear();
+		synchronized (this) {
+			if (freeCount < free.length) free[freeCount++] = buffer;
+		}
+	}
+}
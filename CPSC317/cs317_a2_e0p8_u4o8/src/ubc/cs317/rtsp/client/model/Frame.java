@@ -15,10 +15,20 @@ package ubc.cs317.rtsp.client.model;
 
 import java.awt.Image;
 import java.awt.Toolkit;
-import java.util.Comparator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class represents an individual frame in a video stream.
+ * This class represents an individual frame in a video stream. A frame either
+ * owns a private copy of its payload or is a view over a slice of a pooled
+ * buffer. Pooled frames are reference counted: whoever keeps a frame after the
+ * call that handed it over must <code>retain</code> it, and every holder must
+ * <code>release</code> it when done, the last release returning the buffer to
+ * its pool.
  */
 public class Frame implements Comparable<Frame> {
 
@@ -26,7 +36,20 @@ public class Frame implements Comparable<Frame> {
 	private boolean marker;
 	private short sequenceNumber;
 	private int timestamp;
+	private long extendedSequenceNumber;
+	private long extendedTimestamp;
 	private byte[] payload;
+	private int offset;
+	private int length;
+
+	private ByteBuffer pooledBuffer;
+	private BufferPool pool;
+	private AtomicInteger references;
+
+	private volatile Future<Image> preparedImage;
+	private volatile int preparedWidth;
+	private volatile int preparedHeight;
+	private volatile FrameDecoder preparedBy;
 
 	/**
 	 * Creates a new frame.
@@ -59,11 +82,60 @@ public class Frame implements Comparable<Frame> {
 		this.marker = marker;
 		this.sequenceNumber = sequenceNumber;
 		this.timestamp = timestamp;
+		this.extendedSequenceNumber = sequenceNumber & 0xffff;
+		this.extendedTimestamp = timestamp & 0xffffffffL;
 
 		this.payload = new byte[length];
+		this.length = length;
 		System.arraycopy(payload, offset, this.payload, 0, length);
 	}
 
+	/**
+	 * Creates a new frame as a view over a pooled buffer, without copying the
+	 * payload. The frame takes ownership of the buffer, which is returned to
+	 * <tt>pool</tt> once the frame is released by its last holder.
+	 *
+	 * @param payloadType
+	 *            The numeric type of payload found in the frame.
+	 * @param marker
+	 *            An indication if the frame is an important frame when compared
+	 *            to other frames in the stream.
+	 * @param sequenceNumber
+	 *            A sequential number corresponding to the ordering of the
+	 *            frame.
+	 * @param timestamp
+	 *            The number of milliseconds after the logical start of the
+	 *            stream when this frame is expected to be played.
+	 * @param buffer
+	 *            A buffer taken from <tt>pool</tt>, backed by an accessible
+	 *            array, containing the packet with the payload.
+	 * @param offset
+	 *            The position in <tt>buffer</tt> where the contents start.
+	 * @param length
+	 *            The number of bytes to be considered as contents in
+	 *            <tt>buffer</tt>.
+	 * @param pool
+	 *            The pool the buffer is returned to.
+	 */
+	public Frame(byte payloadType, boolean marker, short sequenceNumber,
+			int timestamp, ByteBuffer buffer, int offset, int length,
+			BufferPool pool) {
+
+		this.payloadType = payloadType;
+		this.marker = marker;
+		this.sequenceNumber = sequenceNumber;
+		this.timestamp = timestamp;
+		this.extendedSequenceNumber = sequenceNumber & 0xffff;
+		this.extendedTimestamp = timestamp & 0xffffffffL;
+
+		this.payload = buffer.array();
+		this.offset = buffer.arrayOffset() + offset;
+		this.length = length;
+		this.pooledBuffer = buffer;
+		this.pool = pool;
+		this.references = new AtomicInteger(1);
+	}
+
 	/**
 	 * Creates a new frame.
 	 * 
@@ -130,13 +202,60 @@ public class Frame implements Comparable<Frame> {
 		return timestamp;
 	}
 
+	/**
+	 * Returns the sequence number of the frame extended to 64 bits, so it keeps
+	 * increasing after the 16-bit sequence number wraps around. Unless set by
+	 * <code>setExtendedNumbers</code> it is the unsigned sequence number.
+	 * 
+	 * @return The extended sequence number of the frame.
+	 */
+	public long getExtendedSequenceNumber() {
+		return extendedSequenceNumber;
+	}
+
+	/**
+	 * Returns the timestamp of the frame extended to 64 bits, so it keeps
+	 * increasing after the 32-bit timestamp wraps around. Unless set by
+	 * <code>setExtendedNumbers</code> it is the unsigned timestamp.
+	 * 
+	 * @return The extended timestamp of the frame, in milliseconds.
+	 */
+	public long getExtendedTimestamp() {
+		return extendedTimestamp;
+	}
+
+	/**
+	 * Sets the extended sequence number and timestamp of the frame, as tracked
+	 * by the receiver of the stream.
+	 * 
+	 * @param sequenceNumber
+	 *            The extended sequence number.
+	 * @param timestamp
+	 *            The extended timestamp.
+	 */
+	public void setExtendedNumbers(long sequenceNumber, long timestamp) {
+		this.extendedSequenceNumber = sequenceNumber;
+		this.extendedTimestamp = timestamp;
+	}
+
 	/**
 	 * Returns the raw data included in the frame.
 	 * 
 	 * @return A byte array corresponding to the raw data of the frame.
 	 */
 	public byte[] getPayload() {
-		return payload.clone();
+		return Arrays.copyOfRange(payload, offset, offset + length);
+	}
+
+	/**
+	 * Returns a read-only view of the raw data included in the frame, without
+	 * copying it. For pooled frames the view is only valid while the frame is
+	 * retained.
+	 *
+	 * @return A read-only buffer positioned at the start of the payload.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(payload, offset, length).slice().asReadOnlyBuffer();
 	}
 
 	/**
@@ -146,7 +265,7 @@ public class Frame implements Comparable<Frame> {
 	 * @return The length of the payload.
 	 */
 	public int getPayloadLength() {
-		return payload.length;
+		return length;
 	}
 
 	/**
@@ -155,11 +274,100 @@ public class Frame implements Comparable<Frame> {
 	 * @return An <code>Image</code> object corresponding to the frame contents.
 	 */
 	public Image getImage() {
-		return Toolkit.getDefaultToolkit().createImage(getPayload());
+		// the toolkit decodes lazily, so it must get its own copy of a pooled payload
+		if (pool != null)
+			return Toolkit.getDefaultToolkit().createImage(getPayload());
+		return Toolkit.getDefaultToolkit().createImage(payload, offset, length);
+	}
+
+	/**
+	 * Returns an Image of the frame scaled to fit in the given size, keeping
+	 * its aspect ratio. If the frame was prepared by a FrameDecoder for this
+	 * size, the image decoded in the background is used (waiting for it if
+	 * needed), otherwise the frame is decoded now.
+	 * 
+	 * @param width
+	 *            The width of the area to fit, in pixels.
+	 * @param height
+	 *            The height of the area to fit, in pixels.
+	 * @return The scaled image, or null if the frame couldn't be decoded. A
+	 *         prepared image is reused for another frame once this one is
+	 *         released, so it must not be kept longer than the frame.
+	 */
+	public Image getImage(int width, int height) {
+		Future<Image> prepared = preparedImage;
+		try {
+			if (prepared != null && preparedWidth == width && preparedHeight == height)
+				return prepared.get();
+			return FrameDecoder.decode(this, width, height);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException | IOException e) {
+			return null;
+		}
+	}
+
+	// true if a decoder already started on an image of this size
+	boolean isImagePrepared(int width, int height) {
+		return preparedImage != null && preparedWidth == width && preparedHeight == height;
+	}
+
+	// attaches an image being decoded in the background, given back to the decoder when the frame is released
+	void setPreparedImage(int width, int height, Future<Image> image, FrameDecoder decoder) {
+		preparedBy = decoder;
+		preparedWidth = width;
+		preparedHeight = height;
+		preparedImage = image; // written last, readers check it first
+	}
+
+	// the array holding the payload, only valid while the frame is retained
+	byte[] getPayloadArray() {
+		return payload;
+	}
+
+	int getPayloadOffset() {
+		return offset;
+	}
+
+	/**
+	 * Adds a holder to a pooled frame. Has no effect on frames that own their
+	 * payload.
+	 *
+	 * @return This frame.
+	 */
+	public Frame retain() {
+		if (references != null) references.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Removes a holder from a pooled frame, returning its buffer to the pool
+	 * (and its prepared image to the decoder) when no holder is left. Has no
+	 * effect on frames that own their payload.
+	 */
+	public void release() {
+		if (references != null && references.decrementAndGet() == 0) {
+			recycleImage();
+			pool.release(pooledBuffer);
+		}
+	}
+
+	// the decoder retains the frame until the image is set, so the image is done by now
+	private void recycleImage() {
+		Future<Image> prepared = preparedImage;
+		if (prepared == null || !prepared.isDone()) return;
+		preparedImage = null;
+		try {
+			preparedBy.recycle(prepared.get());
+		}
+		catch (InterruptedException | ExecutionException e) {} // nothing to give back
 	}
 
 	@Override
 	public int compareTo(Frame o) {
-		return Integer.compare(sequenceNumber, o.sequenceNumber);
+		return Long.compare(extendedSequenceNumber, o.extendedSequenceNumber);
 	}
 }
@@ -0,0 +1,311 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+
+/**
+ * Decodes and scales the frames of a session ahead of their presentation. The
+ * playout hands over the next few frames of the buffer with
+ * <code>prepare</code>; they are decoded to the current display size on a
+ * pool of worker threads shared by every session, and the result is attached
+ * to the frame, so presenting a frame only has to pick up a ready image.
+ * Frames are decoded in the order they are prepared, and each frame waits
+ * for its own image, so the output is always presented in order.
+ *
+ * Each session keeps its own JPEG ImageReader, so the frames of a session are
+ * decoded one at a time (the frames of different sessions still decode in
+ * parallel). The reader skips pixels with source subsampling while the
+ * image still covers the display, and decodes into a BufferedImage taken
+ * from a pool of images of that size, which gets the image back once the
+ * frame is released. Decoding a frame allocates next to nothing.
+ */
+public class FrameDecoder {
+	private static final ExecutorService workers = Executors.newFixedThreadPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "frame-decoder-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static final int MAXIMUM_FREE_IMAGES = 8;
+	// the band order the reader writes its rows in
+	private static final ImageTypeSpecifier RGB_TYPE = ImageTypeSpecifier.createInterleaved(
+			ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[] { 0, 1, 2 }, DataBuffer.TYPE_BYTE, false, false);
+
+	private final SessionMetrics metrics;
+	private volatile int displayWidth;
+	private volatile int displayHeight;
+
+	// only used by the task draining the queue
+	private final ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+	private final ImageReadParam param = reader.getDefaultReadParam();
+	private final PayloadInputStream input = new PayloadInputStream();
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	// guarded by this
+	private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+	private boolean draining;
+	private boolean closed;
+	private final ArrayDeque<BufferedImage> freeImages = new ArrayDeque<BufferedImage>();
+	private int imageWidth;
+	private int imageHeight;
+	private ImageTypeSpecifier imageType;
+
+	/**
+	 * Creates a decoder for a session.
+	 *
+	 * @param metrics
+	 *            Where the time taken to decode each frame is recorded.
+	 */
+	public FrameDecoder(SessionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the size frames are scaled to. Frames already prepared for another
+	 * size are decoded again when presented.
+	 *
+	 * @param width
+	 *            The width of the display area, in pixels.
+	 * @param height
+	 *            The height of the display area, in pixels.
+	 */
+	public void setDisplaySize(int width, int height) {
+		this.displayWidth = width;
+		this.displayHeight = height;
+	}
+
+	/**
+	 * Starts decoding a frame in the background, unless it has already been
+	 * prepared for the current display size. The frame is retained until its
+	 * image is set.
+	 */
+	public void prepare(final Frame frame) {
+		final int width = displayWidth;
+		final int height = displayHeight;
+		if (width <= 0 || height <= 0 || frame.isImagePrepared(width, height)) return;
+
+		frame.retain();
+		FutureTask<Image> image = new FutureTask<Image>(new Callable<Image>() {
+			@Override
+			public Image call() throws IOException {
+				long start = System.nanoTime();
+				try {
+					return decodeImage(frame, width, height);
+				}
+				finally {
+					metrics.frameDecoded(System.nanoTime() - start);
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				// once the image is set, so the last release finds it and gives it back
+				frame.release();
+			}
+		};
+		synchronized (this) {
+			if (closed) {
+				frame.release();
+				return;
+			}
+			frame.setPreparedImage(width, height, image, this);
+			pending.add(image);
+			if (draining) return;
+			draining = true;
+		}
+		workers.execute(drainTask);
+	}
+
+	// decodes the frames prepared so far on a single worker, the reader can't be shared
+	private void drain() {
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				task = pending.poll();
+				if (task == null) {
+					draining = false;
+					if (closed) reader.dispose();
+					return;
+				}
+			}
+			task.run();
+		}
+	}
+
+	/**
+	 * Stops preparing frames and disposes of the reader, once the frames
+	 * already prepared are decoded.
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		freeImages.clear();
+		if (!draining) reader.dispose();
+	}
+
+	/**
+	 * Decodes the JPEG payload of a frame with the reader of the session,
+	 * into a pooled image at least as large as the given size would fit,
+	 * keeping the aspect ratio; the display scales the rest of the way. Only
+	 * called by one thread at a time.
+	 *
+	 * @return The image, which must be given back with <code>recycle</code>
+	 *         once nobody uses it.
+	 * @throws IOException
+	 *             If the payload isn't a valid image.
+	 */
+	BufferedImage decodeImage(Frame frame, int width, int height) throws IOException {
+		input.setPayload(frame.getPayloadArray(), frame.getPayloadOffset(), frame.getPayloadLength());
+		try {
+			reader.setInput(input, true, true);
+			int sourceWidth = reader.getWidth(0);
+			int sourceHeight = reader.getHeight(0);
+			// keep every n-th pixel, as long as the image still covers the display
+			int subsampling = Math.max(1,
+					(int) Math.min((double) sourceWidth / width, (double) sourceHeight / height));
+			BufferedImage image = acquireImage((sourceWidth + subsampling - 1) / subsampling,
+					(sourceHeight + subsampling - 1) / subsampling);
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			param.setDestination(image);
+			try {
+				return reader.read(0, param);
+			}
+			catch (IOException | RuntimeException e) {
+				recycle(image);
+				throw e;
+			}
+		}
+		finally {
+			param.setDestination(null);
+			input.setPayload(null, 0, 0);
+		}
+	}
+
+	// takes a free image of the size and type, the pool starts over when either changes (another video)
+	private synchronized BufferedImage acquireImage(int width, int height) throws IOException {
+		ImageTypeSpecifier type = reader.getImageTypes(0).next();
+		// the usual type for colour is BGR, which the reader can only copy into row by row with a new array
+		if (type.getNumBands() == 3) type = RGB_TYPE;
+		if (width != imageWidth || height != imageHeight || !type.equals(imageType)) {
+			freeImages.clear();
+			imageWidth = width;
+			imageHeight = height;
+			imageType = type;
+		}
+		BufferedImage image = freeImages.poll();
+		return image != null ? image : imageType.createBufferedImage(width, height);
+	}
+
+	/**
+	 * Gives back an image returned by <code>decodeImage</code>, to decode
+	 * another frame into it. Images of an older size or type are dropped.
+	 */
+	synchronized void recycle(Image image) {
+		if (!(image instanceof BufferedImage) || imageType == null) return;
+		BufferedImage buffered = (BufferedImage) image;
+		if (buffered.getWidth() == imageWidth && buffered.getHeight() == imageHeight
+				&& buffered.getColorModel().equals(imageType.getColorModel())
+				&& freeImages.size() < MAXIMUM_FREE_IMAGES)
+			freeImages.add(buffered);
+	}
+
+	/**
+	 * Decodes the JPEG payload of a frame and scales it to fit in the given
+	 * size, keeping its aspect ratio, into a new image. Used for frames that
+	 * weren't prepared.
+	 *
+	 * @return The scaled image, or null if the payload couldn't be decoded.
+	 * @throws IOException
+	 *             If the payload isn't a valid image.
+	 */
+	public static Image decode(Frame frame, int width, int height) throws IOException {
+		BufferedImage source = ImageIO.read(new ByteArrayInputStream(frame.getPayloadArray(),
+				frame.getPayloadOffset(), frame.getPayloadLength()));
+		if (source == null) return null;
+
+		double scale = Math.min((double) width / source.getWidth(), (double) height / source.getHeight());
+		int scaledWidth = Math.max(1, (int) (source.getWidth() * scale));
+		int scaledHeight = Math.max(1, (int) (source.getHeight() * scale));
+		BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(source, 0, 0, scaledWidth, scaledHeight, null);
+		}
+		finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	// the payload of the frame being decoded as an ImageInputStream, the same one for every frame
+	private static class PayloadInputStream extends ImageInputStreamImpl {
+		private byte[] data;
+		private int offset;
+		private int length;
+
+		void setPayload(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			streamPos = 0;
+			bitOffset = 0;
+			flushedPos = 0;
+		}
+
+		@Override
+		public int read() {
+			bitOffset = 0;
+			if (streamPos >= length) return -1;
+			return data[offset + (int) streamPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			bitOffset = 0;
+			if (len == 0) return 0;
+			int count = (int) Math.min(len, length - streamPos);
+			if (count <= 0) return -1;
+			System.arraycopy(data, offset + (int) streamPos, b, off, count);
+			streamPos += count;
+			return count;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+	}
+}
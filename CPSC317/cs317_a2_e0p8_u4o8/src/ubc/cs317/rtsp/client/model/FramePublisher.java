@@ -0,0 +1,171 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.listener.ListenerQueue;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * The frames played by a session, for consumers that want to go at their own
+ * pace (transcoders, thumbnailers, quality analyzers) rather than be pushed
+ * every frame like a SessionListener.
+ *
+ * Each subscriber is called on a thread of its own, through a ListenerQueue
+ * holding up to 8 frames while it is busy in <code>onNext</code>. A frame is
+ * only queued if the subscriber asked for it with <code>request</code>, the
+ * demand is taken as the frame is played: frames played while there is no
+ * demand are skipped, not kept for later, so a subscriber that stops asking
+ * costs no memory and never gets stale frames. A frame dropped from a full
+ * queue gives its demand back. The skipped frames are counted with the
+ * listener drops of the session.
+ *
+ * A frame given to <code>onNext</code> is only valid until the method
+ * returns, it must be retained (<code>Frame.retain</code>) to be kept longer,
+ * and released once done. The subscribers are completed when the connection
+ * of the session is closed.
+ */
+public class FramePublisher implements Flow.Publisher<Frame> {
+	private static final int CAPACITY = 8; // frames waiting while the subscriber is busy
+
+	private final Session session;
+	private final SessionMetrics metrics;
+	private final List<FrameSubscription> subscriptions = new CopyOnWriteArrayList<FrameSubscription>();
+	private boolean closed; // guarded by this
+
+	FramePublisher(Session session, SessionMetrics metrics) {
+		this.session = session;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Frame> subscriber) {
+		if (subscriber == null) throw new NullPointerException();
+		FrameSubscription subscription = new FrameSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		synchronized (this) {
+			if (closed) {
+				subscription.finish(null);
+				return;
+			}
+			subscriptions.add(subscription);
+			// after onSubscribe, so frames can't get to the subscriber before it
+			session.addListenerQueue(subscription.queue);
+		}
+	}
+
+	/**
+	 * Completes every subscriber, once the frames waiting for it are
+	 * delivered. Later subscribers are completed right away.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		for (FrameSubscription subscription : subscriptions)
+			subscription.finish(null);
+	}
+
+	/**
+	 * A subscriber, with its demand. It receives the frames of the session as
+	 * a SessionListener, on the thread of its queue.
+	 */
+	private class FrameSubscription implements Flow.Subscription, SessionListener {
+		private final Flow.Subscriber<? super Frame> subscriber;
+		private final ListenerQueue queue;
+		private final AtomicLong demand = new AtomicLong();
+		private volatile boolean cancelled;
+		private volatile boolean done; // the frames waiting still go out, then onComplete or onError
+
+		private FrameSubscription(Flow.Subscriber<? super Frame> subscriber) {
+			this.subscriber = subscriber;
+			this.queue = new ListenerQueue(this, ListenerQueue.DROP_OLDEST, CAPACITY, metrics) {
+				@Override
+				protected boolean acceptFrame(Frame frame) {
+					if (frame == null || cancelled) return false;
+					if (takeDemand()) return true;
+					metrics.listenerFrameDropped();
+					return false;
+				}
+
+				@Override
+				protected void frameDropped(Frame frame) {
+					addDemand(1);
+				}
+			};
+		}
+
+		@Override
+		public void request(long n) {
+			if (cancelled || done) return;
+			if (n <= 0) {
+				// rule 3.9 of the reactive streams specification
+				finish(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+			addDemand(n);
+		}
+
+		private void addDemand(long n) {
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				if (current == Long.MAX_VALUE) return;
+				next = current + n < 0 ? Long.MAX_VALUE : current + n; // unbounded once it overflows
+			} while (!demand.compareAndSet(current, next));
+		}
+
+		// for a frame about to be queued, on the playout side, false if there's no demand
+		private boolean takeDemand() {
+			long current;
+			do {
+				current = demand.get();
+				if (current == 0) return false;
+				if (current == Long.MAX_VALUE) return true;
+			} while (!demand.compareAndSet(current, current - 1));
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled) return;
+			cancelled = true;
+			subscriptions.remove(this);
+			session.removeListenerQueue(queue);
+			queue.close();
+		}
+
+		// stops the subscription, and ends it with onComplete, or onError if there's an error
+		private void finish(final Throwable error) {
+			if (cancelled || done) return;
+			done = true;
+			subscriptions.remove(this);
+			session.removeListenerQueue(queue);
+			queue.finish(new Runnable() {
+				@Override
+				public void run() {
+					if (error == null) subscriber.onComplete();
+					else subscriber.onError(error);
+				}
+			});
+		}
+
+		@Override
+		public void frameReceived(Frame frame) {
+			// the demand was taken when the frame was queued
+			if (frame == null || cancelled) return;
+			subscriber.onNext(frame);
+		}
+
+		@Override
+		public void videoNameChanged(String videoName) {}
+
+		@Override
+		public void exceptionThrown(RTSPException exception) {}
+	}
+}
@@ -13,10 +13,13 @@
 
 package ubc.cs317.rtsp.client.model;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.listener.ListenerQueue;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
 import ubc.cs317.rtsp.client.net.RTSPConnection;
 
@@ -27,9 +30,14 @@ import ubc.cs317.rtsp.client.net.RTSPConnection;
  */
 public class Session {
 
-	private Set<SessionListener> sessionListeners = new HashSet<SessionListener>();
+	private static final int DEFAULT_LISTENER_CAPACITY = 8; // frames waiting for each listener
+
+	// copied on write, so frames are handed out without a lock while listeners come and go
+	private List<ListenerQueue> sessionListeners = new CopyOnWriteArrayList<ListenerQueue>();
 	private RTSPConnection rtspConnection;
-	private String videoName = null;
+	private FrameDecoder frameDecoder;
+	private FramePublisher framePublisher;
+	private volatile String videoName = null;
 
 	/**
 	 * Creates a new RTSP session. This constructor will also create a new
@@ -47,35 +55,102 @@ public class Session {
 	public Session(String server, int port) throws RTSPException {
 
 		rtspConnection = new RTSPConnection(this, server, port);
+		frameDecoder = new FrameDecoder(rtspConnection.getMetrics());
+		framePublisher = new FramePublisher(this, rtspConnection.getMetrics());
 	}
 
 	/**
 	 * Adds a new listener interface to be called every time a session event
 	 * (such as a change in video name or a new frame) happens. Any interaction
-	 * with user interfaces is done through these listeners.
+	 * with user interfaces is done through these listeners. The listener is
+	 * called on a thread of its own, with up to 8 frames waiting for it; when
+	 * it falls further behind, the oldest frames are dropped.
+	 * 
+	 * @param listener
+	 *            A SessionListener to be called when a session event happens.
+	 */
+	public void addSessionListener(SessionListener listener) {
+		addSessionListener(listener, ListenerQueue.DROP_OLDEST, DEFAULT_LISTENER_CAPACITY);
+	}
+
+	/**
+	 * Adds a new listener, called on a thread of its own with a queue of the
+	 * given size. A slow listener only delays itself, the frames it can't
+	 * keep up with are dropped as the policy says.
 	 * 
 	 * @param listener
 	 *            A SessionListener to be called when a session event happens.
+	 * @param policy
+	 *            ListenerQueue.DROP_OLDEST or ListenerQueue.LATEST_ONLY.
+	 * @param capacity
+	 *            The number of frames that can wait for the listener.
 	 */
-	public synchronized void addSessionListener(SessionListener listener) {
-		sessionListeners.add(listener);
-		listener.videoNameChanged(this.videoName);
+	public void addSessionListener(SessionListener listener, int policy, int capacity) {
+		addListenerQueue(new ListenerQueue(listener, policy, capacity, rtspConnection.getMetrics()));
+	}
+
+	// the queue is told the current video name first
+	synchronized void addListenerQueue(ListenerQueue queue) {
+		sessionListeners.add(queue);
+		queue.videoNameChanged(this.videoName);
+	}
+
+	// the caller closes or finishes the queue
+	void removeListenerQueue(ListenerQueue queue) {
+		sessionListeners.remove(queue);
 	}
 
 	/**
 	 * Removes an existing listener from the list of listeners to be called for
-	 * session events.
+	 * session events. Events still waiting for it are discarded.
 	 * 
 	 * @param listener
 	 *            A SessionListener that should no longer be called when a
 	 *            session event happens.
 	 */
-	public void removeSessionListener(SessionListener listener) {
-		sessionListeners.remove(listener);
+	public synchronized void removeSessionListener(SessionListener listener) {
+		for (ListenerQueue queue : sessionListeners) {
+			if (queue.getListener() == listener) {
+				sessionListeners.remove(queue);
+				queue.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the frames played by this session as a Flow.Publisher, for
+	 * consumers that process them at their own pace. Frames played while a
+	 * subscriber has no outstanding demand are skipped. See FramePublisher.
+	 * 
+	 * @return The publisher of the frames of this session.
+	 */
+	public Flow.Publisher<Frame> getFramePublisher() {
+		return framePublisher;
 	}
 
 	/**
-	 * Opens a new video file in the interface.
+	 * Opens a new video file in the interface. The SETUP and PLAY requests are
+	 * sent at once, and this method returns without waiting for the server.
+	 * Listeners are told about the new video once both are answered.
+	 * 
+	 * @param videoName
+	 *            The name (URL) of the video to be opened. It should correspond
+	 *            to a local file in the server.
+	 * @return A future completed once the video is open, or completed
+	 *         exceptionally with an RTSPException if the server does not
+	 *         accept the request, or in case of a connectivity problem.
+	 */
+	public CompletableFuture<Void> openAsync(final String videoName) {
+		return rtspConnection.setupAsync(videoName).thenRun(new Runnable() {
+			@Override
+			public void run() {
+				setVideoName(videoName);
+			}
+		});
+	}
+
+	/**
+	 * Opens a new video file in the interface, waiting for the server.
 	 * 
 	 * @param videoName
 	 *            The name (URL) of the video to be opened. It should correspond
@@ -85,18 +160,27 @@ public class Session {
 	 *             connectivity problem.
 	 */
 	public void open(String videoName) throws RTSPException {
-		rtspConnection.setup(videoName);
-		this.videoName = videoName;
-		for (SessionListener listener : sessionListeners)
-			listener.videoNameChanged(this.videoName);
+		RTSPConnection.await(openAsync(videoName));
 	}
 
 	/**
 	 * Starts to play the existing file. It should only be called once a file
-	 * has been opened. This function will return immediately after the request
-	 * was responded. Frames will be received in the background and will be
-	 * handled by the <code>processReceivedFrame</code> method. If the video has
-	 * been paused previously, playback will resume where it stopped.
+	 * has been opened. This function returns right away, the future is
+	 * completed once the request is responded. Frames will be received in the
+	 * background and will be handled by the <code>processReceivedFrame</code>
+	 * method. If the video has been paused previously, playback will resume
+	 * where it stopped.
+	 * 
+	 * @return A future completed exceptionally with an RTSPException if the
+	 *         server does not accept the request, or in case of a
+	 *         connectivity problem.
+	 */
+	public CompletableFuture<Void> playAsync() {
+		return rtspConnection.playAsync();
+	}
+
+	/**
+	 * Blocking version of <code>playAsync</code>.
 	 * 
 	 * @throws RTSPException
 	 *             If the server does not accept the request, or in case of a
@@ -108,9 +192,17 @@ public class Session {
 
 	/**
 	 * Pauses the playback the existing file. It should only be called once a
-	 * file has started playing. This function will return immediately after the
-	 * request was responded. The server might still send a few frames before
-	 * stopping the playback completely.
+	 * file has started playing. The server might still send a few frames,
+	 * which are kept for when playback resumes.
+	 * 
+	 * @return A completed future, pausing needs no request.
+	 */
+	public CompletableFuture<Void> pauseAsync() {
+		return rtspConnection.pauseAsync();
+	}
+
+	/**
+	 * Blocking version of <code>pauseAsync</code>.
 	 * 
 	 * @throws RTSPException
 	 *             If the server does not accept the request, or in case of a
@@ -120,20 +212,83 @@ public class Session {
 		rtspConnection.pause();
 	}
 
+	/**
+	 * Shows the frame before the one shown and pauses there. Frames played
+	 * recently are kept in a rewind window on the client, so going back needs
+	 * no request.
+	 * 
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if there is no rewind window.
+	 */
+	public CompletableFuture<Void> stepBackAsync() {
+		return rtspConnection.stepBackAsync();
+	}
+
+	/**
+	 * Shows the frame after the one shown and pauses there. Past the frames
+	 * of the rewind window, the next frame comes from the buffer.
+	 * 
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if there is no rewind window.
+	 */
+	public CompletableFuture<Void> stepForwardAsync() {
+		return rtspConnection.stepForwardAsync();
+	}
+
+	/**
+	 * Goes back by the given time, at most to the oldest frame of the rewind
+	 * window. Playback goes on from there if the video was playing.
+	 * 
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if there is no rewind window.
+	 */
+	public CompletableFuture<Void> seekBackAsync(long millis) {
+		return rtspConnection.seekBackAsync(millis);
+	}
+
+	/**
+	 * Plays the rewind window backwards from the frame shown, until its
+	 * oldest frame or a pause.
+	 * 
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if there is no rewind window.
+	 */
+	public CompletableFuture<Void> playBackwardAsync() {
+		return rtspConnection.playBackwardAsync();
+	}
+
 	/**
 	 * Closes the currently open file. It should only be called once a file has
-	 * been open.
+	 * been open. The video is closed for the listeners right away, while the
+	 * TEARDOWN request goes to the server.
+	 * 
+	 * @return A future completed once the server answered, or completed
+	 *         exceptionally with an RTSPException if the server does not
+	 *         accept the request, or in case of a connectivity problem.
+	 */
+	public synchronized CompletableFuture<Void> closeAsync() {
+		CompletableFuture<Void> result = rtspConnection.teardownAsync();
+		processReceivedFrame(null);
+		setVideoName(null);
+		return result;
+	}
+
+	/**
+	 * Blocking version of <code>closeAsync</code>.
 	 * 
 	 * @throws RTSPException
 	 *             If the server does not accept the request, or in case of a
 	 *             connectivity problem.
 	 */
-	public synchronized void close() throws RTSPException {
-		rtspConnection.teardown();
-		processReceivedFrame(null);
-		videoName = null;
-		for (SessionListener listener : sessionListeners)
-			listener.videoNameChanged(this.videoName);
+	public void close() throws RTSPException {
+		RTSPConnection.await(closeAsync());
+	}
+
+	// tells the listeners about the video now open, or null if none
+	private synchronized void setVideoName(String videoName) {
+		this.videoName = videoName;
+		for (ListenerQueue queue : sessionListeners)
+			queue.videoNameChanged(this.videoName);
 	}
 
 	/**
@@ -142,21 +297,50 @@ public class Session {
 	 */
 	public void closeConnection() {
 		rtspConnection.closeConnection();
+		framePublisher.close();
+		frameDecoder.close();
 	}
 
 	/**
 	 * Processes a frame received from the RTSP server. This method will direct
 	 * the frame to the user interface to be processed and presented to the
-	 * user.
+	 * user. It only queues the frame for each listener, retaining it until
+	 * the listener is done, and never waits for them.
 	 * 
 	 * @param frame
 	 *            The recently received frame.
 	 */
-	public synchronized void processReceivedFrame(Frame frame) {
+	public void processReceivedFrame(Frame frame) {
 		if (videoName == null)
 			return;
-		for (SessionListener listener : sessionListeners)
-			listener.frameReceived(frame);
+		for (ListenerQueue queue : sessionListeners)
+			queue.frameReceived(frame);
+	}
+
+	/**
+	 * Starts decoding a frame that will be received soon, so listeners get
+	 * the image from <code>Frame.getImage(width, height)</code> without
+	 * waiting. Frames are decoded for the size given by
+	 * <code>setDisplaySize</code>.
+	 * 
+	 * @param frame
+	 *            A frame that will be passed to processReceivedFrame soon.
+	 */
+	public void prepareFrame(Frame frame) {
+		frameDecoder.prepare(frame);
+	}
+
+	/**
+	 * Sets the size of the area frames are displayed in, which is the size
+	 * frames are decoded to ahead of time.
+	 * 
+	 * @param width
+	 *            The width of the display area, in pixels.
+	 * @param height
+	 *            The height of the display area, in pixels.
+	 */
+	public void setDisplaySize(int width, int height) {
+		frameDecoder.setDisplaySize(width, height);
 	}
 
 	/**
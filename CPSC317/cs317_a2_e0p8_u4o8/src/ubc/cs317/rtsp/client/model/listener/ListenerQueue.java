@@ -0,0 +1,216 @@
+package ubc.cs317.rtsp.client.model.listener;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Delivers the events of a session to one listener, in order, on a thread of
+ * its own, so a slow listener only falls behind by itself: the playout and
+ * the other listeners never wait for it.
+ *
+ * Frames wait in a bounded queue, retained until they are delivered. When a
+ * frame arrives and the queue is full, the overflow policy decides what goes:
+ * DROP_OLDEST drops the oldest frame waiting, and LATEST_ONLY keeps only the
+ * newest frame, which suits a display where a late frame is worthless. Other
+ * events (the video name) are never dropped.
+ */
+public class ListenerQueue {
+	/**
+	 * Overflow policies.
+	 */
+	public static final int DROP_OLDEST = 0;
+	public static final int LATEST_ONLY = 1;
+
+	private static final Object NO_FRAME = new Object(); // frameReceived(null), clears the display
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private final SessionListener listener;
+	private final int capacity;
+	private final SessionMetrics metrics;
+	private final ExecutorService executor;
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	// guarded by this
+	private final ArrayDeque<Object> events = new ArrayDeque<Object>(); // Frame, NO_FRAME or a video name event
+	private int frameCount;
+	private boolean draining;
+	private boolean closed;
+
+	/**
+	 * Creates the queue of a listener, with its own thread.
+	 *
+	 * @param policy
+	 *            DROP_OLDEST or LATEST_ONLY.
+	 * @param capacity
+	 *            The number of frames that can wait, LATEST_ONLY always keeps
+	 *            one.
+	 * @param metrics
+	 *            Where dropped frames are counted.
+	 */
+	public ListenerQueue(SessionListener listener, int policy, int capacity, SessionMetrics metrics) {
+		this.listener = listener;
+		this.capacity = policy == LATEST_ONLY ? 1 : Math.max(1, capacity);
+		this.metrics = metrics;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-listener-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public SessionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Queues a frame for the listener. The frame is retained until the
+	 * listener is done with it.
+	 *
+	 * @param frame
+	 *            The frame, or null to clear the display.
+	 */
+	public void frameReceived(Frame frame) {
+		if (!acceptFrame(frame)) return;
+		if (frame != null) frame.retain();
+		synchronized (this) {
+			if (!closed) {
+				while (frameCount >= capacity)
+					dropOldestFrame();
+				events.add(frame == null ? NO_FRAME : frame);
+				frameCount++;
+				scheduleDrain();
+				return;
+			}
+		}
+		if (frame != null) frame.release();
+	}
+
+	/**
+	 * Decides whether a frame is queued at all, on the thread giving it,
+	 * before it is queued. Every frame is by default.
+	 *
+	 * @param frame
+	 *            The frame, or null to clear the display.
+	 * @return False to skip the frame.
+	 */
+	protected boolean acceptFrame(Frame frame) {
+		return true;
+	}
+
+	/**
+	 * Called when a frame waiting in the queue is dropped to make room for a
+	 * newer one. Does nothing by default.
+	 */
+	protected void frameDropped(Frame frame) {}
+
+	/**
+	 * Queues a change of the video name for the listener.
+	 */
+	public void videoNameChanged(final String videoName) {
+		synchronized (this) {
+			if (closed) return;
+			events.add(new Runnable() {
+				@Override
+				public void run() {
+					listener.videoNameChanged(videoName);
+				}
+			});
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Queues a last event, delivered once those already waiting are, and
+	 * stops taking new ones. The thread ends after it.
+	 */
+	public void finish(Runnable last) {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			events.add(last);
+			scheduleDrain();
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Stops delivering events. Frames still waiting are released, and the
+	 * thread ends once the event being delivered, if any, is done.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			for (Object event : events)
+				if (event instanceof Frame) ((Frame) event).release();
+			events.clear();
+			frameCount = 0;
+		}
+		executor.shutdown();
+	}
+
+	// the queue is full, make room for one more frame
+	private void dropOldestFrame() {
+		Iterator<Object> iterator = events.iterator();
+		while (iterator.hasNext()) {
+			Object event = iterator.next();
+			if (event instanceof Frame || event == NO_FRAME) {
+				iterator.remove();
+				frameCount--;
+				if (event instanceof Frame) {
+					frameDropped((Frame) event);
+					((Frame) event).release();
+					metrics.listenerFrameDropped();
+				}
+				return;
+			}
+		}
+	}
+
+	private void scheduleDrain() {
+		if (draining) return;
+		draining = true;
+		executor.execute(drainTask);
+	}
+
+	// delivers events until the queue is empty, on the listener's thread
+	private void drain() {
+		while (true) {
+			Object event;
+			synchronized (this) {
+				event = events.poll();
+				if (event == null) {
+					draining = false;
+					return;
+				}
+				if (event instanceof Frame || event == NO_FRAME) frameCount--;
+			}
+			try {
+				if (event == NO_FRAME) listener.frameReceived(null);
+				else if (event instanceof Frame) listener.frameReceived((Frame) event);
+				else ((Runnable) event).run();
+			}
+			catch (RuntimeException e) {
+				// a broken listener shouldn't stop its own queue
+				e.printStackTrace();
+			}
+			finally {
+				if (event instanceof Frame) ((Frame) event).release();
+			}
+		}
+	}
+}
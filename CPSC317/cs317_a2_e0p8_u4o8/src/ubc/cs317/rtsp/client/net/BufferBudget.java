@@ -0,0 +1,151 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The most a session may keep buffered, so the memory used by a client stays
+ * predictable even when the viewer pauses a stream that keeps coming. The
+ * budget has a high and a low watermark, in bytes of payload and in frames
+ * (the JitterBuffer has a fixed number of slots). What happens above the high
+ * watermark depends on the policy:
+ * <ul>
+ * <li>PAUSE_SERVER: the listener is told, and sends a PAUSE to the server;
+ * once the buffer is back down to the low watermark the listener is told
+ * again, and sends a PLAY. Nothing is lost.</li>
+ * <li>DROP_OLDEST: the oldest frames are dropped until the buffer is back
+ * under the high watermark, so the buffer keeps the most recent part of the
+ * stream. The low watermark is not used.</li>
+ * </ul>
+ * The watermarks and policy come from system properties, see
+ * <code>fromSystemProperties</code>.
+ *
+ * <code>update</code> is called by both the receiver and the playout, with
+ * locks held; the listener must hand its work over to another thread.
+ */
+public class BufferBudget {
+	/**
+	 * Policies, what happens above the high watermark.
+	 */
+	public static final int PAUSE_SERVER = 0;
+	public static final int DROP_OLDEST = 1;
+
+	/**
+	 * System properties: the watermarks in bytes, and the policy, "pause"
+	 * (the default) or "drop".
+	 */
+	public static final String HIGH_WATERMARK_PROPERTY = "rtsp.buffer.highWatermark";
+	public static final String LOW_WATERMARK_PROPERTY = "rtsp.buffer.lowWatermark";
+	public static final String POLICY_PROPERTY = "rtsp.buffer.overflow";
+
+	private static final long DEFAULT_HIGH_WATERMARK = 16 * 1024 * 1024;
+	private static final double FRAME_HIGH_WATERMARK = 0.75; // of the slots of the buffer
+	private static final double FRAME_LOW_WATERMARK = 0.5;
+
+	/**
+	 * Told when the buffer crosses the watermarks, under the PAUSE_SERVER
+	 * policy. Calls alternate, starting with <code>highWatermarkReached</code>.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the buffer went over the high watermark.
+		 */
+		public void highWatermarkReached();
+
+		/**
+		 * Called when the buffer is back down to the low watermark.
+		 */
+		public void lowWatermarkReached();
+	}
+
+	private final long highBytes;
+	private final long lowBytes;
+	private final int highFrames;
+	private final int lowFrames;
+	private final int policy;
+	private final AtomicBoolean full = new AtomicBoolean();
+	private volatile Listener listener;
+
+	/**
+	 * Creates a budget.
+	 *
+	 * @param highBytes
+	 *            The high watermark, in bytes of payload.
+	 * @param lowBytes
+	 *            The low watermark, in bytes of payload.
+	 * @param frameCapacity
+	 *            The number of frames the buffer can hold, the watermarks in
+	 *            frames are fractions of it.
+	 * @param policy
+	 *            PAUSE_SERVER or DROP_OLDEST.
+	 */
+	public BufferBudget(long highBytes, long lowBytes, int frameCapacity, int policy) {
+		this.highBytes = highBytes;
+		this.lowBytes = Math.min(lowBytes, highBytes);
+		this.highFrames = (int) (frameCapacity * FRAME_HIGH_WATERMARK);
+		this.lowFrames = (int) (frameCapacity * FRAME_LOW_WATERMARK);
+		this.policy = policy;
+	}
+
+	/**
+	 * Creates a budget from the system properties: a high watermark of 16 MB
+	 * and a low watermark of half the high one, pausing the server, unless
+	 * the properties say otherwise.
+	 *
+	 * @param frameCapacity
+	 *            The number of frames the buffer can hold.
+	 */
+	public static BufferBudget fromSystemProperties(int frameCapacity) {
+		long high = DEFAULT_HIGH_WATERMARK;
+		long low = -1;
+		try {
+			high = Long.parseLong(System.getProperty(HIGH_WATERMARK_PROPERTY, Long.toString(high)));
+			low = Long.parseLong(System.getProperty(LOW_WATERMARK_PROPERTY, "-1"));
+		}
+		catch (NumberFormatException e) {
+			System.err.println("Invalid buffer watermark: " + e.getMessage());
+		}
+		if (low < 0) low = high / 2;
+		int policy = "drop".equalsIgnoreCase(System.getProperty(POLICY_PROPERTY)) ? DROP_OLDEST : PAUSE_SERVER;
+		return new BufferBudget(high, low, frameCapacity, policy);
+	}
+
+	/**
+	 * Sets the object told about crossing the watermarks, or null.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns true if a buffer holding the given amount is over the high
+	 * watermark.
+	 */
+	public boolean isOverHighWatermark(long bytes, int frames) {
+		return bytes > highBytes || frames > highFrames;
+	}
+
+	/**
+	 * Checks the buffer against the watermarks, and tells the listener when
+	 * one is crossed.
+	 *
+	 * @param bytes
+	 *            The bytes of payload in the buffer.
+	 * @param frames
+	 *            The frames in the buffer.
+	 */
+	public void update(long bytes, int frames) {
+		if (policy != PAUSE_SERVER) return;
+		Listener listener = this.listener;
+		if (isOverHighWatermark(bytes, frames)) {
+			if (full.compareAndSet(false, true) && listener != null) listener.highWatermarkReached();
+		}
+		else if (bytes <= lowBytes && frames <= lowFrames) {
+			if (full.compareAndSet(true, false) && listener != null) listener.lowWatermarkReached();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The amount of stream, in milliseconds, the playout should keep buffered. It
+ * follows the network: a few times the interarrival jitter, plus enough to
+ * wait for reordered packets and some slack for loss. Every stall of the
+ * playout adds to the target, and that extra slowly goes away again once the
+ * network has been calm for a while.
+ *
+ * <code>update</code> is called by the receiver for every packet and only
+ * does work once per UPDATE_INTERVAL_NS; <code>stalled</code> is called by
+ * the playout. The target itself can be read from any thread.
+ */
+public class BufferTarget {
+	private static final long INITIAL_TARGET_MS = 300;
+	private static final long MINIMUM_TARGET_MS = 100;
+	private static final long MAXIMUM_TARGET_MS = 5000;
+	private static final double JITTER_MULTIPLIER = 4;
+	private static final double REORDER_MULTIPLIER = 1.5;
+	private static final long LOSS_ALLOWANCE_MS = 1000; // extra buffering for a stream losing every packet
+	private static final double STALL_GROWTH = 1.5;
+	private static final double CALM_DECAY = 0.9; // per interval, once calm
+	private static final double CALM_LOSS_RATE = 0.01;
+	private static final long UPDATE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final long CALM_PERIOD_NS = TimeUnit.SECONDS.toNanos(10);
+
+	private volatile long targetMillis = INITIAL_TARGET_MS;
+	private volatile double lossRate;
+	private volatile double reorderRate;
+
+	// receiver side
+	private boolean started;
+	private long lastUpdateNanos;
+	private long expectedPrior;
+	private long receivedPrior;
+	private long reorderedPrior;
+
+	// shared between receiver and playout, guarded by this
+	private double stallExtraMillis;
+	private long lastStallNanos;
+	private long networkTargetMillis = INITIAL_TARGET_MS;
+
+	/**
+	 * Returns how much of the stream should be buffered before playing, in
+	 * milliseconds.
+	 */
+	public long getTargetMillis() {
+		return targetMillis;
+	}
+
+	/**
+	 * Returns the fraction of packets lost during the last interval.
+	 */
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * Returns the fraction of packets that arrived out of order during the
+	 * last interval.
+	 */
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	/**
+	 * Recomputes the target from the reception state, at most once per
+	 * interval. Called by the receiver thread after every packet.
+	 */
+	public void update(RTPSourceState state, long now) {
+		if (!started) {
+			started = true;
+			lastUpdateNanos = now;
+			synchronized (this) { lastStallNanos = now; }
+			expectedPrior = state.getExpected();
+			receivedPrior = state.getReceived();
+			reorderedPrior = state.getReordered();
+			return;
+		}
+		if (now - lastUpdateNanos < UPDATE_INTERVAL_NS) return;
+		lastUpdateNanos = now;
+
+		// loss and reorder fractions over the interval, as in RFC 3550 A.3
+		long expected = state.getExpected();
+		long received = state.getReceived();
+		long reordered = state.getReordered();
+		long expectedInterval = expected - expectedPrior;
+		long receivedInterval = received - receivedPrior;
+		long lostInterval = expectedInterval - receivedInterval;
+		lossRate = expectedInterval <= 0 || lostInterval <= 0 ? 0 : (double) lostInterval / expectedInterval;
+		reorderRate = receivedInterval <= 0 ? 0 : (double) (reordered - reorderedPrior) / receivedInterval;
+		expectedPrior = expected;
+		receivedPrior = received;
+		reorderedPrior = reordered;
+
+		double network = JITTER_MULTIPLIER * state.getJitter()
+				+ (reorderRate > 0 ? REORDER_MULTIPLIER * state.getReorderDistance() : 0)
+				+ lossRate * LOSS_ALLOWANCE_MS;
+		synchronized (this) {
+			networkTargetMillis = Math.round(network);
+			if (now - lastStallNanos > CALM_PERIOD_NS && lossRate < CALM_LOSS_RATE)
+				stallExtraMillis *= CALM_DECAY;
+			recompute();
+		}
+	}
+
+	/**
+	 * Notifies that the playout ran out of frames while the stream was still
+	 * going. The target grows so the next stall is less likely.
+	 */
+	public synchronized void stalled(long now) {
+		lastStallNanos = now;
+		stallExtraMillis = Math.min(MAXIMUM_TARGET_MS, stallExtraMillis + targetMillis * (STALL_GROWTH - 1));
+		recompute();
+	}
+
+	private void recompute() {
+		long target = Math.max(MINIMUM_TARGET_MS, networkTargetMillis) + Math.round(stallExtraMillis);
+		targetMillis = Math.min(MAXIMUM_TARGET_MS, target);
+	}
+}
@@ -0,0 +1,393 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+
+/**
+ * The cached packets of one video, in a directory of its own: segment files
+ * of SEGMENT_SIZE bytes, mapped in memory, holding the RTP packets back to
+ * back, and an index file. The index lists every packet by its position (the
+ * extended sequence number relative to the first packet recorded) with its
+ * timestamp relative to the first packet, its segment, offset and length.
+ * Packets are kept as received, so a replay goes through the same pipeline
+ * as the network; packets added later by a CacheFiller come from another RTP
+ * session and have their header rewritten to the numbering of the first one.
+ *
+ * The index file is "RTPCACHE", a version number (int), whether the whole
+ * video was received (boolean), whether a CacheFiller confirmed that the last
+ * packet is the end of the video (boolean), the sequence number, timestamp
+ * and SSRC of the first packet (ints), the number of segments (int), the
+ * number of packets (int) and one record per packet: position and timestamp
+ * (longs), segment, offset and length (ints), all big endian. It is written when the
+ * entry is closed, so an entry that was never closed has no index and is
+ * thrown away.
+ *
+ * Entries are shared by the stream recording or playing them and a
+ * CacheFiller, so everything is synchronized.
+ */
+class CacheEntry {
+	static final String INDEX_FILE = "index";
+	static final int SEGMENT_SIZE = 2 * 1024 * 1024;
+
+	private static final byte[] MAGIC = { 'R', 'T', 'P', 'C', 'A', 'C', 'H', 'E' };
+	private static final int VERSION = 2;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final int RTP_HEADER_LENGTH = 12;
+
+	// where a packet is, and its timestamp relative to the first packet
+	private static class Record {
+		final long timestamp;
+		final int segment;
+		final int offset;
+		final int length;
+
+		Record(long timestamp, int segment, int offset, int length) {
+			this.timestamp = timestamp;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final String key;
+	private final File directory;
+
+	// guarded by this
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final TreeMap<Long, Record> index = new TreeMap<Long, Record>();
+	private int writeOffset; // in the last segment
+	private boolean started;
+	private long firstSequence; // extended, of the recording session
+	private long firstTimestamp;
+	private int baseSequence; // as sent, of the first packet
+	private int baseTimestamp;
+	private int ssrc;
+	private boolean complete;
+	private boolean endExpected; // the server is asked to send, so silence is the end of the video
+	private boolean tailConfirmed;
+	private boolean modified;
+	private boolean closed;
+	int users; // guarded by the VideoCache
+
+	private CacheEntry(String key, File directory) {
+		this.key = key;
+		this.directory = directory;
+	}
+
+	/**
+	 * Creates an empty entry, to be recorded into, in a new directory.
+	 *
+	 * @throws IOException
+	 *             If the directory can't be created.
+	 */
+	static CacheEntry create(String key, File directory) throws IOException {
+		if (!directory.mkdirs() && !directory.isDirectory()) throw new IOException("Unable to create " + directory);
+		CacheEntry entry = new CacheEntry(key, directory);
+		entry.modified = true;
+		return entry;
+	}
+
+	/**
+	 * Opens an entry written earlier. An entry that isn't complete can't be
+	 * played, so it is returned without its packets and nothing is mapped.
+	 *
+	 * @throws IOException
+	 *             If the index or a segment can't be read, or the index is
+	 *             not one.
+	 */
+	static CacheEntry load(String key, File directory) throws IOException {
+		CacheEntry entry = new CacheEntry(key, directory);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory,
+				INDEX_FILE))));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION)
+				throw new IOException("Not a cache index: " + directory);
+			entry.complete = in.readBoolean();
+			if (!entry.complete) return entry;
+			entry.tailConfirmed = in.readBoolean();
+			entry.baseSequence = in.readInt();
+			entry.baseTimestamp = in.readInt();
+			entry.ssrc = in.readInt();
+			int segmentCount = in.readInt();
+			int packetCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++)
+				entry.segments.add(entry.mapSegment(i));
+			for (int i = 0; i < packetCount; i++) {
+				long position = in.readLong();
+				Record record = new Record(in.readLong(), in.readInt(), in.readInt(), in.readInt());
+				if (record.segment >= segmentCount || record.offset + record.length > SEGMENT_SIZE)
+					throw new IOException("Corrupt cache index: " + directory);
+				entry.index.put(position, record);
+				if (record.segment == segmentCount - 1)
+					entry.writeOffset = Math.max(entry.writeOffset, record.offset + record.length);
+			}
+			entry.started = true;
+		}
+		finally {
+			in.close();
+		}
+		return entry;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Records a packet of the stream being received, unless one with the same
+	 * sequence number is cached already. The packet is not modified.
+	 *
+	 * @param packet
+	 *            The datagram, from position 0 to its limit.
+	 * @param extendedSequence
+	 *            Its extended sequence number.
+	 * @param extendedTimestamp
+	 *            Its extended timestamp.
+	 */
+	synchronized void record(ByteBuffer packet, long extendedSequence, long extendedTimestamp) {
+		if (closed) return;
+		if (!started) {
+			started = true;
+			firstSequence = extendedSequence;
+			firstTimestamp = extendedTimestamp;
+			baseSequence = packet.getShort(2) & 0xffff;
+			baseTimestamp = packet.getInt(4);
+			ssrc = packet.getInt(8);
+		}
+		long position = extendedSequence - firstSequence;
+		if (index.containsKey(position)) return;
+		complete = false; // more to come after all
+		store(position, extendedTimestamp - firstTimestamp, packet, false);
+	}
+
+	/**
+	 * Tells whether the server is asked to send and the video plays, the only
+	 * time a stream that stops sending has reached the end of the video. A
+	 * stream paused by the client, or by the server on request because the
+	 * buffer is full, is just silent.
+	 */
+	synchronized void setEndExpected(boolean endExpected) {
+		this.endExpected = endExpected;
+	}
+
+	/**
+	 * Notes that the stream stopped sending, which means the whole video was
+	 * received if the end is expected, unless more packets are recorded
+	 * afterwards. The silence could still be the network failing, so the end
+	 * is only confirmed by a CacheFiller later.
+	 */
+	synchronized void streamEnded() {
+		if (started && !closed && endExpected) {
+			complete = true;
+			modified = true;
+		}
+	}
+
+	/**
+	 * Adds a packet missing from the entry, from another RTP session of the
+	 * same video, possibly after the last one. Its header is rewritten to the
+	 * numbering of the entry.
+	 *
+	 * @param position
+	 *            Where the packet goes, in the numbering of the entry.
+	 * @param timestamp
+	 *            Its timestamp, relative to the first packet of the entry.
+	 * @return True if the packet was missing.
+	 */
+	synchronized boolean fill(long position, long timestamp, ByteBuffer packet) {
+		if (closed || !started || index.containsKey(position)) return false;
+		store(position, timestamp, packet, true);
+		return true;
+	}
+
+	// appends the packet to the last segment, or to a new one if it doesn't fit
+	private void store(long position, long timestamp, ByteBuffer packet, boolean renumber) {
+		int length = packet.limit();
+		if (length < RTP_HEADER_LENGTH || length > SEGMENT_SIZE) return;
+		try {
+			if (segments.isEmpty() || writeOffset + length > SEGMENT_SIZE) {
+				segments.add(mapSegment(segments.size()));
+				writeOffset = 0;
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Cache of " + key + " stopped: " + e.getMessage());
+			closed = true;
+			return;
+		}
+		int segment = segments.size() - 1;
+		ByteBuffer target = segments.get(segment).duplicate();
+		target.position(writeOffset);
+		target.put(packet.array(), packet.arrayOffset(), length);
+		if (renumber) {
+			target.putShort(writeOffset + 2, (short) (baseSequence + position));
+			target.putInt(writeOffset + 4, (int) (baseTimestamp + timestamp));
+			target.putInt(writeOffset + 8, ssrc);
+		}
+		index.put(position, new Record(timestamp, segment, writeOffset, length));
+		writeOffset += length;
+		modified = true;
+	}
+
+	// maps a segment file, creating it at its full size if it's new
+	private MappedByteBuffer mapSegment(int number) throws IOException {
+		FileChannel channel = FileChannel.open(new File(directory, SEGMENT_PREFIX + number).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// the mapping stays valid once the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns true once the whole video was received, gaps aside.
+	 */
+	synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the number of packets missing between the first and the last
+	 * one cached, plus one until the last packet is confirmed to be the end
+	 * of the video.
+	 */
+	synchronized long getMissingCount() {
+		if (index.isEmpty()) return 0;
+		return index.lastKey() - index.firstKey() + 1 - index.size() + (tailConfirmed ? 0 : 1);
+	}
+
+	/**
+	 * Notes that another RTP session of the video stopped sending after the
+	 * packet at a position, which confirms the end of the entry if no packet
+	 * is cached after it.
+	 */
+	synchronized void tailReached(long position) {
+		if (closed || index.isEmpty() || position < index.lastKey() || tailConfirmed) return;
+		tailConfirmed = true;
+		modified = true;
+	}
+
+	/**
+	 * Returns the position of the first packet cached after the given one,
+	 * or -1 if there is none. Long.MIN_VALUE gives the first packet.
+	 */
+	synchronized long nextPosition(long position) {
+		Long next = index.higherKey(position);
+		return next == null ? -1 : next;
+	}
+
+	/**
+	 * Returns the timestamp of a cached packet, relative to the first one.
+	 */
+	synchronized long getTimestamp(long position) {
+		return index.get(position).timestamp;
+	}
+
+	/**
+	 * Copies a cached packet into a buffer of the pool.
+	 *
+	 * @return The packet, from position 0 to its limit.
+	 */
+	synchronized ByteBuffer read(long position, BufferPool pool) {
+		Record record = index.get(position);
+		ByteBuffer source = segments.get(record.segment).duplicate();
+		source.position(record.offset).limit(record.offset + record.length);
+		ByteBuffer packet = pool.acquire();
+		packet.put(source);
+		packet.flip();
+		return packet;
+	}
+
+	/**
+	 * Returns true if a packet with the same payload as the given one is
+	 * cached at a position, to line another RTP session of the video up with
+	 * the entry.
+	 */
+	synchronized boolean payloadEquals(long position, ByteBuffer packet) {
+		Record record = index.get(position);
+		if (record == null || record.length != packet.limit()) return false;
+		ByteBuffer cached = segments.get(record.segment).duplicate();
+		cached.position(record.offset + RTP_HEADER_LENGTH).limit(record.offset + record.length);
+		ByteBuffer payload = packet.duplicate();
+		payload.position(RTP_HEADER_LENGTH);
+		return cached.equals(payload);
+	}
+
+	/**
+	 * Writes the index if anything changed, and stops taking packets. An
+	 * entry with no packet is deleted instead.
+	 */
+	synchronized void close() {
+		if (closed && !modified) return;
+		closed = true;
+		if (!modified) return;
+		modified = false;
+		if (index.isEmpty()) {
+			VideoCache.delete(directory);
+			return;
+		}
+		// written next to the index and renamed over it, so a crash never leaves half an index
+		File temporary = new File(directory, INDEX_FILE + ".tmp");
+		try {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.writeBoolean(complete);
+				out.writeBoolean(tailConfirmed);
+				out.writeInt(baseSequence);
+				out.writeInt(baseTimestamp);
+				out.writeInt(ssrc);
+				out.writeInt(segments.size());
+				out.writeInt(index.size());
+				for (Map.Entry<Long, Record> packet : index.entrySet()) {
+					Record record = packet.getValue();
+					out.writeLong(packet.getKey());
+					out.writeLong(record.timestamp);
+					out.writeInt(record.segment);
+					out.writeInt(record.offset);
+					out.writeInt(record.length);
+				}
+			}
+			finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), new File(directory, INDEX_FILE).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to save the cache of " + key + ": " + e.getMessage());
+			VideoCache.delete(directory);
+		}
+	}
+}
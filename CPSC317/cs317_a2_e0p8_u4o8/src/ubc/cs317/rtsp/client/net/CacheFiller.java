@@ -0,0 +1,181 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * Fetches the packets missing from a complete CacheEntry (lost when it was
+ * recorded, and not recovered) in the background, on a thread of its own. It
+ * streams the video again over an RTSP connection of its own and adds the
+ * packets the entry is missing, until none is missing or the server stops
+ * sending; the playback of the entry goes on meanwhile. The end of the entry
+ * counts as missing until the filler got to it: a recording cut short by the
+ * network looks complete, and the filler adds the rest of the video.
+ *
+ * The new RTP session has its own sequence numbers and timestamps, so the
+ * filler first lines it up with the entry: it looks for a cached packet with
+ * the same payload as one received, within SEARCH_WINDOW packets of the same
+ * position.
+ */
+class CacheFiller implements Runnable {
+	private static final int RESPONSE_TIMEOUT_MS = 5000;
+	private static final int IDLE_TIMEOUT_MS = 2000; // the server reached the end of the video
+	private static final int MAXIMUM_PACKET_SIZE = 65536;
+	private static final int RTP_HEADER_LENGTH = 12;
+	private static final int SEARCH_WINDOW = 64;
+
+	private final VideoCache cache;
+	private final CacheEntry entry;
+	private final String server;
+	private final int port;
+	private final String videoName;
+
+	private final RTSPResponseParser parser = new RTSPResponseParser();
+	private final ByteBuffer received = ByteBuffer.allocate(4096).flip();
+	private final RTPSourceState sourceState = new RTPSourceState();
+	private Socket connection;
+	private int seq = 1;
+
+	// how the RTP session lines up with the entry, once it does
+	private boolean started;
+	private boolean aligned;
+	private long firstSequence;
+	private long firstTimestamp;
+	private long positionOffset;
+	private long timestampOffset;
+	private long lastPosition; // of the last packet received, in the numbering of the entry
+
+	private CacheFiller(VideoCache cache, CacheEntry entry, String server, int port, String videoName) {
+		this.cache = cache;
+		this.entry = entry;
+		this.server = server;
+		this.port = port;
+		this.videoName = videoName;
+	}
+
+	/**
+	 * Starts filling the gaps of an entry, if it has any. The entry is
+	 * retained until the filler is done.
+	 */
+	static void start(VideoCache cache, CacheEntry entry, String server, int port, String videoName) {
+		if (entry.getMissingCount() == 0) return;
+		cache.retain(entry);
+		Thread thread = new Thread(new CacheFiller(cache, entry, server, port, videoName), "cache-filler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		DatagramSocket socket = null;
+		try {
+			socket = new DatagramSocket();
+			connection = new Socket(server, port);
+			connection.setSoTimeout(RESPONSE_TIMEOUT_MS);
+			String session = request("SETUP", null, "Transport: RTP/UDP; client_port= " + socket.getLocalPort()
+					+ ";\n").getHeaderValue("Session");
+			request("PLAY", session, "");
+			receive(socket);
+			request("TEARDOWN", session, "");
+		}
+		catch (IOException e) {
+			System.err.println("Filling the cache of " + videoName + " stopped: " + e.getMessage());
+		}
+		catch (RTSPException e) {
+			System.err.println("Filling the cache of " + videoName + " stopped: " + e.getMessage());
+		}
+		finally {
+			if (socket != null) socket.close();
+			try {
+				if (connection != null) connection.close();
+			}
+			catch (IOException e) {} // swallow
+			cache.release(entry);
+		}
+	}
+
+	// receives the stream until the entry has no gap or the server is done
+	private void receive(DatagramSocket socket) throws IOException {
+		byte[] data = new byte[MAXIMUM_PACKET_SIZE];
+		DatagramPacket datagram = new DatagramPacket(data, data.length);
+		socket.setSoTimeout(IDLE_TIMEOUT_MS);
+		try {
+			while (entry.getMissingCount() > 0) {
+				datagram.setLength(data.length);
+				socket.receive(datagram);
+				if (datagram.getLength() >= RTP_HEADER_LENGTH)
+					packetReceived(ByteBuffer.wrap(data, 0, datagram.getLength()).slice());
+			}
+		}
+		catch (SocketTimeoutException e) {
+			// the end of the video
+			if (aligned) entry.tailReached(lastPosition);
+		}
+	}
+
+	private void packetReceived(ByteBuffer packet) {
+		long sequence = sourceState.update(packet.getShort(2) & 0xffff);
+		if (sequence == RTPSourceState.INVALID_SEQUENCE) return;
+		long timestamp = sourceState.extendTimestamp(packet.getInt(4));
+		if (!aligned) {
+			if (!started) {
+				started = true;
+				firstSequence = sequence;
+				firstTimestamp = timestamp;
+			}
+			if (!align(packet, sequence - firstSequence, timestamp - firstTimestamp)) return;
+		}
+		long position = sequence - firstSequence + positionOffset;
+		lastPosition = Math.max(lastPosition, position);
+		entry.fill(position, timestamp - firstTimestamp + timestampOffset, packet);
+	}
+
+	// looks for the packet in the entry, nearest positions first
+	private boolean align(ByteBuffer packet, long position, long timestamp) {
+		for (int distance = 0; distance <= SEARCH_WINDOW; distance++) {
+			for (int sign = 1; sign >= -1; sign -= 2) {
+				long cached = position + sign * distance;
+				if (entry.payloadEquals(cached, packet)) {
+					aligned = true;
+					positionOffset = cached - position;
+					timestampOffset = entry.getTimestamp(cached) - timestamp;
+					return true;
+				}
+				if (distance == 0) break;
+			}
+		}
+		return false;
+	}
+
+	// sends a request and waits for its response, which must be a success
+	private RTSPResponseParser request(String method, String session, String headers) throws IOException,
+			RTSPException {
+		String text = method + " " + videoName + " RTSP/1.0\n" + "CSeq: " + seq++ + "\n"
+				+ (session == null ? "" : "Session: " + session + "\n") + headers + "\n";
+		OutputStream out = connection.getOutputStream();
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		InputStream in = connection.getInputStream();
+		while (true) {
+			if (!received.hasRemaining()) {
+				int count = in.read(received.array(), 0, received.capacity());
+				if (count < 0) throw new IOException("Connection closed by server.");
+				received.position(0);
+				received.limit(count);
+			}
+			if (parser.parse(received) == RTSPResponseParser.COMPLETE) break;
+		}
+		if (parser.getResponseCode() != 200)
+			throw new RTSPException(method + " failed with code " + parser.getResponseCode() + ".");
+		return parser;
+	}
+}
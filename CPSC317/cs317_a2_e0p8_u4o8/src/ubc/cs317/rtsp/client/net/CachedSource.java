@@ -0,0 +1,88 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+
+/**
+ * Plays the packets of a CacheEntry into a PlaybackPipeline as if they came
+ * from the server: in order, at the timing of their timestamps, from where
+ * the previous start stopped. Packets cached after the source started (by a
+ * CacheFiller) are played if the source hasn't gone past them yet. Once the
+ * last packet is sent, the pipeline is told the stream went idle so the end
+ * of the buffer plays out.
+ *
+ * Packets are sent by tasks on the PlayoutScheduler, one pending at a time,
+ * so the pipeline still gets them from one thread at a time.
+ */
+class CachedSource {
+	private static final long NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final CacheEntry entry;
+	private final PlaybackPipeline pipeline;
+	private final PlayoutScheduler scheduler;
+	private final BufferPool pool;
+	private final Runnable sendTask = new Runnable() {
+		@Override
+		public void run() {
+			sendNextPacket();
+		}
+	};
+
+	// guarded by this
+	private boolean playing;
+	private long nextPosition;
+	private long anchorNanos;
+	private long anchorTimestamp;
+	private Future<?> pendingTask;
+	private boolean scheduled; // until the task runs, a stop may come too late to cancel it
+
+	CachedSource(CacheEntry entry, PlaybackPipeline pipeline, PlayoutScheduler scheduler, BufferPool pool) {
+		this.entry = entry;
+		this.pipeline = pipeline;
+		this.scheduler = scheduler;
+		this.pool = pool;
+		this.nextPosition = entry.nextPosition(Long.MIN_VALUE);
+	}
+
+	/**
+	 * Starts (or resumes) sending packets.
+	 */
+	synchronized void start() {
+		if (playing || nextPosition < 0) return;
+		playing = true;
+		anchorNanos = scheduler.nanoTime();
+		anchorTimestamp = entry.getTimestamp(nextPosition);
+		if (!scheduled) schedule(anchorNanos);
+	}
+
+	/**
+	 * Stops sending packets.
+	 */
+	synchronized void stop() {
+		playing = false;
+		if (pendingTask != null && pendingTask.cancel(false)) scheduled = false;
+		pendingTask = null;
+	}
+
+	private void schedule(long deadlineNanos) {
+		scheduled = true;
+		pendingTask = scheduler.schedule(sendTask, deadlineNanos);
+	}
+
+	private synchronized void sendNextPacket() {
+		pendingTask = null;
+		scheduled = false;
+		if (!playing) return;
+		pipeline.packetReceived(entry.read(nextPosition, pool), scheduler.nanoTime());
+		nextPosition = entry.nextPosition(nextPosition);
+		if (nextPosition < 0) {
+			playing = false;
+			pipeline.streamIdle();
+			return;
+		}
+		long due = anchorNanos + (entry.getTimestamp(nextPosition) - anchorTimestamp) * NANOS_PER_TIMESTAMP_UNIT;
+		schedule(due);
+	}
+}
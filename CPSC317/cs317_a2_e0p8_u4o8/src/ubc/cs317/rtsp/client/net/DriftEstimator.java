@@ -0,0 +1,134 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how fast the clock of the sender runs compared to ours, from the
+ * arrival times of packets against their RTP timestamps. The transit time of
+ * a packet (arrival minus timestamp) is its network delay plus a constant
+ * offset, so it only drifts when the clocks do. Jitter and queueing only ever
+ * add delay, so the estimator keeps the smallest transit of each
+ * WINDOW_NS window, the packets that went through fastest, and fits a line
+ * through the last WINDOWS of them: its slope is the drift.
+ *
+ * A gap in the stream (pause, outage) or a jump in the transit (the sender
+ * restarted its clock) starts the windows over, while keeping the last
+ * estimate. <code>update</code> is called by the receiver thread, the rate
+ * can be read from any thread.
+ */
+public class DriftEstimator {
+	private static final long WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final int WINDOWS = 64;
+	private static final int MINIMUM_WINDOWS = 6;
+	private static final long GAP_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final double TRANSIT_STEP_MS = 250;
+	private static final double MAXIMUM_DRIFT = 0.1; // anything further is a broken estimate, not a clock
+	private static final double NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// only touched by the receiver thread
+	// the fastest packet of each window, relative to the origin, in timestamp units
+	private final double[] windowArrival = new double[WINDOWS];
+	private final double[] windowTransit = new double[WINDOWS];
+	private int windowCount;
+	private int nextWindow;
+	private boolean started;
+	private long originNanos;
+	private long originTimestamp;
+	private long lastArrivalNanos;
+	private long windowStartNanos;
+	private double minimumTransit;
+	private double minimumArrival;
+
+	private volatile double rate = 1;
+
+	/**
+	 * Adds a packet to the estimate. Packets sent again on request must not
+	 * be given, their transit includes the request.
+	 *
+	 * @param extendedTimestamp
+	 *            The extended RTP timestamp of the packet.
+	 * @param arrivalNanos
+	 *            The time the packet arrived.
+	 */
+	public void update(long extendedTimestamp, long arrivalNanos) {
+		if (started && arrivalNanos - lastArrivalNanos > GAP_NS) started = false;
+		lastArrivalNanos = arrivalNanos;
+		if (!started) {
+			// differences from an origin keep the doubles small and precise
+			started = true;
+			originNanos = arrivalNanos;
+			originTimestamp = extendedTimestamp;
+			windowCount = 0;
+			nextWindow = 0;
+			startWindow(arrivalNanos);
+		}
+		else if (arrivalNanos - windowStartNanos >= WINDOW_NS) {
+			endWindow();
+			startWindow(arrivalNanos);
+		}
+
+		double arrival = (arrivalNanos - originNanos) / NANOS_PER_TIMESTAMP_UNIT;
+		double transit = arrival - (extendedTimestamp - originTimestamp);
+		if (transit < minimumTransit) {
+			minimumTransit = transit;
+			minimumArrival = arrival;
+		}
+	}
+
+	private void startWindow(long now) {
+		windowStartNanos = now;
+		minimumTransit = Double.MAX_VALUE;
+	}
+
+	private void endWindow() {
+		if (windowCount > 0) {
+			double previous = windowTransit[(nextWindow + WINDOWS - 1) % WINDOWS];
+			if (Math.abs(minimumTransit - previous) > TRANSIT_STEP_MS) windowCount = 0;
+		}
+		windowArrival[nextWindow] = minimumArrival;
+		windowTransit[nextWindow] = minimumTransit;
+		nextWindow = (nextWindow + 1) % WINDOWS;
+		if (windowCount < WINDOWS) windowCount++;
+		if (windowCount >= MINIMUM_WINDOWS) estimate();
+	}
+
+	// least squares slope of the transit over arrival time
+	private void estimate() {
+		double meanArrival = 0;
+		double meanTransit = 0;
+		for (int i = 0; i < windowCount; i++) {
+			int window = (nextWindow + WINDOWS - 1 - i) % WINDOWS;
+			meanArrival += windowArrival[window];
+			meanTransit += windowTransit[window];
+		}
+		meanArrival /= windowCount;
+		meanTransit /= windowCount;
+		double covariance = 0;
+		double variance = 0;
+		for (int i = 0; i < windowCount; i++) {
+			int window = (nextWindow + WINDOWS - 1 - i) % WINDOWS;
+			double dx = windowArrival[window] - meanArrival;
+			covariance += dx * (windowTransit[window] - meanTransit);
+			variance += dx * dx;
+		}
+		if (variance == 0) return;
+		// the transit grows by the slope per unit of our time, so the sender clock runs at 1 - slope
+		double slope = covariance / variance;
+		rate = 1 - Math.max(-MAXIMUM_DRIFT, Math.min(MAXIMUM_DRIFT, slope));
+	}
+
+	/**
+	 * Returns the speed of the sender clock relative to ours: 1.01 when it
+	 * runs 1% fast. It's 1 until enough of the stream has been received.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Returns the drift of the sender clock, in parts per million.
+	 */
+	public double getDriftPpm() {
+		return (rate - 1) * 1e6;
+	}
+}
@@ -0,0 +1,210 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Shows the frames of a RewindWindow again: one at a time back and forth, or
+ * played forwards or backwards at the timing of their timestamps, without
+ * asking the server for anything. Going back stops the playout, which keeps
+ * its buffer (the server keeps sending, within the BufferBudget); when the
+ * frames played forwards reach the end of the window, the playout takes over
+ * again from the frame after it.
+ *
+ * Frames are given to the presenter like the playout does, and are copied out
+ * of the window for that, so the presenter sees no difference.
+ */
+public class InstantReplay {
+	private static final long NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final int STOPPED = 0;
+	private static final int FORWARD = 1;
+	private static final int BACKWARD = -1;
+
+	private final RewindWindow window;
+	private final Playout playout;
+	private final PlayoutScheduler scheduler;
+	private final BufferPool pool;
+	private final Playout.Presenter presenter;
+
+	// guarded by this
+	private boolean reviewing; // showing frames of the window, the playout is stopped
+	private long position; // the frame of the window shown
+	private int direction = STOPPED;
+	private long anchorNanos;
+	private long anchorTimestamp;
+	private Future<?> pendingTask;
+	private long generation; // of the pending task, like the playout's
+
+	/**
+	 * Creates the replay of a window.
+	 *
+	 * @param playout
+	 *            The playout the window is recorded from, stopped while
+	 *            reviewing.
+	 * @param presenter
+	 *            The receiver of the frames shown again. It must not record
+	 *            them in the window.
+	 */
+	public InstantReplay(RewindWindow window, Playout playout, PlayoutScheduler scheduler, BufferPool pool,
+			Playout.Presenter presenter) {
+		this.window = window;
+		this.playout = playout;
+		this.scheduler = scheduler;
+		this.pool = pool;
+		this.presenter = presenter;
+	}
+
+	/**
+	 * Returns true while frames of the window are shown instead of the
+	 * playout.
+	 */
+	public synchronized boolean isReviewing() {
+		return reviewing;
+	}
+
+	/**
+	 * Shows the frame before the one shown, and stays there.
+	 */
+	public synchronized void stepBack() {
+		if (!enterReview()) return;
+		stopReplay();
+		if (position > window.getFirst()) show(position - 1);
+	}
+
+	/**
+	 * Shows the frame after the one shown, and stays there. Past the end of
+	 * the window the playout takes over, still paused.
+	 */
+	public synchronized void stepForward() {
+		if (!reviewing) return;
+		stopReplay();
+		if (position + 1 < window.getEnd()) show(position + 1);
+		else reviewing = false;
+	}
+
+	/**
+	 * Goes back in the window, to the first frame at least the given time
+	 * before the one shown (or the oldest frame), and shows it.
+	 *
+	 * @param millis
+	 *            How far back to go.
+	 * @param play
+	 *            True to play forwards from there, false to stay there.
+	 */
+	public synchronized void seekBack(long millis, boolean play) {
+		if (!enterReview()) return;
+		stopReplay();
+		show(Math.max(window.getFirst(), window.find(window.getTimestamp(position) - millis)));
+		if (play) playForward();
+	}
+
+	/**
+	 * Plays the window forwards from the frame shown, and the playout after
+	 * it.
+	 */
+	public synchronized void playForward() {
+		if (!reviewing) {
+			playout.start();
+			return;
+		}
+		play(FORWARD);
+	}
+
+	/**
+	 * Plays the window backwards from the frame shown, down to the oldest
+	 * frame.
+	 */
+	public synchronized void playBackward() {
+		if (!enterReview()) return;
+		play(BACKWARD);
+	}
+
+	/**
+	 * Stops showing frames, on the frame shown. Has no effect on the playout.
+	 */
+	public synchronized void pause() {
+		stopReplay();
+	}
+
+	/**
+	 * Stops showing frames of the window, for good.
+	 */
+	public synchronized void close() {
+		stopReplay();
+		reviewing = false;
+	}
+
+	// stops the playout on its last frame, which the window has, false if the window is empty
+	private boolean enterReview() {
+		if (reviewing) return true;
+		if (window.getEnd() == window.getFirst()) return false;
+		playout.stop();
+		reviewing = true;
+		position = window.getEnd() - 1;
+		return true;
+	}
+
+	private void play(int direction) {
+		stopReplay();
+		this.direction = direction;
+		anchorNanos = scheduler.nanoTime();
+		anchorTimestamp = window.getTimestamp(position);
+		scheduleNext();
+	}
+
+	private void stopReplay() {
+		direction = STOPPED;
+		if (pendingTask != null) pendingTask.cancel(false);
+		pendingTask = null;
+		generation++;
+	}
+
+	// schedules the next frame in the direction of play, at the distance of its timestamp
+	private void scheduleNext() {
+		long next = position + direction;
+		if (next < window.getFirst()) {
+			direction = STOPPED; // reached the oldest frame
+			return;
+		}
+		if (next >= window.getEnd()) {
+			// caught up, the playout goes on from the frame after
+			direction = STOPPED;
+			reviewing = false;
+			playout.start();
+			return;
+		}
+		long distance = Math.abs(window.getTimestamp(next) - anchorTimestamp);
+		final long task = ++generation;
+		pendingTask = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				showNextFrame(task);
+			}
+		}, anchorNanos + distance * NANOS_PER_TIMESTAMP_UNIT);
+	}
+
+	private synchronized void showNextFrame(long task) {
+		// stopped or replaced after the task started, too late to cancel it
+		if (task != generation || direction == STOPPED) return;
+		pendingTask = null;
+		show(position + direction);
+		scheduleNext();
+	}
+
+	private void show(long number) {
+		Frame frame = window.read(number, pool);
+		if (frame == null) return;
+		position = number;
+		try {
+			presenter.prepare(frame);
+			presenter.present(frame);
+		}
+		finally {
+			frame.release();
+		}
+	}
+}
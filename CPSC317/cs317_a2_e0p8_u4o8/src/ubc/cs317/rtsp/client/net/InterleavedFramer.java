@@ -0,0 +1,145 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+
+/**
+ * Splits the packets interleaved with the RTSP messages of a connection
+ * (RTP/AVP/TCP, RFC 2326 section 10.12): each one is a '$', a channel number,
+ * a 16-bit length and the packet itself. Like the response parser, it works
+ * on whatever bytes the socket returned.
+ *
+ * Packets go into buffers taken from a BufferPool, the same as packets
+ * received on UDP, and once the header of a packet is read the rest of it can
+ * be read from the socket straight into its buffer (<code>getTarget</code>),
+ * so the payload is only copied when it came in the same read as the bytes
+ * before it. Packets larger than the buffers of the pool are skipped.
+ */
+public class InterleavedFramer {
+	/**
+	 * Results of <code>read</code>.
+	 */
+	public static final int INCOMPLETE = 0;
+	public static final int COMPLETE = 1;
+
+	private static final byte MAGIC = '$';
+	private static final int HEADER_LENGTH = 4;
+
+	private final BufferPool pool;
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private boolean inFrame;
+	private int headerLength; // bytes of the header read so far
+	private int channel;
+	private ByteBuffer packet; // the packet being read, null while skipping one
+	private int skipRemaining;
+
+	/**
+	 * Creates a framer.
+	 *
+	 * @param pool
+	 *            The pool packets are read into.
+	 */
+	public InterleavedFramer(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns true if the next byte of a buffer starts an interleaved packet.
+	 * Only meaningful between RTSP messages.
+	 */
+	public static boolean startsFrame(ByteBuffer in) {
+		return in.hasRemaining() && in.get(in.position()) == MAGIC;
+	}
+
+	/**
+	 * Returns true if part of a packet has been read, but not all of it.
+	 */
+	public boolean isInFrame() {
+		return inFrame;
+	}
+
+	/**
+	 * Reads bytes from a buffer until a packet is complete, or until the
+	 * buffer is empty. The first byte of a new packet must be the '$'.
+	 *
+	 * @return COMPLETE if a whole packet was read (and can be taken with
+	 *         <code>takePacket</code>), or INCOMPLETE if more bytes are
+	 *         needed or the packet was skipped.
+	 */
+	public int read(ByteBuffer in) {
+		if (!inFrame) {
+			inFrame = true;
+			headerLength = 0;
+		}
+		while (headerLength < HEADER_LENGTH) {
+			if (!in.hasRemaining()) return INCOMPLETE;
+			header[headerLength++] = in.get();
+			if (headerLength == HEADER_LENGTH) startPacket();
+		}
+
+		if (packet == null) {
+			int count = Math.min(skipRemaining, in.remaining());
+			in.position(in.position() + count);
+			skipRemaining -= count;
+			if (skipRemaining == 0) inFrame = false;
+			return INCOMPLETE;
+		}
+		if (packet.hasRemaining() && in.hasRemaining()) {
+			int count = Math.min(packet.remaining(), in.remaining());
+			in.get(packet.array(), packet.arrayOffset() + packet.position(), count);
+			packet.position(packet.position() + count);
+		}
+		return packet.hasRemaining() ? INCOMPLETE : COMPLETE;
+	}
+
+	private void startPacket() {
+		channel = header[1] & 0xff;
+		int length = (header[2] & 0xff) << 8 | header[3] & 0xff;
+		if (length > pool.getBufferSize()) {
+			packet = null;
+			skipRemaining = length;
+			return;
+		}
+		packet = pool.acquire();
+		packet.limit(length);
+	}
+
+	/**
+	 * Returns the buffer the rest of the current packet should be read into,
+	 * from its position to its limit, or null if the header isn't complete
+	 * yet or the packet is being skipped. After reading into it,
+	 * <code>read</code> (with an empty buffer) says if the packet is complete.
+	 */
+	public ByteBuffer getTarget() {
+		return inFrame && headerLength == HEADER_LENGTH ? packet : null;
+	}
+
+	/**
+	 * Returns the channel of the last complete packet.
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the last complete packet, from its start to its end. The caller
+	 * takes ownership of the buffer, which must be given back to the pool.
+	 */
+	public ByteBuffer takePacket() {
+		ByteBuffer complete = packet;
+		packet = null;
+		inFrame = false;
+		complete.flip();
+		return complete;
+	}
+
+	/**
+	 * Forgets any partial packet, giving its buffer back to the pool.
+	 */
+	public void reset() {
+		if (packet != null) pool.release(packet);
+		packet = null;
+		inFrame = false;
+	}
+}
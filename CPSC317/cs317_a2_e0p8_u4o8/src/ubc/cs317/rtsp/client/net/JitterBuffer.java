@@ -0,0 +1,246 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * A fixed capacity buffer of frames waiting to be played, indexed by extended
+ * sequence number modulo the capacity. It is meant for exactly one producer
+ * (the thread receiving packets) and one consumer (the playout), and
+ * publishes frames between them without locks: slots are only changed with
+ * compare-and-set, so whoever takes a frame out of a slot owns it and is
+ * responsible for releasing it. The consumer is not a thread but a role: the
+ * methods of the consumer are called with the lock of the playout held, by
+ * the playout thread, or by the producer to drop frames over budget
+ * (Playout.dropOverBudget).
+ *
+ * Duplicates and frames that arrive after a later frame has been played are
+ * rejected by <code>offer</code> in constant time, and playing a frame drops
+ * every earlier frame still in the buffer at once. The buffer counts the
+ * bytes of payload it holds, for the BufferBudget.
+ */
+public class JitterBuffer {
+
+	private final AtomicReferenceArray<Frame> slots;
+	private final int capacity;
+	private final int mask;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong(); // of payload
+
+	private static final long UNSET = Long.MIN_VALUE;
+
+	/**
+	 * Results of <code>offer</code>.
+	 */
+	public static final int ACCEPTED = 0;
+	public static final int LATE = 1;
+	public static final int DUPLICATE = 2;
+	public static final int TOO_FAR_AHEAD = 3;
+
+	// every frame with a sequence number up to this one is late (written by the consumer,
+	// and by the producer once to start the sequence at the first frame offered)
+	private volatile long playedSequence = UNSET;
+	// the highest sequence number offered so far (written by the producer)
+	private volatile long highestSequence = UNSET;
+	// the highest timestamp offered so far (written by the producer)
+	private volatile long highestTimestamp;
+
+	/**
+	 * Creates an empty buffer. The sequence starts at the first frame offered,
+	 * frames numbered before it will be rejected as late.
+	 *
+	 * @param capacity
+	 *            The number of frames the buffer can hold, rounded up to a
+	 *            power of two. Frames further ahead of the last played frame
+	 *            than the capacity are rejected.
+	 */
+	public JitterBuffer(int capacity) {
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = this.capacity - 1;
+		this.slots = new AtomicReferenceArray<Frame>(this.capacity);
+	}
+
+	/**
+	 * Returns the number of frames in the buffer that can still be played.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the size of the payloads of the frames in the buffer, in bytes.
+	 */
+	public long getBufferedBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of frames the buffer can hold.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the highest sequence number offered to the buffer.
+	 */
+	public long getHighestSequence() {
+		return highestSequence;
+	}
+
+	/**
+	 * Returns how much of the stream is buffered, in timestamp units: the
+	 * distance between the next frame to play and the newest frame received.
+	 * It's consumer side, but can be used by the producer as an estimate.
+	 */
+	public long getBufferedDuration() {
+		Frame next = peek();
+		if (next == null) return 0;
+		return Math.max(0, highestTimestamp - next.getExtendedTimestamp());
+	}
+
+	/**
+	 * Returns the sequence number of the last frame played (or skipped).
+	 */
+	public long getPlayedSequence() {
+		return playedSequence;
+	}
+
+	/**
+	 * Adds a frame to the buffer. Called by the producer only. If the frame is
+	 * rejected the caller keeps ownership of it.
+	 *
+	 * @return ACCEPTED if the buffer took the frame, otherwise LATE,
+	 *         DUPLICATE or TOO_FAR_AHEAD of the playout.
+	 */
+	public int offer(Frame frame) {
+		long sequence = sequenceOf(frame);
+		if (playedSequence == UNSET) {
+			// played is published before highest, so peek never sees one without the other
+			playedSequence = sequence - 1;
+			highestTimestamp = frame.getExtendedTimestamp();
+			highestSequence = sequence - 1;
+		}
+		if (sequence <= playedSequence)
+			return LATE;
+		if (sequence > playedSequence + capacity)
+			return TOO_FAR_AHEAD;
+
+		int index = (int) (sequence & mask);
+		Frame old = slots.get(index);
+		if (old != null && sequenceOf(old) == sequence)
+			return DUPLICATE;
+
+		// a different frame in the slot is a stale one a whole lap behind, which is late by now
+		if (old != null) {
+			if (slots.compareAndSet(index, old, null)) {
+				removed(old);
+				old.release();
+			}
+		}
+		// the consumer only ever empties slots, so only another producer could have filled this one
+		if (!slots.compareAndSet(index, null, frame))
+			throw new IllegalStateException("Frames offered by more than one producer");
+		added(frame);
+		if (frame.getExtendedTimestamp() > highestTimestamp) highestTimestamp = frame.getExtendedTimestamp();
+		if (sequence > highestSequence) highestSequence = sequence;
+
+		// the consumer may have moved past this frame while it was being inserted
+		if (sequence <= playedSequence && slots.compareAndSet(index, frame, null)) {
+			removed(frame);
+			return LATE;
+		}
+		return ACCEPTED;
+	}
+
+	/**
+	 * Returns the frame with the lowest sequence number that can still be
+	 * played, without removing it. Called by the consumer only. The frame stays
+	 * owned by the buffer until it's played.
+	 *
+	 * @return The next frame to play, or null if the buffer is empty.
+	 */
+	public Frame peek() {
+		return peekAfter(playedSequence);
+	}
+
+	/**
+	 * Returns the frame with the lowest sequence number after the given one
+	 * that can still be played, without removing it. Called by the consumer
+	 * only, to look at the frames following the next one.
+	 *
+	 * @return The first frame after <tt>sequence</tt>, or null if there is
+	 *         none.
+	 */
+	public Frame peekAfter(long sequence) {
+		long high = highestSequence;
+		for (sequence = Math.max(sequence, playedSequence) + 1; sequence <= high; sequence++) {
+			Frame frame = slots.get((int) (sequence & mask));
+			if (frame != null && sequenceOf(frame) == sequence)
+				return frame;
+		}
+		return null;
+	}
+
+	/**
+	 * Marks every frame up to and including <tt>sequence</tt> as played,
+	 * releasing those still in the buffer. Called by the consumer only, that is
+	 * with the lock of the playout held, whatever the thread.
+	 */
+	public void advanceTo(long sequence) {
+		long from = playedSequence + 1;
+		if (sequence < from) return;
+		playedSequence = sequence;
+		if (sequence - from < capacity) {
+			for (long s = from; s <= sequence; s++)
+				remove(s);
+		}
+		else {
+			// skipping more than a lap, every slot may hold a frame that is late now
+			for (int i = 0; i < capacity; i++) {
+				Frame frame = slots.get(i);
+				if (frame != null && sequenceOf(frame) <= sequence)
+					remove(sequenceOf(frame));
+			}
+		}
+	}
+
+	/**
+	 * Removes and releases every frame in the buffer.
+	 */
+	public void clear() {
+		for (int i = 0; i < capacity; i++) {
+			Frame frame = slots.get(i);
+			if (frame != null && slots.compareAndSet(i, frame, null)) {
+				removed(frame);
+				frame.release();
+			}
+		}
+	}
+
+	private void remove(long sequence) {
+		int index = (int) (sequence & mask);
+		Frame frame = slots.get(index);
+		if (frame != null && sequenceOf(frame) == sequence && slots.compareAndSet(index, frame, null)) {
+			removed(frame);
+			frame.release();
+		}
+	}
+
+	private void added(Frame frame) {
+		size.incrementAndGet();
+		bytes.addAndGet(frame.getPayloadLength());
+	}
+
+	private void removed(Frame frame) {
+		size.decrementAndGet();
+		bytes.addAndGet(-frame.getPayloadLength());
+	}
+
+	private static long sequenceOf(Frame frame) {
+		return frame.getExtendedSequenceNumber();
+	}
+}
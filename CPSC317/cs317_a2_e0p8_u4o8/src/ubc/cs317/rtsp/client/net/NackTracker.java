@@ -0,0 +1,200 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+
+/**
+ * Finds the packets missing from a stream and asks the sender for them again
+ * with RTCP generic NACKs (RFC 4585), for as long as they can still arrive
+ * before the playout needs them.
+ *
+ * A gap in the sequence numbers isn't reported right away, since the packets
+ * may only be reordered: the first request waits for a while (the reorder
+ * distance of the stream, at least MINIMUM_REORDER_WAIT_NS). Requests are
+ * repeated once per round trip, up to MAXIMUM_REQUESTS times, and a missing
+ * packet is given up once the playout has passed it or its deadline is less
+ * than a round trip away. The round trip is measured between the first
+ * request for a packet and its arrival.
+ *
+ * Called from the receiver thread only.
+ */
+public class NackTracker {
+	private static final int MAXIMUM_MISSING = 256;
+	private static final int MAXIMUM_GAP = 64; // larger gaps are an outage, not loss worth repairing
+	private static final int MAXIMUM_REQUESTS = 3;
+	private static final int MAXIMUM_NACK_ENTRIES = 64; // sequence numbers per feedback packet
+	private static final long MINIMUM_REORDER_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long INITIAL_ROUND_TRIP_NS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long MINIMUM_ROUND_TRIP_NS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final long NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Sends the feedback, on the RTCP port of the stream.
+	 */
+	public interface Sender {
+
+		/**
+		 * Asks the media source for packets again.
+		 *
+		 * @param sequenceNumbers
+		 *            The extended sequence numbers of the missing packets, in
+		 *            increasing order. Only valid during the call.
+		 * @param count
+		 *            The number of sequence numbers in the array.
+		 */
+		public void sendNack(int mediaSsrc, long[] sequenceNumbers, int count);
+	}
+
+	private final Sender sender;
+	private final JitterBuffer frameBuffer;
+	private final Playout playout;
+	private final SessionMetrics metrics;
+
+	// the missing packets, in increasing order of sequence number
+	private final long[] missingSequence = new long[MAXIMUM_MISSING];
+	private final long[] missingTimestamp = new long[MAXIMUM_MISSING]; // of the packet before the gap, a lower bound
+	private final long[] detectedNanos = new long[MAXIMUM_MISSING];
+	private final long[] requestedNanos = new long[MAXIMUM_MISSING]; // of the first request
+	private final long[] lastRequestNanos = new long[MAXIMUM_MISSING];
+	private final int[] requests = new int[MAXIMUM_MISSING];
+	private int missingCount;
+
+	private final long[] nack = new long[MAXIMUM_NACK_ENTRIES];
+	private boolean started;
+	private long highestSequence;
+	private long highestTimestamp;
+	private int mediaSsrc;
+	private long roundTripNanos = INITIAL_ROUND_TRIP_NS;
+
+	/**
+	 * Creates a tracker for a stream.
+	 *
+	 * @param sender
+	 *            Where the NACKs go.
+	 * @param frameBuffer
+	 *            The buffer of the stream, to know what has been played.
+	 * @param playout
+	 *            The playout of the stream, to know the deadlines.
+	 * @param metrics
+	 *            Where the requests and the recovered packets are counted.
+	 */
+	public NackTracker(Sender sender, JitterBuffer frameBuffer, Playout playout, SessionMetrics metrics) {
+		this.sender = sender;
+		this.frameBuffer = frameBuffer;
+		this.playout = playout;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns true if a packet with the given 16-bit sequence number was asked
+	 * for again, so it's a retransmission rather than a reordered packet.
+	 */
+	public boolean isRequested(int sequenceNumber) {
+		for (int i = 0; i < missingCount; i++) {
+			if (requests[i] > 0 && (missingSequence[i] & 0xffff) == (sequenceNumber & 0xffff)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Notes the arrival of a packet: packets skipped by a jump in sequence
+	 * numbers become missing, and a missing packet that arrives is removed.
+	 *
+	 * @return True if the packet had been asked for again.
+	 */
+	public boolean packetReceived(int ssrc, long sequence, long extendedTimestamp, long now) {
+		mediaSsrc = ssrc;
+		if (!started || sequence > highestSequence) {
+			if (started && sequence - highestSequence - 1 <= MAXIMUM_GAP) {
+				for (long missing = highestSequence + 1; missing < sequence; missing++)
+					addMissing(missing, now);
+			}
+			started = true;
+			highestSequence = sequence;
+			highestTimestamp = extendedTimestamp;
+			return false;
+		}
+		int index = indexOf(sequence);
+		if (index < 0) return false;
+		boolean requested = requests[index] > 0;
+		if (requests[index] == 1) {
+			// only sample packets requested once, otherwise which request it answers is unknown
+			long sample = Math.max(MINIMUM_ROUND_TRIP_NS, now - requestedNanos[index]);
+			roundTripNanos += (sample - roundTripNanos) / 8;
+		}
+		remove(index);
+		return requested;
+	}
+
+	/**
+	 * Sends a NACK for the missing packets that are due for a (new) request,
+	 * and gives up on the packets that can't make it anymore. Called for every
+	 * packet received, and on every tick of the receiver, so requests are
+	 * repeated (and given up) while no packet arrives too.
+	 *
+	 * @param reorderDistance
+	 *            How far back reordered packets usually are, in timestamp
+	 *            units.
+	 */
+	public void sendRequests(long now, double reorderDistance) {
+		long reorderWait = Math.max(MINIMUM_REORDER_WAIT_NS, (long) (reorderDistance * NANOS_PER_TIMESTAMP_UNIT));
+		if (missingCount == 0) return;
+		long played = frameBuffer.getPlayedSequence();
+		Playout.Clock clock = playout.getClock(); // once for every packet, not once for each
+		int count = 0;
+		for (int i = 0; i < missingCount; i++) {
+			long deadline = clock == null ? Long.MAX_VALUE : clock.deadlineOf(missingTimestamp[i]);
+			if (missingSequence[i] <= played || deadline - now < roundTripNanos
+					|| (requests[i] == MAXIMUM_REQUESTS && now - lastRequestNanos[i] > 2 * roundTripNanos)) {
+				remove(i--); // too late, or the last request wasn't answered either
+				continue;
+			}
+			if (count == nack.length || requests[i] == MAXIMUM_REQUESTS) continue;
+			if (requests[i] == 0 ? now - detectedNanos[i] < reorderWait : now - lastRequestNanos[i] < roundTripNanos)
+				continue;
+			if (requests[i] == 0) requestedNanos[i] = now;
+			requests[i]++;
+			lastRequestNanos[i] = now;
+			nack[count++] = missingSequence[i];
+		}
+		if (count == 0) return;
+		sender.sendNack(mediaSsrc, nack, count);
+		metrics.packetsRequested(count);
+	}
+
+	/**
+	 * Returns the estimated time between a request and the arrival of the
+	 * packet.
+	 */
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+
+	private void addMissing(long sequence, long now) {
+		if (missingCount == MAXIMUM_MISSING) remove(0); // the oldest is the least likely to make it
+		missingSequence[missingCount] = sequence;
+		missingTimestamp[missingCount] = highestTimestamp;
+		detectedNanos[missingCount] = now;
+		requests[missingCount] = 0;
+		missingCount++;
+	}
+
+	private int indexOf(long sequence) {
+		for (int i = 0; i < missingCount; i++) {
+			if (missingSequence[i] == sequence) return i;
+		}
+		return -1;
+	}
+
+	private void remove(int index) {
+		int moved = missingCount - index - 1;
+		System.arraycopy(missingSequence, index + 1, missingSequence, index, moved);
+		System.arraycopy(missingTimestamp, index + 1, missingTimestamp, index, moved);
+		System.arraycopy(detectedNanos, index + 1, detectedNanos, index, moved);
+		System.arraycopy(requestedNanos, index + 1, requestedNanos, index, moved);
+		System.arraycopy(lastRequestNanos, index + 1, lastRequestNanos, index, moved);
+		System.arraycopy(requests, index + 1, requests, index, moved);
+		missingCount--;
+	}
+}
@@ -0,0 +1,109 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the packets of a stream to a file, as they arrive, so the stream can
+ * be replayed later with the same timing (see PacketTraceReader). The format
+ * is a header made of the 8 bytes "RTPTRACE" and a version number (int),
+ * followed by one record per datagram: its arrival time in nanoseconds
+ * relative to the first packet (long), its length (int) and its bytes, all
+ * big endian.
+ *
+ * The receiver writes to the capture while another thread may close it, so
+ * both are synchronized; writes go to a buffer and rarely touch the disk. A
+ * capture that fails to write stops capturing rather than disturbing the
+ * stream.
+ *
+ * A capture of every session is written to a directory when the system
+ * property <code>rtsp.capture.dir</code> is set.
+ */
+public class PacketCapture {
+	public static final String DIRECTORY_PROPERTY = "rtsp.capture.dir";
+	public static final String FILE_EXTENSION = ".rtptrace";
+
+	static final byte[] MAGIC = { 'R', 'T', 'P', 'T', 'R', 'A', 'C', 'E' };
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final File file;
+	private DataOutputStream out;
+	private boolean started;
+	private long firstArrivalNanos;
+
+	private PacketCapture(File file, DataOutputStream out) {
+		this.file = file;
+		this.out = out;
+	}
+
+	/**
+	 * Creates a capture file, replacing any existing one.
+	 *
+	 * @throws IOException
+	 *             If the file can't be created.
+	 */
+	public static PacketCapture create(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+		}
+		catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		return new PacketCapture(file, out);
+	}
+
+	/**
+	 * Returns the file the capture is written to.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Appends a packet to the capture. The buffer's position and limit are
+	 * left unchanged.
+	 *
+	 * @param packet
+	 *            The datagram, from position 0 to its limit.
+	 * @param arrivalNanos
+	 *            The time it arrived, on any clock as long as it's always the
+	 *            same one.
+	 */
+	public synchronized void write(ByteBuffer packet, long arrivalNanos) {
+		if (out == null) return;
+		if (!started) {
+			started = true;
+			firstArrivalNanos = arrivalNanos;
+		}
+		try {
+			out.writeLong(arrivalNanos - firstArrivalNanos);
+			out.writeInt(packet.limit());
+			out.write(packet.array(), packet.arrayOffset(), packet.limit());
+		}
+		catch (IOException e) {
+			System.err.println("Capture to " + file + " stopped: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Flushes and closes the capture. Packets written afterwards are ignored.
+	 */
+	public synchronized void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		}
+		catch (IOException e) {} // swallow
+		out = null;
+	}
+}
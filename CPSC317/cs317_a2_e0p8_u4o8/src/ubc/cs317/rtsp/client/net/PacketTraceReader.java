@@ -0,0 +1,84 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads back the packets written by a PacketCapture, in order.
+ */
+public class PacketTraceReader {
+	private final DataInputStream in;
+	private long arrivalNanos;
+
+	/**
+	 * Opens a capture file.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read or isn't a capture.
+	 */
+	public PacketTraceReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[PacketCapture.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, PacketCapture.MAGIC))
+				throw new IOException(file + " is not a packet capture.");
+			int version = in.readInt();
+			if (version != PacketCapture.VERSION)
+				throw new IOException(file + " is a capture of unsupported version " + version + ".");
+		}
+		catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next packet into a buffer.
+	 *
+	 * @param buffer
+	 *            The buffer the packet is read into, backed by an accessible
+	 *            array. It is cleared first, and flipped once the packet is
+	 *            read. A packet too large for it is truncated.
+	 * @return true if a packet was read, false at the end of the capture.
+	 * @throws IOException
+	 *             If the file can't be read, or ends in the middle of a
+	 *             packet.
+	 */
+	public boolean readPacket(ByteBuffer buffer) throws IOException {
+		try {
+			arrivalNanos = in.readLong();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		int length = in.readInt();
+		int kept = Math.min(length, buffer.capacity());
+		buffer.clear();
+		in.readFully(buffer.array(), buffer.arrayOffset(), kept);
+		in.skipBytes(length - kept);
+		buffer.limit(kept);
+		return true;
+	}
+
+	/**
+	 * Returns the arrival time of the last packet read, in nanoseconds after
+	 * the first packet of the capture.
+	 */
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+
+	public void close() {
+		try {
+			in.close();
+		}
+		catch (IOException e) {} // swallow
+	}
+}
@@ -0,0 +1,265 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Everything between a received RTP packet and the presentation of its frame:
+ * the reception state of the source, the jitter buffer and its budget, the
+ * buffer target, the drift of the sender clock and the playout. It knows
+ * nothing about sockets or about the clock, packets are handed to it with
+ * their arrival time and the playout runs on the given PlayoutScheduler, so
+ * the same pipeline plays a live stream or replays a captured one on a
+ * virtual clock.
+ */
+public class PlaybackPipeline {
+	private static final int FRAME_BUFFER_CAPACITY = 1024;
+	private static final int RTP_HEADER_LENGTH = 12;
+
+	private static final boolean LOG = false;
+
+	private final BufferPool pool;
+	private final SessionMetrics metrics;
+	private final JitterBuffer frameBuffer = new JitterBuffer(FRAME_BUFFER_CAPACITY);
+	private final RTPSourceState sourceState = new RTPSourceState();
+	private final BufferTarget bufferTarget = new BufferTarget();
+	private final DriftEstimator drift = new DriftEstimator();
+	private final BufferBudget budget = BufferBudget.fromSystemProperties(frameBuffer.getCapacity());
+	private final PlayoutScheduler scheduler;
+	private final Playout.Presenter presenter;
+	private final Playout playout;
+	private volatile PacketCapture capture;
+	private volatile CacheEntry cacheEntry;
+	private volatile NackTracker nackTracker;
+	private volatile RewindWindow rewindWindow;
+	private volatile InstantReplay instantReplay;
+
+	/**
+	 * Creates a pipeline with an empty buffer and a stopped playout.
+	 *
+	 * @param scheduler
+	 *            The clock and timer of the playout.
+	 * @param pool
+	 *            The pool the packets given to the pipeline come from.
+	 * @param metrics
+	 *            Where the reception and playout metrics are recorded.
+	 * @param presenter
+	 *            The receiver of the frames when they are due.
+	 */
+	public PlaybackPipeline(PlayoutScheduler scheduler, BufferPool pool, SessionMetrics metrics,
+			final Playout.Presenter presenter) {
+		this.pool = pool;
+		this.metrics = metrics;
+		this.scheduler = scheduler;
+		this.presenter = presenter;
+		// the frames presented by the playout go in the rewind window, if there is one
+		Playout.Presenter recorder = new Playout.Presenter() {
+			@Override
+			public void present(Frame frame) {
+				presenter.present(frame);
+				RewindWindow rewindWindow = PlaybackPipeline.this.rewindWindow;
+				if (rewindWindow != null) rewindWindow.record(frame);
+			}
+
+			@Override
+			public void prepare(Frame frame) {
+				presenter.prepare(frame);
+			}
+		};
+		this.playout = new Playout(frameBuffer, bufferTarget, drift, budget, scheduler, metrics, recorder);
+	}
+
+	/**
+	 * Returns the playout of the pipeline, to start and stop it.
+	 */
+	public Playout getPlayout() {
+		return playout;
+	}
+
+	/**
+	 * Returns the budget of the buffer, to listen to its watermarks.
+	 */
+	public BufferBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the reception state of the stream. It must only be read from
+	 * the thread giving packets to the pipeline.
+	 */
+	public RTPSourceState getSourceState() {
+		return sourceState;
+	}
+
+	/**
+	 * Starts (or stops, with null) writing every packet received to a
+	 * capture. The capture is not closed by the pipeline.
+	 */
+	public void setCapture(PacketCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Starts (or stops, with null) recording every packet received into an
+	 * entry of the VideoCache. The entry is not released by the pipeline.
+	 */
+	void setCacheEntry(CacheEntry cacheEntry) {
+		this.cacheEntry = cacheEntry;
+	}
+
+	/**
+	 * Starts asking for lost packets again with RTCP NACKs, while they can
+	 * still be played. Off by default, since only the receiver knows whether
+	 * the transport can lose packets and where to send feedback.
+	 */
+	public void enableNack(NackTracker.Sender sender) {
+		nackTracker = new NackTracker(sender, frameBuffer, playout, metrics);
+	}
+
+	/**
+	 * Starts keeping the frames presented in a rewind window, so they can be
+	 * shown again with the InstantReplay of the pipeline. The window may have
+	 * been used by a closed pipeline before, close stops recording into it.
+	 */
+	public void enableRewind(RewindWindow rewindWindow) {
+		instantReplay = new InstantReplay(rewindWindow, playout, scheduler, pool, presenter);
+		this.rewindWindow = rewindWindow;
+	}
+
+	/**
+	 * Returns the replay of the frames presented, or null if the rewind
+	 * window is not enabled.
+	 */
+	public InstantReplay getInstantReplay() {
+		return instantReplay;
+	}
+
+	/**
+	 * Processes a single RTP packet. The packet is parsed into a Frame object
+	 * (using RTSPConnection.parseRTPPacket) which keeps the pooled buffer, and
+	 * put in the frame buffer, to be played by the playout. Late and duplicate
+	 * frames are dropped right away. The jitter, loss and reorder statistics,
+	 * and from them the buffer target and the metrics, are updated for every
+	 * packet, except that retransmissions asked for with a NACK don't count
+	 * for jitter and reordering. Called from a single thread (the receiver).
+	 *
+	 * @param packet
+	 *            The datagram, acquired from the pipeline's pool. The
+	 *            pipeline takes ownership of it.
+	 * @param arrivalNanos
+	 *            The time the packet arrived, on the clock of the playout's
+	 *            scheduler.
+	 */
+	public void packetReceived(ByteBuffer packet, long arrivalNanos) {
+		PacketCapture capture = this.capture;
+		if (capture != null) capture.write(packet, arrivalNanos);
+		metrics.packetReceived(arrivalNanos);
+		if (packet.limit() < RTP_HEADER_LENGTH) {
+			pool.release(packet); // not even a header
+			return;
+		}
+		int ssrc = packet.getInt(8);
+		Frame frame = RTSPConnection.parseRTPPacket(packet, pool);
+		NackTracker nackTracker = this.nackTracker;
+		boolean retransmission = nackTracker != null && nackTracker.isRequested(frame.getSequenceNumber());
+		long sequence = retransmission ? sourceState.updateRetransmitted(frame.getSequenceNumber())
+				: sourceState.update(frame.getSequenceNumber());
+		if (sequence == RTPSourceState.INVALID_SEQUENCE) {
+			frame.release();
+			return;
+		}
+		frame.setExtendedNumbers(sequence, sourceState.extendTimestamp(frame.getTimestamp()));
+		CacheEntry cacheEntry = this.cacheEntry;
+		if (cacheEntry != null) cacheEntry.record(packet, sequence, frame.getExtendedTimestamp());
+		if (!retransmission) {
+			sourceState.updateJitter(frame.getExtendedTimestamp(), arrivalNanos);
+			drift.update(frame.getExtendedTimestamp(), arrivalNanos);
+		}
+		bufferTarget.update(sourceState, arrivalNanos);
+		updateReceptionMetrics();
+		if (nackTracker != null) {
+			nackTracker.packetReceived(ssrc, sequence, frame.getExtendedTimestamp(), arrivalNanos);
+			nackTracker.sendRequests(arrivalNanos, sourceState.getReorderDistance());
+		}
+		int result = frameBuffer.offer(frame);
+		if (result != JitterBuffer.ACCEPTED) {
+			if (LOG) System.out.println("dropped frame " + frame.getExtendedSequenceNumber());
+			countDroppedFrame(result);
+			frame.release();
+			return;
+		}
+		if (retransmission) metrics.packetRecovered();
+		playout.frameArrived(frame);
+		if (LOG) System.out.println("received frame " + frame.getExtendedSequenceNumber() + " " + frame.getExtendedTimestamp());
+		checkBudget();
+	}
+
+	// the buffer just grew, drop the oldest frames or tell the listener if it's over budget
+	private void checkBudget() {
+		long bytes = frameBuffer.getBufferedBytes();
+		int frames = frameBuffer.size();
+		if (budget.getPolicy() != BufferBudget.DROP_OLDEST) budget.update(bytes, frames);
+		else if (budget.isOverHighWatermark(bytes, frames)) playout.dropOverBudget();
+	}
+
+	/**
+	 * Gives the pipeline a chance to run its timers while no packet arrives:
+	 * requests for missing packets are repeated or given up. Called from the
+	 * receiver thread, like packetReceived.
+	 */
+	public void tick(long now) {
+		NackTracker nackTracker = this.nackTracker;
+		if (nackTracker != null) nackTracker.sendRequests(now, sourceState.getReorderDistance());
+	}
+
+	/**
+	 * Notifies the pipeline that no packet arrived for a while. While the
+	 * server is asked to send, that's usually the server done sending the
+	 * video, so the cache entry being recorded has all of it (see
+	 * CacheEntry.setEndExpected).
+	 */
+	public void streamIdle() {
+		CacheEntry cacheEntry = this.cacheEntry;
+		if (cacheEntry != null) cacheEntry.streamEnded();
+		playout.streamIdle();
+	}
+
+	/**
+	 * Stops the playout (and the replay) and drops every buffered frame.
+	 */
+	public void close() {
+		InstantReplay instantReplay = this.instantReplay;
+		if (instantReplay != null) instantReplay.close();
+		playout.stop();
+		rewindWindow = null; // the window is the connection's, and goes on with the next stream
+		// a frame being presented is retained by the playout, so the buffer can go
+		frameBuffer.clear();
+	}
+
+	// cumulative reception statistics of the stream, cheap enough for every packet
+	private void updateReceptionMetrics() {
+		long expected = sourceState.getExpected();
+		long received = sourceState.getReceived();
+		long lost = sourceState.getLost();
+		long reordered = sourceState.getReordered();
+		metrics.updateReception(lost, reordered, expected <= 0 || lost <= 0 ? 0 : (double) lost / expected,
+				received <= 0 ? 0 : (double) reordered / received, sourceState.getJitter());
+	}
+
+	private void countDroppedFrame(int result) {
+		switch (result) {
+		case JitterBuffer.LATE:
+			metrics.lateFrameDropped();
+			break;
+		case JitterBuffer.DUPLICATE:
+			metrics.duplicateFrameDropped();
+			break;
+		case JitterBuffer.TOO_FAR_AHEAD:
+			metrics.overflowFrameDropped();
+			break;
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * Plays the frames of a JitterBuffer at the time given by their RTP
+ * timestamps. The first frame after (re)starting is presented right away and
+ * becomes the anchor of the presentation clock: every following frame is due
+ * at the anchor time plus its timestamp distance from the anchor frame, so
+ * timing errors don't accumulate.
+ *
+ * The presentation clock doesn't run exactly at the speed of ours: it follows
+ * the clock of the sender, as measured by the DriftEstimator, so a sender
+ * running fast or slow neither bloats nor drains the buffer, and it is
+ * sped up or slowed down a little more while the buffer holds more or less
+ * than the target. The rate is adapted gradually, once per
+ * RATE_UPDATE_INTERVAL_NS, and stays within MAXIMUM_RATE_CHANGE of real
+ * time. Each change re-anchors the clock on the frame about to be scheduled,
+ * so the frames already played keep their timing.
+ *
+ * Only one task per playout is ever pending on the PlayoutScheduler, either
+ * at the deadline of the next frame or not at all while buffering, in which
+ * case the arrival of frames (or an idle stream) wakes the playout up again.
+ * A task replaced after it started, too late to be cancelled, finds out
+ * from its generation and does nothing.
+ *
+ * Playback starts once the buffer holds the duration given by the
+ * BufferTarget, and whenever the buffer runs dry before the end of the stream
+ * the target is told about the stall. After each frame the presenter is
+ * given the next few frames, so it can get them ready (decode them) ahead of
+ * their deadline.
+ *
+ * After each frame played, the buffer is checked against the BufferBudget,
+ * whose listener resumes the server once enough of the buffer is played.
+ *
+ * How late each frame is presented, the state of the buffer and the time
+ * spent rebuffering are recorded in the SessionMetrics.
+ */
+public class Playout {
+	private static final long NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int MINIMUM_FRAME_BUFFER_SIZE = 0;
+	private static final int PREPARE_AHEAD_FRAMES = 4;
+	private static final long RATE_UPDATE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final double MAXIMUM_RATE_CHANGE = 0.05;
+	private static final double OCCUPANCY_GAIN = 0.05; // rate change when the buffer is off by the whole target
+	private static final double RATE_SMOOTHING = 0.25; // of the way to the wanted rate, per update
+
+	private static final boolean LOG = false;
+
+	/**
+	 * Receives the frames when they are due.
+	 */
+	public interface Presenter {
+
+		/**
+		 * Presents a frame. The frame is only guaranteed to be valid until the
+		 * method returns, it must be retained to be kept longer.
+		 */
+		public void present(Frame frame);
+
+		/**
+		 * Gives a frame that is going to be presented soon, in presentation
+		 * order. It may be called several times for the same frame, and the
+		 * frame must be retained to be kept after the method returns.
+		 */
+		public void prepare(Frame frame);
+	}
+
+	private final JitterBuffer frameBuffer;
+	private final BufferTarget target;
+	private final DriftEstimator drift;
+	private final BufferBudget budget;
+	private final PlayoutScheduler scheduler;
+	private final SessionMetrics metrics;
+	private final Presenter presenter;
+	private final Object lock = new Object();
+
+	private volatile boolean isPlaying;
+	private volatile boolean isBuffering = true;
+	private volatile boolean streamIdle;
+	private volatile boolean waitingForFrames; // no task pending, arrivals should wake us up
+	private volatile long pendingSequence; // the frame the pending task is due for
+
+	// guarded by lock
+	private Future<?> pendingTask;
+	private long generation; // of the pending task, a task that started too late to be cancelled is of an older one
+	private boolean presenting;
+	private boolean hasAnchor;
+	private long anchorTimestamp;
+	private long anchorNanos;
+	private double rate = 1; // timestamp units played per unit of real time
+	private long rateUpdateNanos;
+
+	/**
+	 * Creates a stopped playout.
+	 *
+	 * @param frameBuffer
+	 *            The buffer frames are taken from. The playout is its only
+	 *            consumer.
+	 * @param target
+	 *            The amount of stream to buffer before playing.
+	 * @param drift
+	 *            The speed of the sender clock, which the playout follows.
+	 * @param budget
+	 *            The most the buffer may hold.
+	 * @param scheduler
+	 *            The clock and timer used to present frames.
+	 * @param metrics
+	 *            Where the presentation latency and rebuffering are recorded.
+	 * @param presenter
+	 *            The receiver of the frames when they are due.
+	 */
+	public Playout(JitterBuffer frameBuffer, BufferTarget target, DriftEstimator drift, BufferBudget budget,
+			PlayoutScheduler scheduler, SessionMetrics metrics, Presenter presenter) {
+		this.frameBuffer = frameBuffer;
+		this.target = target;
+		this.drift = drift;
+		this.budget = budget;
+		this.scheduler = scheduler;
+		this.metrics = metrics;
+		this.presenter = presenter;
+	}
+
+	/**
+	 * Starts (or resumes) presenting frames. The next frame is presented as
+	 * soon as enough of the stream is buffered.
+	 */
+	public void start() {
+		synchronized (lock) {
+			if (isPlaying) return;
+			isPlaying = true;
+			hasAnchor = false; // important so timing is correct
+			scheduleAt(scheduler.nanoTime(), Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Stops presenting frames, they stay in the buffer until the playout is
+	 * started again.
+	 */
+	public void stop() {
+		synchronized (lock) {
+			isPlaying = false;
+			waitingForFrames = false;
+			if (pendingTask != null) pendingTask.cancel(false);
+			pendingTask = null;
+			generation++;
+		}
+	}
+
+	/**
+	 * The presentation clock at one point in time, to know when frames are
+	 * due without taking the lock of the playout for each.
+	 */
+	public static final class Clock {
+		private final long anchorNanos;
+		private final long anchorTimestamp;
+		private final double rate;
+
+		private Clock(long anchorNanos, long anchorTimestamp, double rate) {
+			this.anchorNanos = anchorNanos;
+			this.anchorTimestamp = anchorTimestamp;
+			this.rate = rate;
+		}
+
+		/**
+		 * Returns when a frame with the given timestamp is due, on the clock
+		 * of the scheduler.
+		 */
+		public long deadlineOf(long extendedTimestamp) {
+			return deadline(anchorNanos, anchorTimestamp, rate, extendedTimestamp);
+		}
+	}
+
+	/**
+	 * Returns the presentation clock as it is now, or null if the playout
+	 * isn't playing from an anchor yet (stopped or buffering), in which case
+	 * nothing is due soon. The clock returned doesn't follow the rate changes
+	 * made afterwards, which move the deadlines only a little.
+	 */
+	public Clock getClock() {
+		synchronized (lock) {
+			if (!isPlaying || !hasAnchor) return null;
+			return new Clock(anchorNanos, anchorTimestamp, rate);
+		}
+	}
+
+	/**
+	 * Drops the oldest frames, as if they had been played, until the buffer
+	 * is back under the high watermark of the budget. Called by the receiver
+	 * when the budget's policy is DROP_OLDEST. The receiver is the producer of
+	 * the buffer, but holding the lock makes it its consumer for the time
+	 * being, as JitterBuffer allows.
+	 */
+	public void dropOverBudget() {
+		synchronized (lock) {
+			while (budget.isOverHighWatermark(frameBuffer.getBufferedBytes(), frameBuffer.size())) {
+				Frame frame = frameBuffer.peek();
+				if (frame == null) return;
+				frameBuffer.advanceTo(frame.getExtendedSequenceNumber());
+				metrics.overflowFrameDropped();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the playout is waiting for the buffer to fill up.
+	 */
+	public boolean isBuffering() {
+		return isBuffering;
+	}
+
+	/**
+	 * Notifies the playout that a frame was added to the buffer. Called by the
+	 * receiver; it takes no lock unless the playout has to be woken up or the
+	 * frame should be played before the one currently scheduled.
+	 */
+	public void frameArrived(Frame frame) {
+		streamIdle = false;
+		if (!isPlaying) return;
+		if (waitingForFrames) {
+			if (!isBuffering || frameBuffer.getBufferedDuration() >= target.getTargetMillis()) wakeUp();
+		}
+		else if (frame.getExtendedSequenceNumber() < pendingSequence) {
+			// an out of order frame that has to be played before the one scheduled
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Notifies the playout that no packet arrived for a while. Since there's no
+	 * way to know how long the video is, an idle stream is assumed to have
+	 * ended, and whatever is left in the buffer is played.
+	 */
+	public void streamIdle() {
+		streamIdle = true;
+		if (isPlaying && waitingForFrames) wakeUp();
+	}
+
+	private void wakeUp() {
+		synchronized (lock) {
+			// a frame being presented reschedules by itself once it's done
+			if (!isPlaying || presenting) return;
+			if (pendingTask != null) pendingTask.cancel(false);
+			scheduleAt(scheduler.nanoTime(), Long.MIN_VALUE);
+		}
+	}
+
+	private void playNextFrame(long task) {
+		Frame frame;
+		long now;
+		synchronized (lock) {
+			if (task != generation) return; // replaced while waiting for the lock
+			pendingTask = null;
+			if (!isPlaying) return;
+			now = scheduler.nanoTime();
+
+			// buffering control, play when the target duration is buffered, stop when not enough frame
+			int size = frameBuffer.size();
+			long buffered = frameBuffer.getBufferedDuration();
+			long targetMillis = target.getTargetMillis();
+			metrics.updateBuffer(size, frameBuffer.getBufferedBytes(), buffered, targetMillis);
+			if (streamIdle || buffered >= targetMillis) {
+				if (isBuffering) metrics.rebufferEnded(now);
+				isBuffering = false;
+			}
+			else if (size <= MINIMUM_FRAME_BUFFER_SIZE) {
+				if (!isBuffering) {
+					target.stalled(now);
+					metrics.rebufferStarted(now);
+				}
+				isBuffering = true;
+				hasAnchor = false;
+			}
+			frame = isBuffering ? null : frameBuffer.peek();
+			if (frame == null) {
+				waitingForFrames = true;
+				return;
+			}
+
+			if (!hasAnchor) {
+				// first frame after (re)starting is played immediately
+				hasAnchor = true;
+				anchorTimestamp = frame.getExtendedTimestamp();
+				anchorNanos = now;
+				rateUpdateNanos = now;
+			}
+			else if (!streamIdle && now - rateUpdateNanos >= RATE_UPDATE_INTERVAL_NS) {
+				adaptRate(frame, buffered, targetMillis);
+				rateUpdateNanos = now;
+			}
+			long deadline = deadlineOf(frame);
+			if (deadline > now) {
+				scheduleAt(deadline, frame.getExtendedSequenceNumber());
+				prepareUpcomingFrames();
+				return;
+			}
+			// keep the frame while presenting it outside the lock, the buffer drops it (and every earlier frame)
+			frame.retain();
+			frameBuffer.advanceTo(frame.getExtendedSequenceNumber());
+			budget.update(frameBuffer.getBufferedBytes(), frameBuffer.size());
+			presenting = true;
+			metrics.framePresented(now - deadline);
+		}
+
+		try {
+			if (LOG) System.out.println("play frame " + frame.getExtendedSequenceNumber() + " at " + now);
+			presenter.present(frame);
+		}
+		finally {
+			frame.release();
+		}
+
+		synchronized (lock) {
+			presenting = false;
+			if (isPlaying && pendingTask == null && task == generation) scheduleNextFrame();
+			prepareUpcomingFrames();
+		}
+	}
+
+	// moves the rate towards the sender clock, corrected by how far the buffer is from its target
+	private void adaptRate(Frame next, long buffered, long targetMillis) {
+		double wanted = drift.getRate();
+		if (targetMillis > 0) wanted *= 1 + OCCUPANCY_GAIN * (buffered - targetMillis) / targetMillis;
+		wanted = Math.max(1 - MAXIMUM_RATE_CHANGE, Math.min(1 + MAXIMUM_RATE_CHANGE, wanted));
+		// the next frame keeps its deadline and becomes the anchor of the new rate
+		anchorNanos = deadlineOf(next);
+		anchorTimestamp = next.getExtendedTimestamp();
+		rate += (wanted - rate) * RATE_SMOOTHING;
+		metrics.updatePlayoutRate(rate, drift.getDriftPpm());
+	}
+
+	// lets the presenter work on the next frames while waiting for their deadline
+	private void prepareUpcomingFrames() {
+		Frame frame = frameBuffer.peek();
+		for (int i = 0; i < PREPARE_AHEAD_FRAMES && frame != null; i++) {
+			presenter.prepare(frame);
+			frame = frameBuffer.peekAfter(frame.getExtendedSequenceNumber());
+		}
+	}
+
+	// schedules the task at the deadline of the next frame, or waits for frames if there is none
+	private void scheduleNextFrame() {
+		Frame next = frameBuffer.peek();
+		if (next == null || !hasAnchor) {
+			scheduleAt(scheduler.nanoTime(), Long.MIN_VALUE);
+			return;
+		}
+		scheduleAt(deadlineOf(next), next.getExtendedSequenceNumber());
+	}
+
+	private void scheduleAt(long deadline, long sequence) {
+		waitingForFrames = false;
+		pendingSequence = sequence; // Long.MIN_VALUE when the task runs right away anyway
+		final long task = ++generation;
+		pendingTask = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				playNextFrame(task);
+			}
+		}, deadline);
+	}
+
+	private long deadlineOf(Frame frame) {
+		return deadlineAt(frame.getExtendedTimestamp());
+	}
+
+	private long deadlineAt(long extendedTimestamp) {
+		return deadline(anchorNanos, anchorTimestamp, rate, extendedTimestamp);
+	}
+
+	// the one place a deadline is computed, for the playout and the clocks it hands out
+	private static long deadline(long anchorNanos, long anchorTimestamp, double rate, long extendedTimestamp) {
+		return anchorNanos + (long) ((extendedTimestamp - anchorTimestamp) * NANOS_PER_TIMESTAMP_UNIT / rate);
+	}
+}
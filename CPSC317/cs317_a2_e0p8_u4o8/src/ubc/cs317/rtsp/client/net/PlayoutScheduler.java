@@ -0,0 +1,79 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The clock and timer shared by the playout of every session in the process.
+ * Tasks are scheduled at absolute deadlines on the <code>System.nanoTime</code>
+ * clock, and run on a small pool of daemon threads, so the number of threads
+ * doesn't grow with the number of frames or sessions.
+ */
+public class PlayoutScheduler {
+	private static final int MAXIMUM_THREADS = 4;
+
+	private static final PlayoutScheduler defaultScheduler = new PlayoutScheduler(
+			Math.max(1, Math.min(MAXIMUM_THREADS, Runtime.getRuntime().availableProcessors())));
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Creates a scheduler with its own threads.
+	 *
+	 * @param threads
+	 *            The number of threads running scheduled tasks.
+	 */
+	public PlayoutScheduler(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "playout-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true); // rescheduled frames shouldn't pile up in the queue
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates a scheduler without threads, for subclasses that keep their own
+	 * clock and run the tasks themselves.
+	 */
+	protected PlayoutScheduler() {
+		this.executor = null;
+	}
+
+	/**
+	 * Returns the scheduler shared by every session.
+	 */
+	public static PlayoutScheduler getDefault() {
+		return defaultScheduler;
+	}
+
+	/**
+	 * Returns the current time of the scheduler's clock, in nanoseconds.
+	 */
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Runs a task once the clock reaches a deadline, or as soon as possible if
+	 * the deadline has already passed.
+	 *
+	 * @param task
+	 *            The task to run.
+	 * @param deadlineNanos
+	 *            The time, on the scheduler's clock, when the task should run.
+	 * @return A Future that can be used to cancel the task.
+	 */
+	public Future<?> schedule(Runnable task, long deadlineNanos) {
+		return executor.schedule(task, deadlineNanos - nanoTime(), TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,244 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+
+/**
+ * The RTCP side of a stream received over UDP (RFC 3550 section 6). It sends
+ * receiver reports, with the loss and jitter of the RTPSourceState and an
+ * SDES CNAME, at the interval of section 6.3: the RTCP bandwidth is 5% of the
+ * session bandwidth, measured from the RTP packets received, and reports
+ * are spread at random around the interval, at least 5 seconds apart (2.5
+ * before the first one). It also sends the NACKs of the NackTracker, and a
+ * BYE when the stream is closed.
+ *
+ * Sender reports from the server are parsed to map RTP timestamps to the wall
+ * clock of the sender, and are echoed in the following reports (LSR and DLSR)
+ * so the sender can measure the round trip.
+ *
+ * Everything but <code>sendGoodbye</code> is called from the receiver thread.
+ */
+public class RTCPSession implements NackTracker.Sender {
+	private static final int BUFFER_SIZE = 1500;
+	private static final int UDP_IP_OVERHEAD = 28; // counted in the RTCP packet size, as the RFC wants
+	private static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+	private static final double SENDER_BANDWIDTH_FRACTION = 0.25;
+	private static final double RECEIVER_BANDWIDTH_FRACTION = 1 - SENDER_BANDWIDTH_FRACTION;
+	private static final long MINIMUM_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+	private static final double COMPENSATION = Math.E - 1.5; // for the randomization, section 6.3.1
+	private static final int MINIMUM_SENDER_REPORT_LENGTH = 28;
+	private static final long NTP_EPOCH_OFFSET_SECONDS = 2208988800L; // from 1900 to 1970
+	private static final int TIMESTAMP_UNITS_PER_SECOND = 1000; // timestamps are in milliseconds
+
+	private final RTPReceiver receiver;
+	private final RTPSourceState sourceState;
+	private final SessionMetrics metrics;
+	private final byte[] cname;
+	private final int ssrc = ThreadLocalRandom.current().nextInt();
+	private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// only touched by the receiver thread
+	private boolean hasMediaSsrc;
+	private int mediaSsrc;
+	private long nextReportNanos;
+	private boolean initial = true;
+	private double averagePacketSize;
+	private long bandwidthWindowStart;
+	private long bandwidthWindowOctets;
+	private double sessionBandwidth; // bytes per second of RTP, 0 until measured
+	private long expectedPrior;
+	private long receivedPrior;
+
+	// the last sender report
+	private boolean hasSenderReport;
+	private long senderReportNtp;
+	private int senderReportTimestamp;
+	private long senderReportArrivalNanos;
+
+	/**
+	 * Creates the RTCP session of a stream. The first report is scheduled
+	 * when the first RTP packet arrives.
+	 *
+	 * @param receiver
+	 *            The receiver of the stream, which sends the packets from its
+	 *            RTCP port.
+	 * @param sourceState
+	 *            The reception state of the stream, read for every report.
+	 * @param cname
+	 *            The canonical name of the receiver, in ASCII.
+	 * @param metrics
+	 *            Where the reports sent and received are counted.
+	 */
+	public RTCPSession(RTPReceiver receiver, RTPSourceState sourceState, byte[] cname, SessionMetrics metrics) {
+		this.receiver = receiver;
+		this.sourceState = sourceState;
+		this.cname = cname;
+		this.metrics = metrics;
+		// a guess until the first packet is sent: an RR with a block and the SDES
+		this.averagePacketSize = 32 + 12 + cname.length + UDP_IP_OVERHEAD;
+	}
+
+	/**
+	 * Notes an RTP packet of the stream, to learn the SSRC of the sender and
+	 * the session bandwidth.
+	 */
+	public void rtpPacketReceived(ByteBuffer packet, long arrivalNanos) {
+		if (packet.limit() < 12) return;
+		if (!hasMediaSsrc) {
+			hasMediaSsrc = true;
+			mediaSsrc = packet.getInt(8);
+			bandwidthWindowStart = arrivalNanos;
+			nextReportNanos = arrivalNanos + nextInterval();
+		}
+		bandwidthWindowOctets += packet.limit() + UDP_IP_OVERHEAD;
+	}
+
+	/**
+	 * Processes a compound RTCP packet from the sender. Only sender reports
+	 * are used, everything else is skipped.
+	 */
+	public void controlPacketReceived(ByteBuffer packet, long arrivalNanos) {
+		updateAveragePacketSize(packet.remaining());
+		int offset = packet.position();
+		int end = packet.limit();
+		while (offset + 4 <= end) {
+			if ((packet.get(offset) & 0xff) >> 6 != 2) return;
+			int type = packet.get(offset + 1) & 0xff;
+			int length = 4 + 4 * (packet.getShort(offset + 2) & 0xffff);
+			if (offset + length > end) return;
+			if (type == RTCPWriter.SENDER_REPORT && length >= MINIMUM_SENDER_REPORT_LENGTH)
+				senderReportReceived(packet, offset, arrivalNanos);
+			offset += length;
+		}
+	}
+
+	// SSRC, NTP timestamp (64 bits), RTP timestamp, packet and octet counts, then report blocks we don't need
+	private void senderReportReceived(ByteBuffer packet, int offset, long arrivalNanos) {
+		if (!hasMediaSsrc || packet.getInt(offset + 4) != mediaSsrc) return;
+		senderReportNtp = packet.getLong(offset + 8);
+		senderReportTimestamp = packet.getInt(offset + 16);
+		senderReportArrivalNanos = arrivalNanos;
+		hasSenderReport = true;
+		metrics.senderReportReceived();
+	}
+
+	/**
+	 * Sends a receiver report if one is due. Called regularly by the receiver
+	 * thread.
+	 */
+	public void tick(long now) {
+		if (!hasMediaSsrc || now < nextReportNanos) return;
+		out.clear();
+		writeReport(now);
+		RTCPWriter.writeSourceDescription(out, ssrc, cname);
+		send();
+		metrics.reportSent();
+
+		long elapsed = now - bandwidthWindowStart;
+		if (elapsed > 0) {
+			sessionBandwidth = bandwidthWindowOctets * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			bandwidthWindowStart = now;
+			bandwidthWindowOctets = 0;
+		}
+		initial = false;
+		nextReportNanos = now + nextInterval();
+	}
+
+	// a receiver report with a block about the media source, RFC 3550 appendix A.3
+	private void writeReport(long now) {
+		long expected = sourceState.getExpected();
+		long received = sourceState.getReceived();
+		long expectedInterval = expected - expectedPrior;
+		long lostInterval = expectedInterval - (received - receivedPrior);
+		expectedPrior = expected;
+		receivedPrior = received;
+		int fractionLost = expectedInterval == 0 || lostInterval <= 0 ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+
+		int lastSenderReport = 0;
+		int delay = 0;
+		if (hasSenderReport) {
+			lastSenderReport = (int) (senderReportNtp >>> 16);
+			delay = (int) ((now - senderReportArrivalNanos) * 65536 / TimeUnit.SECONDS.toNanos(1));
+		}
+		RTCPWriter.writeReceiverReport(out, ssrc, mediaSsrc, Math.min(fractionLost, 255), sourceState.getLost(),
+				(int) sourceState.getReportedMaxSequence(), (int) sourceState.getJitter(), lastSenderReport, delay);
+	}
+
+	// called by the NackTracker of the pipeline, the NACK goes right away (RFC 4585 early feedback)
+	@Override
+	public void sendNack(int mediaSsrc, long[] sequenceNumbers, int count) {
+		out.clear();
+		RTCPWriter.writeReceiverReport(out, ssrc);
+		RTCPWriter.writeSourceDescription(out, ssrc, cname);
+		RTCPWriter.writeGenericNack(out, ssrc, mediaSsrc, sequenceNumbers, count);
+		send();
+	}
+
+	/**
+	 * Tells the sender the receiver is leaving, once the stream is torn down.
+	 * It may be called from any thread.
+	 */
+	public void sendGoodbye() {
+		ByteBuffer goodbye = ByteBuffer.allocate(BUFFER_SIZE);
+		RTCPWriter.writeReceiverReport(goodbye, ssrc);
+		RTCPWriter.writeSourceDescription(goodbye, ssrc, cname);
+		RTCPWriter.writeGoodbye(goodbye, ssrc);
+		goodbye.flip();
+		receiver.sendControl(goodbye);
+	}
+
+	private void send() {
+		out.flip();
+		updateAveragePacketSize(out.remaining());
+		receiver.sendControl(out);
+	}
+
+	private void updateAveragePacketSize(int length) {
+		averagePacketSize += (length + UDP_IP_OVERHEAD - averagePacketSize) / 16;
+	}
+
+	// RFC 3550 appendix A.7, for a receiver in a session with one sender
+	private long nextInterval() {
+		int members = 2;
+		int senders = 1;
+		double rtcpBandwidth = sessionBandwidth * RTCP_BANDWIDTH_FRACTION;
+		double minimum = initial ? MINIMUM_INTERVAL_NS / 2 : MINIMUM_INTERVAL_NS;
+		double interval = minimum;
+		if (rtcpBandwidth > 0) {
+			int n = members;
+			if (senders <= members * SENDER_BANDWIDTH_FRACTION) {
+				rtcpBandwidth *= RECEIVER_BANDWIDTH_FRACTION;
+				n -= senders;
+			}
+			interval = Math.max(minimum, averagePacketSize * n / rtcpBandwidth * TimeUnit.SECONDS.toNanos(1));
+		}
+		interval *= ThreadLocalRandom.current().nextDouble(0.5, 1.5);
+		return (long) (interval / COMPENSATION);
+	}
+
+	/**
+	 * Returns true once a sender report has been received, so RTP
+	 * timestamps can be mapped to the wall clock.
+	 */
+	public boolean hasSenderReport() {
+		return hasSenderReport;
+	}
+
+	/**
+	 * Returns the wall clock time of the sender at a given RTP timestamp, from
+	 * the last sender report, as milliseconds since 1970 like
+	 * System.currentTimeMillis.
+	 *
+	 * @return The time, or -1 if no sender report has been received.
+	 */
+	public long getWallClockMillis(int timestamp) {
+		if (!hasSenderReport) return -1;
+		long ntp = senderReportNtp;
+		long reportMillis = ((ntp >>> 32) - NTP_EPOCH_OFFSET_SECONDS) * 1000 + ((ntp & 0xffffffffL) * 1000 >>> 32);
+		// the int difference works across the wraparound of the 32-bit timestamp
+		return reportMillis + (long) (timestamp - senderReportTimestamp) * 1000 / TIMESTAMP_UNITS_PER_SECOND;
+	}
+}
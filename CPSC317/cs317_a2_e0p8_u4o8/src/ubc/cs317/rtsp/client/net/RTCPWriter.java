@@ -0,0 +1,132 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes RTCP packets (RFC 3550 section 6, RFC 4585 section 6) into a
+ * ByteBuffer, so a compound packet is built by writing its packets one after
+ * the other into the same buffer. Nothing is allocated.
+ */
+public class RTCPWriter {
+	public static final int SENDER_REPORT = 200;
+	public static final int RECEIVER_REPORT = 201;
+	public static final int SOURCE_DESCRIPTION = 202;
+	public static final int GOODBYE = 203;
+	public static final int TRANSPORT_FEEDBACK = 205;
+	public static final int GENERIC_NACK = 1; // format of a transport feedback packet
+
+	private static final int VERSION = 2;
+	private static final int CNAME = 1;
+	private static final int BITMASK_LENGTH = 16; // sequence numbers after the PID covered by a BLP
+
+	/**
+	 * Writes a receiver report without report blocks, which starts every
+	 * compound packet that has nothing to report.
+	 */
+	public static void writeReceiverReport(ByteBuffer out, int ssrc) {
+		writeHeader(out, 0, RECEIVER_REPORT, 1);
+		out.putInt(ssrc);
+	}
+
+	/**
+	 * Writes a receiver report with one report block, about the reception of
+	 * a media source (RFC 3550 section 6.4.2).
+	 *
+	 * @param fractionLost
+	 *            The fraction of packets lost since the previous report, in
+	 *            256ths.
+	 * @param cumulativeLost
+	 *            The packets lost since the start of the stream, kept to 24
+	 *            bits with its sign.
+	 * @param highestSequence
+	 *            The extended highest sequence number received.
+	 * @param jitter
+	 *            The interarrival jitter, in timestamp units.
+	 * @param lastSenderReport
+	 *            The middle 32 bits of the NTP timestamp of the last sender
+	 *            report received, or 0.
+	 * @param delaySinceLastSenderReport
+	 *            The time since that report, in 1/65536 seconds, or 0.
+	 */
+	public static void writeReceiverReport(ByteBuffer out, int ssrc, int mediaSsrc, int fractionLost,
+			long cumulativeLost, int highestSequence, int jitter, int lastSenderReport,
+			int delaySinceLastSenderReport) {
+		writeHeader(out, 1, RECEIVER_REPORT, 7);
+		out.putInt(ssrc);
+		out.putInt(mediaSsrc);
+		long lost = Math.max(-0x800000, Math.min(0x7fffff, cumulativeLost));
+		out.putInt(fractionLost << 24 | (int) (lost & 0xffffff));
+		out.putInt(highestSequence);
+		out.putInt(jitter);
+		out.putInt(lastSenderReport);
+		out.putInt(delaySinceLastSenderReport);
+	}
+
+	/**
+	 * Writes a source description with the canonical name of a source.
+	 *
+	 * @param cname
+	 *            The name, in ASCII, at most 255 bytes.
+	 */
+	public static void writeSourceDescription(ByteBuffer out, int ssrc, byte[] cname) {
+		// SSRC, CNAME item, and at least one null octet ending the items, padded to 32 bits
+		int words = (4 + 2 + cname.length + 1 + 3) / 4;
+		int start = out.position();
+		writeHeader(out, 1, SOURCE_DESCRIPTION, words);
+		out.putInt(ssrc);
+		out.put((byte) CNAME);
+		out.put((byte) cname.length);
+		out.put(cname);
+		int end = start + 4 + words * 4;
+		while (out.position() < end)
+			out.put((byte) 0);
+	}
+
+	/**
+	 * Writes a generic NACK asking for the given packets again. Each entry
+	 * holds a packet ID and a bitmask of the 16 sequence numbers after it.
+	 *
+	 * @param sequenceNumbers
+	 *            The extended sequence numbers of the missing packets, in
+	 *            increasing order.
+	 * @param count
+	 *            The number of sequence numbers to use from the array.
+	 */
+	public static void writeGenericNack(ByteBuffer out, int senderSsrc, int mediaSsrc, long[] sequenceNumbers,
+			int count) {
+		int headerPosition = out.position();
+		out.position(headerPosition + 4);
+		out.putInt(senderSsrc);
+		out.putInt(mediaSsrc);
+		int entries = 0;
+		for (int i = 0; i < count; entries++) {
+			long pid = sequenceNumbers[i++];
+			int bitmask = 0;
+			while (i < count && sequenceNumbers[i] - pid <= BITMASK_LENGTH) {
+				bitmask |= 1 << (sequenceNumbers[i] - pid - 1);
+				i++;
+			}
+			out.putShort((short) pid);
+			out.putShort((short) bitmask);
+		}
+		int end = out.position();
+		out.position(headerPosition);
+		writeHeader(out, GENERIC_NACK, TRANSPORT_FEEDBACK, 2 + entries);
+		out.position(end);
+	}
+
+	/**
+	 * Writes a BYE, telling the sender the source is leaving the session.
+	 */
+	public static void writeGoodbye(ByteBuffer out, int ssrc) {
+		writeHeader(out, 1, GOODBYE, 1);
+		out.putInt(ssrc);
+	}
+
+	// version, no padding, the count (or format), the packet type and the length in 32-bit words minus one
+	private static void writeHeader(ByteBuffer out, int count, int packetType, int words) {
+		out.put((byte) (VERSION << 6 | count));
+		out.put((byte) packetType);
+		out.putShort((short) words);
+	}
+}
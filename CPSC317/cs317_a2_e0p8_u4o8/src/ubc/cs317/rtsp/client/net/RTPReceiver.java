@@ -0,0 +1,347 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+
+/**
+ * This class receives RTP packets on a non-blocking DatagramChannel from a
+ * dedicated thread. Packets are read back to back as soon as the selector
+ * reports them, the kernel receive buffer is sized from the measured bitrate of
+ * the stream and an idle stream is detected by the receiver's own clock instead
+ * of socket timeouts. Packets are read straight into buffers taken from a
+ * BufferPool, so nothing is allocated per packet.
+ *
+ * The channel is bound to an even port, with a second channel on the next
+ * port for RTCP (RFC 3550 section 11). RTCP packets are sent to the port
+ * after the one the RTP packets come from, and RTCP packets received are
+ * given to the handler on the same thread as RTP packets.
+ */
+public class RTPReceiver {
+	private static final int MINIMUM_RECEIVE_BUFFER = 64 * 1024;
+	private static final int MAXIMUM_RECEIVE_BUFFER = 8 * 1024 * 1024;
+	private static final int INITIAL_RECEIVE_BUFFER = 256 * 1024;
+	private static final long RECEIVE_BUFFER_MS = 2000; // amount of stream the kernel should be able to hold
+	private static final long BITRATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final long IDLE_CHECK_MS = 50;
+	private static final long DEFAULT_IDLE_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(1000);
+	private static final long MINIMUM_IDLE_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(250);
+	private static final long MAXIMUM_IDLE_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(2000);
+	private static final int IDLE_INTERVAL_MULTIPLIER = 8;
+	private static final int PORT_PAIR_ATTEMPTS = 100;
+	private static final int CONTROL_BUFFER_SIZE = 1500;
+
+	/**
+	 * Callback used by the receiver. Every method is called from the receiver
+	 * thread, so they should return quickly.
+	 */
+	public interface PacketHandler {
+
+		/**
+		 * Called for every datagram received. The handler takes ownership of
+		 * the buffer, which was acquired from the receiver's pool and must be
+		 * given back to it (usually through Frame.release) when no longer
+		 * needed.
+		 */
+		public void packetReceived(ByteBuffer packet, long arrivalNanos);
+
+		/**
+		 * Called once when no packet arrived for longer than the idle timeout.
+		 */
+		public void streamIdle(long idleNanos);
+
+		/**
+		 * Called for every RTCP packet received on the RTCP port. The packet
+		 * is only valid until the method returns.
+		 */
+		public void controlPacketReceived(ByteBuffer packet, long arrivalNanos);
+
+		/**
+		 * Called at least every IDLE_CHECK_MS while the receiver runs, for
+		 * timers that have to run on the receiver thread.
+		 */
+		public void tick(long now);
+	}
+
+	private final PacketHandler handler;
+	private final DatagramChannel channel;
+	private final DatagramChannel controlChannel;
+	private final Selector selector;
+	private final BufferPool pool;
+	private final ByteBuffer controlBuffer = ByteBuffer.allocate(CONTROL_BUFFER_SIZE);
+	private ByteBuffer buffer;
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile boolean idle;
+
+	// only touched by the receiver thread
+	private boolean receivedSinceStart;
+	private long lastArrivalNanos;
+	private long meanInterarrivalNanos;
+	private long windowStartNanos;
+	private long windowBytes;
+	private int receiveBufferSize;
+	private SocketAddress sender;
+	private volatile InetSocketAddress controlPeer; // the RTCP port of the sender
+
+	/**
+	 * Opens the channels, bound to a pair of ephemeral local ports. No packet
+	 * is read until <code>start</code> is called.
+	 *
+	 * @param handler
+	 *            The handler called for every packet received.
+	 * @param pool
+	 *            The pool packets are received into.
+	 * @throws IOException
+	 *             If the channel could not be opened or bound.
+	 */
+	public RTPReceiver(PacketHandler handler, BufferPool pool) throws IOException {
+		this.handler = handler;
+		this.pool = pool;
+		DatagramChannel[] pair = openPortPair();
+		channel = pair[0];
+		controlChannel = pair[1];
+		try {
+			channel.configureBlocking(false);
+			controlChannel.configureBlocking(false);
+			setReceiveBufferSize(INITIAL_RECEIVE_BUFFER);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			controlChannel.register(selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			channel.close();
+			controlChannel.close();
+			throw e;
+		}
+	}
+
+	// binds RTP to an even port and RTCP to the next one, retrying when the next one is taken
+	private static DatagramChannel[] openPortPair() throws IOException {
+		for (int attempt = 0; attempt < PORT_PAIR_ATTEMPTS; attempt++) {
+			DatagramChannel rtp = DatagramChannel.open();
+			DatagramChannel rtcp = DatagramChannel.open();
+			try {
+				rtp.bind(new InetSocketAddress(0));
+				int port = rtp.socket().getLocalPort();
+				if (port % 2 == 0 && port < 65535) {
+					rtcp.bind(new InetSocketAddress(port + 1));
+					return new DatagramChannel[] { rtp, rtcp };
+				}
+			}
+			catch (IOException e) {} // taken, try another pair
+			rtp.close();
+			rtcp.close();
+		}
+		// no pair, RTCP on any port still works for sending
+		DatagramChannel rtp = DatagramChannel.open();
+		DatagramChannel rtcp = DatagramChannel.open();
+		rtp.bind(new InetSocketAddress(0));
+		rtcp.bind(new InetSocketAddress(0));
+		return new DatagramChannel[] { rtp, rtcp };
+	}
+
+	/**
+	 * Returns the local port the channel is bound to.
+	 */
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Sends an RTCP packet to the sender of the stream, from the RTCP port.
+	 * Usually called from the receiver thread (from the packet handler); does
+	 * nothing before the first packet arrived, since the sender isn't known
+	 * yet, and the packet is lost if the socket buffer is full.
+	 *
+	 * @param packet
+	 *            The packet, from its position to its limit.
+	 */
+	public void sendControl(ByteBuffer packet) {
+		if (controlPeer == null) return;
+		try {
+			controlChannel.send(packet, controlPeer);
+		}
+		catch (IOException e) {} // like a lost packet, feedback is best effort
+	}
+
+	/**
+	 * Returns true if no packet arrived for longer than the idle timeout since
+	 * the receiver was started.
+	 */
+	public boolean isIdle() {
+		return idle;
+	}
+
+	/**
+	 * Starts the receiver thread. Does nothing if it's already running.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		idle = false;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		}, "rtp-receiver-" + getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the receiver thread, packets that arrive afterwards stay in the
+	 * kernel buffer. The channel remains open.
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		selector.wakeup();
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+
+	/**
+	 * Stops the receiver and releases the channel.
+	 */
+	public void close() {
+		stop();
+		try {
+			selector.close();
+		}
+		catch (IOException e) {} // swallow
+		try {
+			channel.close();
+		}
+		catch (IOException e) {} // swallow
+		try {
+			controlChannel.close();
+		}
+		catch (IOException e) {} // swallow
+		synchronized (this) {
+			if (buffer != null) pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	private void receiveLoop() {
+		long now = System.nanoTime();
+		receivedSinceStart = false;
+		lastArrivalNanos = now;
+		windowStartNanos = now;
+		windowBytes = 0;
+		try {
+			while (running) {
+				if (selector.select(IDLE_CHECK_MS) > 0) {
+					selector.selectedKeys().clear();
+					drain();
+					drainControl();
+				}
+				now = System.nanoTime();
+				checkIdle(now);
+				handler.tick(now);
+			}
+		}
+		catch (IOException e) {
+			// channel closed underneath us, nothing more to receive
+			running = false;
+		}
+	}
+
+	// reads every datagram currently queued in the kernel, back to back
+	private void drain() throws IOException {
+		while (running) {
+			// an unused buffer is kept for the next read instead of going back to the pool
+			if (buffer == null) buffer = pool.acquire();
+			SocketAddress from = channel.receive(buffer);
+			if (from == null) return;
+			long arrival = System.nanoTime();
+			if (!from.equals(sender)) senderChanged(from);
+			ByteBuffer packet = buffer;
+			buffer = null;
+			packet.flip();
+
+			if (receivedSinceStart) {
+				long interarrival = arrival - lastArrivalNanos;
+				meanInterarrivalNanos = meanInterarrivalNanos == 0 ? interarrival :
+						meanInterarrivalNanos + (interarrival - meanInterarrivalNanos) / 16;
+			}
+			receivedSinceStart = true;
+			lastArrivalNanos = arrival;
+			idle = false;
+			windowBytes += packet.remaining();
+			adjustReceiveBuffer(arrival);
+
+			handler.packetReceived(packet, arrival);
+		}
+	}
+
+	// RTCP is rare, it's simpler to try reading it whenever the selector wakes up
+	private void drainControl() throws IOException {
+		while (running) {
+			controlBuffer.clear();
+			if (controlChannel.receive(controlBuffer) == null) return;
+			controlBuffer.flip();
+			handler.controlPacketReceived(controlBuffer, System.nanoTime());
+		}
+	}
+
+	private void senderChanged(SocketAddress from) {
+		sender = from;
+		InetSocketAddress address = (InetSocketAddress) from;
+		controlPeer = new InetSocketAddress(address.getAddress(), address.getPort() + 1);
+	}
+
+	private void checkIdle(long now) {
+		if (idle) return;
+		long idleNanos = now - lastArrivalNanos;
+		if (idleNanos >= idleTimeoutNanos()) {
+			idle = true;
+			handler.streamIdle(idleNanos);
+		}
+	}
+
+	// a stream is idle when no packet arrived for several typical interarrival gaps
+	private long idleTimeoutNanos() {
+		if (meanInterarrivalNanos == 0) return DEFAULT_IDLE_TIMEOUT_NS;
+		long timeout = meanInterarrivalNanos * IDLE_INTERVAL_MULTIPLIER;
+		return Math.max(MINIMUM_IDLE_TIMEOUT_NS, Math.min(MAXIMUM_IDLE_TIMEOUT_NS, timeout));
+	}
+
+	// resize the kernel buffer so it can hold RECEIVE_BUFFER_MS of the stream at its current bitrate
+	private void adjustReceiveBuffer(long now) throws IOException {
+		long elapsed = now - windowStartNanos;
+		if (elapsed < BITRATE_WINDOW_NS) return;
+		long bytesPerSecond = windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+		windowStartNanos = now;
+		windowBytes = 0;
+
+		long wanted = bytesPerSecond * RECEIVE_BUFFER_MS / 1000;
+		int size = (int) Math.max(MINIMUM_RECEIVE_BUFFER, Math.min(MAXIMUM_RECEIVE_BUFFER, wanted));
+		// only bother the kernel when the change is significant
+		if (Math.abs(size - receiveBufferSize) > receiveBufferSize / 4)
+			setReceiveBufferSize(size);
+	}
+
+	private void setReceiveBufferSize(int size) throws IOException {
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+		receiveBufferSize = size;
+	}
+}
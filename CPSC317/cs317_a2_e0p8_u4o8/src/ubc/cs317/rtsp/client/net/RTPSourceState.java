@@ -0,0 +1,255 @@
+package ubc.cs317.rtsp.client.net;
+
+/**
+ * Per-source reception state, following the algorithm of RFC 3550 appendix
+ * A.1. It extends the 16-bit RTP sequence number and the 32-bit RTP timestamp
+ * into 64-bit values that keep increasing across wraparounds, so ordering and
+ * statistics stay correct on long streams. It also estimates the interarrival
+ * jitter (appendix A.8) and counts reordered packets. All updates must come
+ * from a single thread (the receiver).
+ *
+ * Unlike the RFC there is no probation period: the source is known from the
+ * SETUP exchange, so the first packet already starts the sequence.
+ */
+public class RTPSourceState {
+	/**
+	 * Returned by <code>update</code> for packets that should be discarded.
+	 */
+	public static final long INVALID_SEQUENCE = Long.MIN_VALUE;
+
+	private static final int RTP_SEQ_MOD = 1 << 16;
+	private static final int MAX_DROPOUT = 3000;
+	private static final int MAX_MISORDER = 100;
+	private static final long NANOS_PER_TIMESTAMP_UNIT = 1000000; // timestamps are in milliseconds
+
+	private boolean initialized;
+	private int maxSeq;         // highest sequence number seen
+	private long cycles;        // shifted count of sequence number cycles
+	private int baseSeq;        // first sequence number of the current run
+	private int badSeq;         // last 'bad' sequence number + 1
+	private long sequenceOffset; // keeps extended numbers increasing across a resync
+	private long received;      // packets received in the current run
+	private long reordered;     // packets that arrived after a later packet
+	private long lastExtendedSeq;
+
+	private boolean hasTimestamp;
+	private long maxTimestamp;  // highest extended timestamp seen
+
+	private boolean hasTransit;
+	private long transit;       // relative transit time of the previous packet
+	private double jitter;      // estimated interarrival jitter, in timestamp units
+	private double reorderDistance; // average timestamp distance of reordered packets behind the newest one
+
+	/**
+	 * Updates the state with a newly received packet.
+	 *
+	 * @param seq
+	 *            The 16-bit sequence number of the packet.
+	 * @return The extended sequence number of the packet, or INVALID_SEQUENCE
+	 *         if the packet should be discarded because its number jumped
+	 *         too far away from the stream.
+	 */
+	public long update(int seq) {
+		seq &= RTP_SEQ_MOD - 1;
+		if (!initialized) {
+			initSeq(seq);
+			sequenceOffset = 0;
+			initialized = true;
+			received++;
+			lastExtendedSeq = extend(seq);
+			return lastExtendedSeq;
+		}
+
+		int udelta = (seq - maxSeq) & (RTP_SEQ_MOD - 1);
+		if (udelta < MAX_DROPOUT) {
+			// in order, with permissible gap
+			if (seq < maxSeq) {
+				// sequence number wrapped - count another 64K cycle
+				cycles += RTP_SEQ_MOD;
+			}
+			maxSeq = seq;
+		}
+		else if (udelta <= RTP_SEQ_MOD - MAX_MISORDER) {
+			// the sequence number made a very large jump
+			if (seq == badSeq) {
+				// two sequential packets -- assume that the other side restarted
+				// without telling us so just re-sync, continuing the extended numbers
+				long previousMax = getExtendedMaxSequence();
+				initSeq(seq);
+				sequenceOffset = previousMax + 1 - seq;
+			}
+			else {
+				badSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+				return INVALID_SEQUENCE;
+			}
+		}
+		else {
+			// duplicate or reordered packet
+			reordered++;
+		}
+		received++;
+		lastExtendedSeq = extend(seq);
+		return lastExtendedSeq;
+	}
+
+	/**
+	 * Updates the state with a packet sent again because the receiver asked
+	 * for it. It arrives behind newer packets on purpose, so it isn't counted
+	 * as reordered, and it must not be given to <code>updateJitter</code>
+	 * either since its transit time includes the request.
+	 *
+	 * @return The extended sequence number of the packet, as
+	 *         <code>update</code>.
+	 */
+	public long updateRetransmitted(int seq) {
+		long reorderedBefore = reordered;
+		long sequence = update(seq);
+		reordered = reorderedBefore;
+		return sequence;
+	}
+
+	/**
+	 * Updates the interarrival jitter estimate with a packet, as in RFC 3550
+	 * A.8, and the reorder distance if the packet arrived out of order. Must be
+	 * called after <code>update</code> and <code>extendTimestamp</code> for
+	 * the same packet.
+	 *
+	 * @param extendedTimestamp
+	 *            The extended RTP timestamp of the packet.
+	 * @param arrivalNanos
+	 *            The arrival time of the packet, from System.nanoTime.
+	 */
+	public void updateJitter(long extendedTimestamp, long arrivalNanos) {
+		long arrival = arrivalNanos / NANOS_PER_TIMESTAMP_UNIT;
+		long newTransit = arrival - extendedTimestamp;
+		if (hasTransit) {
+			long d = Math.abs(newTransit - transit);
+			jitter += (d - jitter) / 16.0;
+		}
+		hasTransit = true;
+		transit = newTransit;
+
+		if (lastExtendedSeq < getExtendedMaxSequence()) {
+			long distance = maxTimestamp - extendedTimestamp;
+			reorderDistance += (distance - reorderDistance) / 16.0;
+		}
+	}
+
+	/**
+	 * Returns the estimated interarrival jitter, in timestamp units
+	 * (milliseconds).
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Returns the number of packets that arrived after a packet with a higher
+	 * sequence number, including duplicates.
+	 */
+	public long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * Returns the average distance, in timestamp units, between a reordered
+	 * packet and the newest packet received before it. It is how far back the
+	 * playout should stay for reordered packets to arrive in time.
+	 */
+	public double getReorderDistance() {
+		return reorderDistance;
+	}
+
+	/**
+	 * Extends a 32-bit RTP timestamp relative to the highest timestamp seen so
+	 * far. Timestamps may arrive out of order by up to half the 32-bit range.
+	 *
+	 * @return The extended timestamp.
+	 */
+	public long extendTimestamp(int timestamp) {
+		if (!hasTimestamp) {
+			hasTimestamp = true;
+			maxTimestamp = timestamp & 0xffffffffL;
+			return maxTimestamp;
+		}
+		long extended = maxTimestamp + (timestamp - (int) maxTimestamp);
+		if (extended > maxTimestamp) maxTimestamp = extended;
+		return extended;
+	}
+
+	/**
+	 * Returns the number of times the 16-bit sequence number wrapped around.
+	 */
+	public long getSequenceCycles() {
+		return cycles / RTP_SEQ_MOD;
+	}
+
+	/**
+	 * Returns the number of times the 32-bit timestamp wrapped around.
+	 */
+	public long getTimestampCycles() {
+		return maxTimestamp >>> 32;
+	}
+
+	/**
+	 * Returns the highest extended sequence number received.
+	 */
+	public long getExtendedMaxSequence() {
+		return sequenceOffset + cycles + maxSeq;
+	}
+
+	/**
+	 * Returns the extended highest sequence number as a reception report
+	 * gives it: the highest 16-bit sequence number plus the count of cycles
+	 * since the start of the stream (or the last resync).
+	 */
+	public long getReportedMaxSequence() {
+		return cycles + maxSeq;
+	}
+
+	/**
+	 * Returns the highest extended timestamp received.
+	 */
+	public long getExtendedMaxTimestamp() {
+		return maxTimestamp;
+	}
+
+	/**
+	 * Returns the number of packets expected since the start of the stream (or
+	 * the last resync), from the first and highest sequence numbers received.
+	 */
+	public long getExpected() {
+		if (!initialized) return 0;
+		return cycles + maxSeq - baseSeq + 1;
+	}
+
+	/**
+	 * Returns the number of packets received, including duplicates and late
+	 * packets.
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Returns the cumulative number of packets lost. As in RFC 3550 it can be
+	 * negative when duplicates arrive.
+	 */
+	public long getLost() {
+		return getExpected() - received;
+	}
+
+	private void initSeq(int seq) {
+		baseSeq = seq;
+		maxSeq = seq;
+		badSeq = RTP_SEQ_MOD + 1; // so seq == badSeq is false
+		cycles = 0;
+		received = 0;
+	}
+
+	private long extend(int seq) {
+		// a reordered packet numbered above the maximum belongs to the previous cycle
+		long cycle = seq > maxSeq ? cycles - RTP_SEQ_MOD : cycles;
+		return sequenceOffset + cycle + seq;
+	}
+}
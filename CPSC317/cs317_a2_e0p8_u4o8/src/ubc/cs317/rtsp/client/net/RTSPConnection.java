@@ -15,51 +15,206 @@ package ubc.cs317.rtsp.client.net;
 
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.BufferPool;
 import ubc.cs317.rtsp.client.model.Frame;
 import ubc.cs317.rtsp.client.model.Session;
 
 /**
  * This class represents a connection with an RTSP server.
+ *
+ * Requests don't wait for each other: each request is written right away and
+ * returns a CompletableFuture, and a thread per connection reads the responses
+ * and matches them to their request by CSeq. Requests that need the session
+ * number of a stream whose SETUP hasn't been answered yet wait for that
+ * response and are then sent in the order they were made. A request that gets
+ * no response within RESPONSE_TIMEOUT_MS fails on its own, without affecting
+ * the others.
+ *
+ * The futures are completed on the thread reading responses, so code
+ * depending on them must not wait for another response.
+ *
+ * RTP packets come on UDP, or interleaved with the responses on the RTSP
+ * connection itself (RTP/AVP/TCP) when the system property rtsp.transport is
+ * "tcp". Interleaved packets are split from the responses by the same reader
+ * thread, each stream on a channel of its own. UDP streams send RTCP receiver
+ * reports (RTCPSession), and packets lost on UDP are asked for again with
+ * RTCP NACKs, unless the system property rtsp.nack is "false".
+ *
+ * Pausing only stops the playout, the server keeps sending. When the buffer
+ * goes over its BufferBudget the server is sent a PAUSE, and a PLAY once
+ * enough of the buffer has been played.
+ *
+ * With a VideoCache (the system property rtsp.cache.dir), streams received
+ * from the network are recorded into it, and a video cached in full is
+ * played from the disk by a CachedSource: its requests are answered right
+ * away, without going to the server.
  */
 public class RTSPConnection {
-	private static final int BUFFER_LENGTH = 15000;
-	private static final long MINIMUM_DELAY_READ_PACKETS_MS =1;
-	private static final int MINIMUM_FRAME_BUFFER_SIZE = 0;
-	private static final int RECOMMENDED_FRAME_BUFFER_SIZE = 50;
-	private static final int POLL_BUFFER_DELAY_MS = 15;
+	private static final int RECEIVE_BUFFER_SIZE = 4096;
+	private static final long RESPONSE_TIMEOUT_MS = 5000;
+	private static final int IDLE_CHECK_MS = 250;
+	private static final long INTERLEAVED_IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(1);
+	private static final int CHANNEL_COUNT = 256;
+
+	/**
+	 * The system property choosing how RTP packets are received: "udp" (the
+	 * default) or "tcp" for packets interleaved on the RTSP connection.
+	 */
+	public static final String TRANSPORT_PROPERTY = "rtsp.transport";
+
+	/**
+	 * The system property turning the NACK of lost UDP packets off, with
+	 * "false".
+	 */
+	public static final String NACK_PROPERTY = "rtsp.nack";
 	private static final int INIT = 0;
 	private static final int READY = 1;
 	private static final int PLAYING = 2;
 
+	// fails the requests that got no response in time, shared by every connection
+	private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "rtsp-timeouts");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Handles the response to a request, on the thread reading responses. The
+	 * response is only valid until the method returns.
+	 */
+	private interface ResponseHandler {
+		public void handle(RTSPResponseParser response) throws RTSPException;
+	}
+
+	// a request, from when it's made until its response is handled
+	private static class Request {
+		final String method;
+		final String headers;
+		final ResponseHandler handler;
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		Future<?> timeout;
+
+		Request(String method, String headers, ResponseHandler handler) {
+			this.method = method;
+			this.headers = headers;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Everything about one video, from its SETUP to its TEARDOWN. A new SETUP
+	 * may be sent before the TEARDOWN of the previous stream is answered, so
+	 * responses work on the stream they were sent for rather than on the
+	 * current one.
+	 */
+	private class Stream {
+		final String videoName;
+		final RTPReceiver receiver; // null for an interleaved or cached stream
+		final CacheEntry cached; // what the stream is played from, null unless cached
+		volatile PlaybackPipeline pipeline;
+		PacketCapture capture;
+		CachedSource source;
+		CacheEntry recording; // what the stream is recorded into, if anything
+		int channel; // of the interleaved RTP packets
+		volatile RTCPSession rtcp; // null for an interleaved stream
+
+		// interleaved streams, only touched by the reader thread
+		boolean receiving;
+		boolean idle;
+		long lastArrivalNanos;
+
+		// guarded by the connection
+		String sessionNo; // null until the SETUP is answered
+		RTSPException failure; // why the SETUP failed
+		boolean throttled; // paused because the buffer is full
+		final List<Request> waiting = new ArrayList<Request>(); // for the session number
+		boolean closed;
+
+		Stream(String videoName, boolean interleaved, int channel, CacheEntry cached) throws IOException {
+			this.videoName = videoName;
+			this.receiver = interleaved || cached != null ? null : createRTPReceiver(this);
+			this.channel = channel;
+			this.cached = cached;
+		}
+
+		String getTransport() {
+			if (receiver == null) return "RTP/AVP/TCP;interleaved=" + channel + "-" + (channel + 1);
+			return "RTP/UDP; client_port= " + receiver.getLocalPort() + ";";
+		}
+
+		// RTP packets go to the pipeline from the PLAY response, and their absence makes the stream idle
+		void startReceiving() {
+			if (source != null) {
+				source.start();
+				return;
+			}
+			if (receiver != null) {
+				receiver.start();
+				return;
+			}
+			receiving = true;
+			idle = false;
+			lastArrivalNanos = System.nanoTime();
+		}
+
+		void stopReceiving() {
+			if (source != null) source.stop();
+			if (receiver != null) receiver.stop();
+			receiving = false;
+		}
+	}
+
 	private Session session;
-	private Timer rtpTimer;
+	private final String server;
+	private final int port;
+	private final VideoCache cache = VideoCache.getDefault();
+	private final RTSPResponseParser localResponse = okResponse(); // to the requests of cached streams
+	private final RewindWindow rewindWindow = RewindWindow.fromSystemProperties(); // of each stream in turn
 
 	private Socket connection;
-	private DatagramSocket rtpConnection;
 	private BufferedWriter out;
-	private BufferedReader in;
+	private InputStream in;
+	private final ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE).flip();
+	private final RTSPResponseParser parser = new RTSPResponseParser();
+	private final InterleavedFramer framer = new InterleavedFramer(BufferPool.getDefault());
+	private final AtomicReferenceArray<Stream> channels = new AtomicReferenceArray<Stream>(CHANNEL_COUNT);
+	private final Thread reader;
+	private final byte[] cname; // of the receiver, in RTCP
 
-	private String sessionNo;
-	private String vidName;
+	// guarded by this
+	private final Map<Integer, Request> pending = new HashMap<Integer, Request>();
+	private Stream stream;
 	private int seq = 1;
-	private int status = INIT; // status of the server
+	private int nextChannel;
+	private int status = INIT; // status of the server once every request sent is answered
 	private boolean isPlaying;
+	private RTSPException connectionFailure; // once the reader stopped, every request fails with it
 
-	private Timer rtpPlayTimer;
-	private Timer rtpPlayFrameTimer;
-	private PriorityQueue<Frame> frameBuffer;
-	private boolean isBuffering;
-	private volatile int consecutivePacketLoss;
-	private short lastSequenceNumber;
-	private int lastTimestamp;
-	private long lastSystemTimestamp;
-	private short tentativeSequenceNumber;
+	private final SessionMetrics metrics = new SessionMetrics();
 
 	private static final boolean LOG = false;
-	private List<FrameLog> frameLog;
 
 	/**
 	 * Establishes a new connection with an RTSP server. No message is sent at
@@ -77,11 +232,13 @@ public class RTSPConnection {
 	 */
 	public RTSPConnection(Session session, String server, int port) throws RTSPException {
 		this.session = session;
+		this.server = server;
+		this.port = port;
 		try {
 			connection = new Socket(server, port);
-			connection.setSoTimeout(5000);
+			connection.setSoTimeout(IDLE_CHECK_MS); // to notice idle interleaved streams
 			out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-			in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+			in = connection.getInputStream();
 		}
 		catch (UnknownHostException e) {
 			throw new RTSPException("Unknown host.");
@@ -89,378 +246,535 @@ public class RTSPConnection {
 		catch (IOException e) {
 			throw new RTSPException("Unable to establish connection to RTSP server.");
 		}
+		metrics.register();
+		cname = (metrics.getName() + "@" + connection.getLocalAddress().getHostAddress())
+				.getBytes(StandardCharsets.US_ASCII);
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "rtsp-responses-" + connection.getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Returns the live metrics of this connection, which are also published
+	 * through JMX while the connection is open.
+	 */
+	public SessionMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
-	 * Sends a SETUP request to the server if session not already sent.
-	 * Sends a PLAY request if it had not been sent.
+	 * Sends a SETUP request to the server if session not already sent, and a
+	 * PLAY request right behind it, without waiting for any response.
 	 * 
 	 * @param videoName
 	 *            The name of the video to be setup.
+	 * @return A future completed once both requests are answered, or
+	 *         completed exceptionally with an RTSPException if there was an
+	 *         error sending or receiving the RTSP data, or if the RTP socket
+	 *         could not be created, or if the server did not return a
+	 *         successful response.
+	 */
+	public synchronized CompletableFuture<Void> setupAsync(String videoName) {
+		if (status != INIT) return CompletableFuture.completedFuture(null);
+		final Stream setup;
+		CacheEntry cached = cache == null ? null : cache.openForPlayback(VideoCache.getKey(server, port, videoName));
+		try {
+			setup = new Stream(videoName, "tcp".equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY)), nextChannel,
+					cached);
+			nextChannel = (nextChannel + 2) % CHANNEL_COUNT;
+		}
+		catch (IOException e) {
+			return failed(new RTSPException("Unable to establish RTP socket."));
+		}
+		stream = setup;
+		status = READY;
+		isPlaying = false;
+		if (cached != null) {
+			// nothing to ask the server, the video is on disk
+			streamSetUp(setup, "cached", setup.channel);
+			return sendPlayRequest();
+		}
+
+		Request request = new Request("SETUP", "Transport: " + setup.getTransport() + "\n", new ResponseHandler() {
+			@Override
+			public void handle(RTSPResponseParser response) throws RTSPException {
+				if (response.getResponseCode() != 200) throw error(response.getResponseCode());
+				int channel = setup.channel;
+				if (setup.receiver == null) {
+					// the server picks the channels in the end
+					channel = parseInterleavedChannel(response.getHeaderValue("Transport"));
+					if (channel < 0) throw new RTSPException("Server does not support interleaved transport.");
+				}
+				streamSetUp(setup, response.getHeaderValue("Session"), channel);
+			}
+		});
+		request.result.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				if (failure != null) streamFailed(setup, RTSPException.unwrap(failure));
+			}
+		});
+		send(request, videoName, null);
+		return sendPlayRequest(); // immediately start buffering if possible
+	}
+
+	/**
+	 * Blocking version of <code>setupAsync</code>.
+	 *
 	 * @throws RTSPException
 	 *             If there was an error sending or receiving the RTSP data, or
 	 *             if the RTP socket could not be created, or if the server did
 	 *             not return a successful response.
 	 */
-	public synchronized void setup(String videoName) throws RTSPException {
-		sendSetupRequest(videoName);
-		sendPlayRequest(); // immediately start buffering if possible
+	public void setup(String videoName) throws RTSPException {
+		await(setupAsync(videoName));
 	}
 
 	/**
-	 * Plays the video (will be stored in buffer).
+	 * Plays the video (will be stored in buffer). The playout starts right
+	 * away, it shows frames as soon as enough of them are buffered.
 	 *
-	 * @throws RTSPException
-	 *             If there was an error sending or receiving the RTSP data, or
-	 *             if the server did not return a successful response.
+	 * @return A future completed once the PLAY request, if one was needed, is
+	 *         answered, or completed exceptionally with an RTSPException if
+	 *         there was an error sending or receiving the RTSP data, or if the
+	 *         server did not return a successful response.
 	 */
-	public synchronized void play() throws RTSPException {
-		sendPlayRequest(); // note that play request will not be sent if server is already in PLAY state
+	public synchronized CompletableFuture<Void> playAsync() {
+		// note that play request will not be sent if server is already in PLAY state, or paused until the buffer drains
+		CompletableFuture<Void> result = stream != null && stream.throttled ? CompletableFuture.<Void> completedFuture(null)
+				: sendPlayRequest();
 		if (status != INIT && !isPlaying) {
 			isPlaying = true;
-			lastSystemTimestamp = -1;
-			startRTPPlayTimer();
+			// otherwise started once the stream is set up
+			if (stream.pipeline != null) startPlayout(stream.pipeline);
 		}
+		updateEndExpected();
+		return result;
 	}
 
 	/**
-	 * Pause playing. Cancel thread for playing the video.
+	 * Blocking version of <code>playAsync</code>.
 	 *
 	 * @throws RTSPException
 	 *             If there was an error sending or receiving the RTSP data, or
 	 *             if the server did not return a successful response.
 	 */
-	public synchronized void pause() throws RTSPException {
+	public void play() throws RTSPException {
+		await(playAsync());
+	}
+
+	/**
+	 * Pause playing. Cancel thread for playing the video. The server keeps
+	 * sending, so no request is needed.
+	 *
+	 * @return A completed future.
+	 */
+	public synchronized CompletableFuture<Void> pauseAsync() {
 		isPlaying = false;
-		cancelRTPPlayTimer();
+		if (stream != null && stream.pipeline != null) {
+			InstantReplay replay = stream.pipeline.getInstantReplay();
+			if (replay != null) replay.pause();
+			stream.pipeline.getPlayout().stop();
+		}
+		updateEndExpected();
+		return CompletableFuture.completedFuture(null);
 	}
 
 	/**
-	 * Starts a timer that reads RTP packets repeatedly. The timer will wait at
-	 * least MINIMUM_DELAY_READ_PACKETS_MS after receiving a packet to read the
-	 * next one.
+	 * Blocking version of <code>pauseAsync</code>, which never blocks.
 	 */
-	private void startRTPTimer() {
-		rtpTimer = new Timer();
-		rtpTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				receiveRTPPacket();
-			}
-		}, 0, MINIMUM_DELAY_READ_PACKETS_MS);
+	public void pause() throws RTSPException {
+		await(pauseAsync());
 	}
 
 	/**
-	 * Receives a single RTP packet and processes the corresponding frame. The
-	 * data received from the datagram socket is assumed to be no larger than
-	 * BUFFER_LENGTH bytes. This data is then parsed into a Frame object (using
-	 * the parseRTPPacket method) and the method session.processReceivedFrame is
-	 * called with the resulting packet. In case of timeout no exception should
-	 * be thrown and no frame should be processed.
+	 * Shows the frame before the one shown, from the rewind window, and
+	 * pauses there. No request is needed, the server keeps sending.
+	 *
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if the stream has no rewind window.
 	 */
-	private void receiveRTPPacket() {
-		try {
-			byte[] buffer = new byte[BUFFER_LENGTH];
-			DatagramPacket packet = new DatagramPacket(buffer, 0, buffer.length);
-			rtpConnection.receive(packet);
-			consecutivePacketLoss = 0;
-			Frame frame = parseRTPPacket(buffer, packet.getLength());
-			synchronized (this) {
-				frameBuffer.offer(frame);
-			}
-			if (LOG) {
-				System.out.println("received frame " + frame.getSequenceNumber() + " " + frame.getTimestamp());
-				frameLog.add(new FrameLog(frame, System.currentTimeMillis()));
-			}
-		}
-		catch (IOException e) {
-			consecutivePacketLoss++;
-		}
+	public synchronized CompletableFuture<Void> stepBackAsync() {
+		InstantReplay replay = getInstantReplay();
+		if (replay == null) return failed(new RTSPException("Nothing to rewind."));
+		isPlaying = false;
+		updateEndExpected();
+		replay.stepBack();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Shows the frame after the one shown, from the rewind window, and
+	 * pauses there. Once past the rewind window, playing goes on from the
+	 * buffer.
+	 *
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if the stream has no rewind window.
+	 */
+	public synchronized CompletableFuture<Void> stepForwardAsync() {
+		InstantReplay replay = getInstantReplay();
+		if (replay == null) return failed(new RTSPException("Nothing to rewind."));
+		isPlaying = false;
+		updateEndExpected();
+		replay.stepForward();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Goes back in the rewind window by the given time, or to its oldest
+	 * frame. If the video is playing, it plays on from there, otherwise it
+	 * stays paused on that frame.
+	 *
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if the stream has no rewind window.
+	 */
+	public synchronized CompletableFuture<Void> seekBackAsync(long millis) {
+		InstantReplay replay = getInstantReplay();
+		if (replay == null) return failed(new RTSPException("Nothing to rewind."));
+		replay.seekBack(millis, isPlaying);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Plays the rewind window backwards from the frame shown, until the
+	 * oldest frame or a pause. Playing again goes forwards from there.
+	 *
+	 * @return A completed future, completed exceptionally with an
+	 *         RTSPException if the stream has no rewind window.
+	 */
+	public synchronized CompletableFuture<Void> playBackwardAsync() {
+		InstantReplay replay = getInstantReplay();
+		if (replay == null) return failed(new RTSPException("Nothing to rewind."));
+		isPlaying = false;
+		updateEndExpected();
+		replay.playBackward();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	// the replay of the stream played, null if it's not set up or has no rewind window
+	private InstantReplay getInstantReplay() {
+		if (stream == null || stream.pipeline == null) return null;
+		return stream.pipeline.getInstantReplay();
+	}
+
+	// resumes playing, from the rewind window first if it's being reviewed
+	private static void startPlayout(PlaybackPipeline pipeline) {
+		InstantReplay replay = pipeline.getInstantReplay();
+		if (replay != null) replay.playForward();
+		else pipeline.getPlayout().start();
 	}
 
 	/**
-	 * Starts a timer that reads RTP packets repeatedly. The timer will wait at
-	 * least MINIMUM_DELAY_READ_PACKETS_MS after receiving a packet to read the
-	 * next one.
+	 * Creates the receiver for RTP packets of a stream. Packets are delivered
+	 * to the playback pipeline of the stream from the receiver thread as soon
+	 * as they arrive, which is after the stream is set up.
 	 */
-	private void startRTPPlayTimer() {
-		rtpPlayTimer = new Timer();
-		rtpPlayTimer.schedule(new TimerTask() {
+	private RTPReceiver createRTPReceiver(final Stream stream) throws IOException {
+		return new RTPReceiver(new RTPReceiver.PacketHandler() {
 			@Override
-			public void run() {
-				playRTPPacket();
+			public void packetReceived(ByteBuffer packet, long arrivalNanos) {
+				stream.rtcp.rtpPacketReceived(packet, arrivalNanos);
+				stream.pipeline.packetReceived(packet, arrivalNanos);
 			}
-		}, 0, POLL_BUFFER_DELAY_MS);
-	}
-
-	private void playRTPPacket() {
-		// buffering control, play when size >= RECOMMENDED_FRAME_BUFFER_SIZE, stop when not enough frame
-		int size;
-		synchronized (this) { size = frameBuffer == null ? 0 : frameBuffer.size(); }
-		if (size >= RECOMMENDED_FRAME_BUFFER_SIZE || consecutivePacketLoss >= 3) {
-			// some frames may get stuck in buffer, since there's no way to know how long the vid is, we will
-			// assume 3 consecutive packet loss (or 3 seconds where no packets arrived) is the end of vid
-			isBuffering = false;
-		}
-		else if (size <= MINIMUM_FRAME_BUFFER_SIZE) {
-			isBuffering = true;
-			synchronized (session) { lastSystemTimestamp = -1; } // important so timing is correct
-		}
-		if (isBuffering) return;
-
-		// synchronized to prevent reading invalid data when an ooo packet arrives and we reschedule timer 3
-		// although the scenario doesn't happen for the assignment
-		synchronized (session) {
-			final Frame frame = findFrameToPlay();
-			if (frame == null) return;
-			// schedule it make sure it's run at roughly the right time, with correction made in playFrame()
-			// of course normal application would just use a fps instead of doing this...
-			if (tentativeSequenceNumber == frame.getSequenceNumber()) return;
-			cancelPlayFrameTimer();
-			rtpPlayFrameTimer = new Timer();
-			tentativeSequenceNumber = frame.getSequenceNumber();
-			long delay = lastSystemTimestamp < 0 ? 0 : // < 0 means user just presssed play then play frame immediately
-					     frame.getTimestamp() - lastTimestamp - (System.currentTimeMillis() - lastSystemTimestamp);
-			if (delay > 0) {
-				rtpPlayFrameTimer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						playFrame(frame);
-					}
-				}, delay);
+
+			@Override
+			public void streamIdle(long idleNanos) {
+				if (LOG) System.out.println("no packets for " + idleNanos / 1000000 + "ms");
+				stream.pipeline.streamIdle();
 			}
-			else {
-				playFrame(frame);
+
+			@Override
+			public void controlPacketReceived(ByteBuffer packet, long arrivalNanos) {
+				RTCPSession rtcp = stream.rtcp;
+				if (rtcp != null) rtcp.controlPacketReceived(packet, arrivalNanos);
 			}
-		}
-	}
 
-	// finds a frame that we can play, if not then returns null
-	public Frame findFrameToPlay() {
-		synchronized (this) {
-			// throws away frames that arrived too late
-			Frame frame = frameBuffer.peek();
-			// <= is important, if we played a frame, it will be discarded here
-			while (frame != null && frame.getSequenceNumber() <= lastSequenceNumber) {
-				frameBuffer.poll();
-				frame = frameBuffer.peek();
+			@Override
+			public void tick(long now) {
+				stream.rtcp.tick(now);
+				stream.pipeline.tick(now);
 			}
-			return frame; // frame = null if all the packets is late, prob never happening
-		}
+		}, BufferPool.getDefault());
 	}
 
-	// play a frame, record info with frame
-	public void playFrame(Frame frame) {
-		// synchronized to prevent timer 2 to read out of data/reschedule when ooo
-		// packet came in
-		synchronized (session) {
-			long currentTimestamp = System.currentTimeMillis();
-			session.processReceivedFrame(frame);
-			if (lastSystemTimestamp < 0) {
-				lastSystemTimestamp = currentTimestamp;
-			}
-			else {
-				// this gap is needed to correct accumulation in error of the timestamps
-				int gap = (int) (currentTimestamp - lastSystemTimestamp) - (frame.getTimestamp() - lastTimestamp);
-				lastSystemTimestamp = currentTimestamp - gap;
-			}
-			lastTimestamp = frame.getTimestamp();
-			lastSequenceNumber = frame.getSequenceNumber();
-			if (LOG) System.out.println("play frame " + frame.getSequenceNumber() + " at " + currentTimestamp);
-		}
+	/**
+	 * Creates the pipeline from received packets to the session, which gets
+	 * the frames when they are due.
+	 */
+	private PlaybackPipeline createPipeline() {
+		return new PlaybackPipeline(PlayoutScheduler.getDefault(), BufferPool.getDefault(), metrics,
+				new Playout.Presenter() {
+				@Override
+				public void present(Frame frame) {
+					session.processReceivedFrame(frame);
+				}
+	
+				@Override
+				public void prepare(Frame frame) {
+					session.prepareFrame(frame);
+				}
+			});
 	}
 
 	/**
-	 * Sends a TEARDOWN request to the server. This method is responsible for
-	 * sending the request, receiving the response and, in case of a successful
-	 * response, closing the RTP socket. This method does not close the RTSP
-	 * connection, and a further SETUP in the same connection should be
-	 * accepted. Also this method can be called both for a paused and for a
-	 * playing stream, so the timer responsible for receiving RTP packets will
-	 * also be cancelled.
-	 * (Also sends PAUSE request if video playing)
+	 * Sends a TEARDOWN request to the server, after a PAUSE request if the
+	 * video is playing. Both are sent right away (or as soon as the stream is
+	 * set up) and the playout stops immediately, so a further SETUP in the same
+	 * connection can be made without waiting. This method does not close the
+	 * RTSP connection. The RTP socket of the stream is closed once the
+	 * TEARDOWN is answered, or has failed.
 	 * 
-	 * @throws RTSPException
-	 *             If there was an error sending or receiving the RTSP data, or
-	 *             if the server did not return a successful response.
+	 * @return A future completed once the TEARDOWN is answered, or completed
+	 *         exceptionally with an RTSPException if there was an error
+	 *         sending or receiving the RTSP data, or if the server did not
+	 *         return a successful response.
 	 */
-	public synchronized void teardown() throws RTSPException {
-		sendPauseRequest();
-		if (status == INIT) return;
-		try {
-			String request = "TEARDOWN " + vidName + " RTSP/1.0\n" +
-					"CSeq: " + nextSequenceNumber() + "\n" +
-					"Session: " + sessionNo + "\n\n";
-
-			RTSPResponse response = sendRequestAndWaitForResponse(request);
-			switch (response.getResponseCode()) {
-			case 200:
-				closeRTPConnection();
-				if (LOG) displayStat();
-				status = INIT;
-				break;
-			default:
-				handleError(response.getResponseCode());
+	public synchronized CompletableFuture<Void> teardownAsync() {
+		if (status == INIT) return CompletableFuture.completedFuture(null);
+		final Stream teardown = stream;
+		if (status == PLAYING) sendPauseRequest();
+		CompletableFuture<Void> result = sendStreamRequest(teardown, new Request("TEARDOWN", "", new ResponseHandler() {
+			@Override
+			public void handle(RTSPResponseParser response) throws RTSPException {
+				if (response.getResponseCode() != 200) throw error(response.getResponseCode());
+				if (LOG) System.out.println(metrics.snapshot());
 			}
-		}
-		catch (IOException e) {
-			throw new RTSPException("Error I/O to server. Please try again.");
-		}
+		}));
+		result.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				closeStream(teardown);
+			}
+		});
+		if (teardown.pipeline != null) teardown.pipeline.getPlayout().stop();
+		stream = null;
+		status = INIT;
+		isPlaying = false;
+		return result;
 	}
 
 	/**
-	 * sends a setup request, start a session with server
+	 * Blocking version of <code>teardownAsync</code>.
+	 *
+	 * @throws RTSPException
+	 *             If there was an error sending or receiving the RTSP data, or
+	 *             if the server did not return a successful response.
 	 */
-	public void sendSetupRequest(String videoName) throws RTSPException {
-		if (status != INIT) return;
-		try {
-			rtpConnection = new DatagramSocket();
-			rtpConnection.setSoTimeout(1000);
-			int port = rtpConnection.getLocalPort();
-			String request = "SETUP " + videoName + " RTSP/1.0\n" +
-					"CSeq: " + nextSequenceNumber() + "\n" +
-					"Transport: RTP/UDP; client_port= " + port + ";\n\n";
-
-			RTSPResponse response = sendRequestAndWaitForResponse(request);
-			switch (response.getResponseCode()) {
-			case 200:
-				// set up everything needed for playing
-				sessionNo = response.getHeaderValue("Session");
-				vidName = videoName;
-				frameBuffer = new PriorityQueue<Frame>(1000);
-				isBuffering = true;
-				isPlaying = false;
-				lastSequenceNumber = 0;
-				consecutivePacketLoss = 0;
-				if (LOG) frameLog = new ArrayList<>();
-				status = READY;
-				break;
-			default:
-				handleError(response.getResponseCode());
-			}
-		}
-		catch (SocketException e) {
-			throw new RTSPException("Unable to establish RTP socket.");
-		}
-		catch (IOException e) {
-			throw new RTSPException("Error I/O to server. Please try again.");
-		}
+	public void teardown() throws RTSPException {
+		await(teardownAsync());
 	}
 
 	/**
 	 * sends a play request, start reading data into buffer from server
 	 */
-	public void sendPlayRequest() throws RTSPException {
-		if (status != READY) return;
-		try {
-			String request = "PLAY " + vidName + " RTSP/1.0\n" +
-					"CSeq: " + nextSequenceNumber() + "\n" +
-					"Session: " + sessionNo + "\n\n";
-
-			RTSPResponse response = sendRequestAndWaitForResponse(request);
-			switch (response.getResponseCode()) {
-			case 200:
-				startRTPTimer();
-				status = PLAYING;
-				break;
-			default:
-				handleError(response.getResponseCode());
+	private CompletableFuture<Void> sendPlayRequest() {
+		if (status != READY) return CompletableFuture.completedFuture(null);
+		final Stream play = stream;
+		status = PLAYING;
+		CompletableFuture<Void> result = sendStreamRequest(play, new Request("PLAY", "", new ResponseHandler() {
+			@Override
+			public void handle(RTSPResponseParser response) throws RTSPException {
+				if (response.getResponseCode() != 200) throw error(response.getResponseCode());
+				play.startReceiving();
 			}
-		}
-		catch (IOException e) {
-			throw new RTSPException("Error I/O to server. Please try again.");
-		}
+		}));
+		updateEndExpected();
+		result.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				if (failure == null) return;
+				synchronized (RTSPConnection.this) {
+					if (stream == play && status == PLAYING) status = READY;
+					updateEndExpected();
+				}
+			}
+		});
+		return result;
 	}
 
 	/**
-	 * sends a pause request, cancelling all rtp related resource
+	 * sends a pause request, the receiver stops once it's answered
  	 */
-	public void sendPauseRequest() throws RTSPException {
-		if (status != PLAYING) return;
-		try {
-			String request = "PAUSE " + vidName + " RTSP/1.0\n" +
-					"CSeq: " + nextSequenceNumber() + "\n" +
-					"Session: " + sessionNo + "\n\n";
-
-			RTSPResponse response = sendRequestAndWaitForResponse(request);
-			switch (response.getResponseCode()) {
-			case 200:
-				rtpTimer.cancel();
-				cancelPlayFrameTimer();
-				cancelRTPPlayTimer();
-				status = READY;
-				break;
-			default:
-				handleError(response.getResponseCode());
+	private CompletableFuture<Void> sendPauseRequest() {
+		if (status != PLAYING) return CompletableFuture.completedFuture(null);
+		final Stream pause = stream;
+		status = READY;
+		updateEndExpected();
+		return sendStreamRequest(pause, new Request("PAUSE", "", new ResponseHandler() {
+			@Override
+			public void handle(RTSPResponseParser response) throws RTSPException {
+				if (response.getResponseCode() != 200) throw error(response.getResponseCode());
+				pause.stopReceiving();
 			}
-		}
-		catch (IOException e) {
-			throw new RTSPException("Error I/O to server. Please try again.");
-		}
+		}));
 	}
 
-
-	// display stat with a session of streaming
-	private void displayStat() {
-		if (frameLog.size() == 0) return;
-		int maxSeq = 0;
-		int orderCount = 0;
-		for (int i = 0; i < frameLog.size(); i++) {
-			int seq = frameLog.get(i).frame.getSequenceNumber();
-			if (seq < maxSeq) orderCount++;
-			maxSeq = Math.max(maxSeq, seq);
-		}
-		int loss = maxSeq - (frameLog.size() - 1);
-
-		long dt = (frameLog.get(frameLog.size() - 1).timestamp - frameLog.get(0).timestamp);
-		System.out.println(frameLog.size() * 1000.0 / dt + " pkts/s");
-		System.out.println(loss * 1000.0 / dt + " loss/s");
-		System.out.println(orderCount * 1000.0 / dt + " ooo/s");
+	// the recording of the stream may take silence for the end of the video only while the server sends and it plays
+	private void updateEndExpected() {
+		if (stream != null && stream.recording != null)
+			stream.recording.setEndExpected(status == PLAYING && !stream.throttled && isPlaying);
 	}
 
+
 	/**
 	 * Closes the connection with the RTSP server. This method should also close
 	 * any open resource associated to this connection, such as the RTP
-	 * connection, if it is still open.
+	 * connection, if it is still open. Requests still waiting for a response
+	 * fail.
 	 */
 	public synchronized void closeConnection() {
-		closeRTPConnection();
+		if (stream != null) closeStream(stream);
+		stream = null;
+		status = INIT;
+		metrics.unregister();
 		try {
 			connection.close();
 		}
 		catch (IOException e) {} // swallow
 	}
 
+	// the SETUP of a stream was answered, send whatever was waiting for its session number
+	private synchronized void streamSetUp(final Stream setup, String sessionNo, int channel) {
+		if (setup.closed) return;
+		setup.sessionNo = sessionNo;
+		setup.pipeline = createPipeline();
+		if (rewindWindow != null) {
+			// the previous stream was closed with its pipeline, which no longer records
+			rewindWindow.clear();
+			setup.pipeline.enableRewind(rewindWindow);
+		}
+		if (setup.cached != null) {
+			setup.source = new CachedSource(setup.cached, setup.pipeline, PlayoutScheduler.getDefault(),
+					BufferPool.getDefault());
+			CacheFiller.start(cache, setup.cached, server, port, setup.videoName);
+		}
+		else if (setup.receiver == null) {
+			setup.channel = channel;
+			channels.set(channel, setup);
+		}
+		else {
+			setup.rtcp = new RTCPSession(setup.receiver, setup.pipeline.getSourceState(), cname, metrics);
+			// TCP doesn't lose packets
+			if (!"false".equalsIgnoreCase(System.getProperty(NACK_PROPERTY))) setup.pipeline.enableNack(setup.rtcp);
+		}
+		setup.pipeline.getBudget().setListener(new BufferBudget.Listener() {
+			@Override
+			public void highWatermarkReached() {
+				// called with the locks of the pipeline held, so the requests go from another thread
+				timeouts.execute(new Runnable() {
+					@Override
+					public void run() {
+						throttle(setup);
+					}
+				});
+			}
+
+			@Override
+			public void lowWatermarkReached() {
+				timeouts.execute(new Runnable() {
+					@Override
+					public void run() {
+						unthrottle(setup);
+					}
+				});
+			}
+		});
+		startCapture(setup);
+		startRecording(setup);
+		updateEndExpected();
+		metrics.setVideoName(setup.videoName);
+		for (Request request : setup.waiting)
+			send(request, setup.videoName, sessionNo);
+		setup.waiting.clear();
+		if (stream == setup && isPlaying) setup.pipeline.getPlayout().start();
+	}
 
-	// close all resources related to the current rtpConnection
-	private void closeRTPConnection() {
-		if (rtpTimer != null) rtpTimer.cancel();
-		cancelPlayFrameTimer();
-		cancelRTPPlayTimer();
-		synchronized (this) { if (frameBuffer != null) frameBuffer.clear(); }
-		if (rtpConnection != null) rtpConnection.close();
+	// the buffer of a stream is full, ask the server to stop sending for now
+	private synchronized void throttle(Stream full) {
+		if (stream != full || status != PLAYING || full.throttled) return;
+		full.throttled = true;
+		sendPauseRequest();
+		metrics.serverPaused();
 	}
 
-	// cancel play timer
-	private void cancelRTPPlayTimer() {
-		if (rtpPlayTimer != null) rtpPlayTimer.cancel();
+	// the buffer of a stream has room again
+	private synchronized void unthrottle(Stream drained) {
+		if (stream != drained || !drained.throttled) return;
+		drained.throttled = false;
+		sendPlayRequest();
+		updateEndExpected();
 	}
 
-	// cancel play frame timer
-	private void cancelPlayFrameTimer() {
-		if (rtpPlayFrameTimer != null) rtpPlayFrameTimer.cancel();
+	// the SETUP of a stream failed, and so does everything waiting for it
+	private synchronized void streamFailed(Stream setup, RTSPException failure) {
+		setup.failure = failure;
+		for (Request request : setup.waiting)
+			request.result.completeExceptionally(failure);
+		setup.waiting.clear();
+		closeStream(setup);
+		if (stream == setup) {
+			stream = null;
+			status = INIT;
+			isPlaying = false;
+		}
 	}
 
+	// close all resources related to a stream
+	private synchronized void closeStream(Stream stream) {
+		if (stream.closed) return;
+		stream.closed = true;
+		if (stream.rtcp != null) stream.rtcp.sendGoodbye();
+		if (stream.source != null) stream.source.stop();
+		if (stream.receiver != null) stream.receiver.close();
+		else channels.compareAndSet(stream.channel, stream, null);
+		if (stream.pipeline != null) stream.pipeline.close();
+		if (stream.capture != null) stream.capture.close();
+		if (stream.cached != null) cache.release(stream.cached);
+		if (stream.recording != null) cache.release(stream.recording);
+	}
+
+	// captures the stream to a file if a capture directory is given by the system property
+	private void startCapture(Stream stream) {
+		String directory = System.getProperty(PacketCapture.DIRECTORY_PROPERTY);
+		if (directory == null) return;
+		String name = stream.videoName.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + metrics.getName() + "-"
+				+ System.currentTimeMillis() + PacketCapture.FILE_EXTENSION;
+		try {
+			stream.capture = PacketCapture.create(new File(directory, name));
+			stream.pipeline.setCapture(stream.capture);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to capture to " + directory + ": " + e.getMessage());
+		}
+	}
+
+
+	// records the stream into the cache, unless there's no cache or the video is being played from it elsewhere
+	private void startRecording(Stream stream) {
+		if (cache == null || stream.cached != null) return;
+		stream.recording = cache.openForRecording(VideoCache.getKey(server, port, stream.videoName));
+		if (stream.recording != null) stream.pipeline.setCacheEntry(stream.recording);
+	}
 
 	/**
-	 * Parses an RTP packet into a Frame object.
+	 * Parses an RTP packet into a Frame object. The frame is a view over the
+	 * packet buffer and takes ownership of it.
 	 * 
-	 * @param packet
+	 * @param buffer
 	 *            the byte representation of a frame, corresponding to the RTP
-	 *            packet.
+	 *            packet, acquired from <tt>pool</tt>.
+	 * @param pool
+	 *            the pool the buffer is returned to once the frame is released.
 	 * @return A Frame object.
 	 */
-	private static Frame parseRTPPacket(byte[] packet, int length) {
+	static Frame parseRTPPacket(ByteBuffer buffer, BufferPool pool) {
+		byte[] packet = buffer.array();
+		int length = buffer.limit();
 		byte payloadType = (byte) (packet[1] & 0b1111111);
 		boolean marker = packet[1] >> 7 == 1;
 		short sequenceNumber = (short) ((packet[2] << 8 & 0x0000ff00) + (packet[3] & 0xff));
@@ -469,38 +783,245 @@ public class RTSPConnection {
 		int CSRCcount = packet[0] & 0b1111; // always 0 in this assignment, but w/e
 		int offset = 12 + CSRCcount * 4;
 		int payloadLen = length - offset;
-		return new Frame(payloadType, marker, sequenceNumber, timestamp, packet, offset, payloadLen);
+		return new Frame(payloadType, marker, sequenceNumber, timestamp, buffer, offset, payloadLen, pool);
 	}
 
 	private int nextSequenceNumber() {
 		return seq++;
 	}
 
-	// sends a request and wait for response
-	private RTSPResponse sendRequestAndWaitForResponse(String request) throws IOException, RTSPException {
-		System.out.print(request);
+	// sends a request for a stream, or keeps it until the stream has a session number
+	private CompletableFuture<Void> sendStreamRequest(Stream stream, Request request) {
+		if (stream.cached != null) answerLocally(request);
+		else if (stream.sessionNo != null) send(request, stream.videoName, stream.sessionNo);
+		else if (stream.failure != null) request.result.completeExceptionally(stream.failure);
+		else stream.waiting.add(request);
+		return request.result;
+	}
+
+	// writes a request without waiting for the response, called with the lock held so CSeq follow the order on the wire
+	private void send(final Request request, String videoName, String sessionNo) {
+		if (connectionFailure != null) {
+			request.result.completeExceptionally(connectionFailure);
+			return;
+		}
+		final int cseq = nextSequenceNumber();
+		String text = request.method + " " + videoName + " RTSP/1.0\n" +
+				"CSeq: " + cseq + "\n" +
+				(sessionNo == null ? "" : "Session: " + sessionNo + "\n") +
+				request.headers + "\n";
+		System.out.print(text);
+		pending.put(cseq, request);
+		request.timeout = timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(cseq, request);
+			}
+		}, RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 		try {
-			out.write(request);
+			out.write(text);
 			out.flush();
-			RTSPResponse response = RTSPResponse.readRTSPResponse(in);
-			System.out.println(response.getResponseCode());
-			System.out.println(response.getResponseMessage());
-			return response;
+		}
+		catch (IOException e) {
+			pending.remove(cseq);
+			request.timeout.cancel(false);
+			request.result.completeExceptionally(new RTSPException("Error I/O to server. Please try again."));
+		}
+	}
+
+	// handles a request of a cached stream as if the server accepted it, on the calling thread
+	private void answerLocally(Request request) {
+		try {
+			request.handler.handle(localResponse);
+			request.result.complete(null);
+		}
+		catch (RTSPException e) {
+			request.result.completeExceptionally(e);
+		}
+	}
+
+	// fails a request that got no response in time, a late response is ignored
+	private void expire(int cseq, Request request) {
+		synchronized (this) {
+			if (pending.get(cseq) != request) return;
+			pending.remove(cseq);
+		}
+		request.result.completeExceptionally(new RTSPException("Server request timeout, please try again."));
+	}
+
+	// the loop of the reader thread, until the connection is closed or fails, which closes it
+	private void readResponses() {
+		RTSPException failure = new RTSPException("Error I/O to server. Please try again.");
+		try {
+			while (true) {
+				if (!received.hasRemaining()) {
+					receive();
+				}
+				else if (framer.isInFrame() || (!parser.isInResponse() && InterleavedFramer.startsFrame(received))) {
+					if (framer.read(received) == InterleavedFramer.COMPLETE)
+						interleavedPacketReceived(framer.getChannel(), framer.takePacket());
+				}
+				else if (parser.parse(received) == RTSPResponseParser.COMPLETE) {
+					responseReceived(parser);
+				}
+			}
+		}
+		catch (IOException e) {} // closed, fail whatever is left
+		catch (RTSPException e) {
+			failure = e;
+		}
+		framer.reset();
+		List<Request> left;
+		synchronized (this) {
+			// nothing can be read anymore, the connection is dead
+			connectionFailure = failure;
+			left = new ArrayList<Request>(pending.values());
+			pending.clear();
+		}
+		try {
+			connection.close();
+		}
+		catch (IOException e) {} // swallow
+		for (Request request : left) {
+			request.timeout.cancel(false);
+			request.result.completeExceptionally(failure);
+		}
+	}
+
+	// reads more bytes from the socket, straight into the buffer of the packet being read if there is one
+	private void receive() throws IOException {
+		try {
+			ByteBuffer target = framer.getTarget();
+			if (target != null) {
+				int count = in.read(target.array(), target.arrayOffset() + target.position(), target.remaining());
+				if (count < 0) throw new EOFException("Connection closed by server.");
+				target.position(target.position() + count);
+				if (framer.read(received) == InterleavedFramer.COMPLETE)
+					interleavedPacketReceived(framer.getChannel(), framer.takePacket());
+				return;
+			}
+			int count = in.read(received.array(), 0, received.capacity());
+			if (count < 0) throw new EOFException("Connection closed by server.");
+			received.position(0);
+			received.limit(count);
 		}
 		catch (SocketTimeoutException e) {
-			throw new RTSPException("Server request timeout, please try again.");
+			checkIdle(System.nanoTime());
+		}
+	}
+
+	// completes the request a response is for
+	private void responseReceived(RTSPResponseParser response) {
+		System.out.println(response.getResponseCode());
+		System.out.println(response.getResponseMessage());
+		Request request;
+		synchronized (this) {
+			request = pending.remove((int) response.getHeaderLong("CSeq", -1));
+		}
+		if (request == null) return; // timed out already
+		request.timeout.cancel(false);
+		try {
+			request.handler.handle(response);
+			request.result.complete(null);
+		}
+		catch (RTSPException e) {
+			request.result.completeExceptionally(e);
+		}
+	}
+
+	// gives an interleaved packet to the pipeline of its stream, RTCP and packets of closed streams are dropped
+	private void interleavedPacketReceived(int channel, ByteBuffer packet) {
+		Stream stream = channels.get(channel);
+		PlaybackPipeline pipeline = stream == null ? null : stream.pipeline;
+		if (pipeline == null) {
+			BufferPool.getDefault().release(packet);
+			return;
+		}
+		long now = System.nanoTime();
+		stream.lastArrivalNanos = now;
+		stream.idle = false;
+		pipeline.packetReceived(packet, now);
+	}
+
+	// an interleaved stream is idle when nothing came for a while, like RTPReceiver does for UDP
+	private void checkIdle(long now) {
+		Stream current;
+		synchronized (this) {
+			current = stream;
+		}
+		if (current == null || current.receiver != null || !current.receiving || current.idle) return;
+		if (now - current.lastArrivalNanos >= INTERLEAVED_IDLE_TIMEOUT_NS) {
+			current.idle = true;
+			current.pipeline.streamIdle();
+		}
+	}
+
+	// Transport: RTP/AVP/TCP;interleaved=0-1, the RTP channel or -1
+	private static int parseInterleavedChannel(String transport) {
+		if (transport == null) return -1;
+		for (String parameter : transport.split(";")) {
+			String[] pair = parameter.split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("interleaved")) {
+				try {
+					int channel = Integer.parseInt(pair[1].trim().split("-")[0]);
+					return channel >= 0 && channel < CHANNEL_COUNT ? channel : -1;
+				}
+				catch (NumberFormatException e) {
+					return -1;
+				}
+			}
 		}
+		return -1;
+	}
+
+	/**
+	 * Waits for a request made with one of the asynchronous methods.
+	 *
+	 * @throws RTSPException
+	 *             The exception the request failed with.
+	 */
+	public static void await(CompletableFuture<?> request) throws RTSPException {
+		try {
+			request.get();
+		}
+		catch (ExecutionException e) {
+			throw RTSPException.unwrap(e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RTSPException("Interrupted while waiting for the server.");
+		}
+	}
+
+	// a 200 OK, what the requests of a cached stream get
+	private static RTSPResponseParser okResponse() {
+		RTSPResponseParser response = new RTSPResponseParser();
+		try {
+			response.parse(ByteBuffer.wrap("RTSP/1.0 200 OK\nCSeq: 0\n\n".getBytes(StandardCharsets.US_ASCII)));
+		}
+		catch (RTSPException e) {
+			throw new AssertionError(e);
+		}
+		return response;
+	}
+
+	private static CompletableFuture<Void> failed(RTSPException exception) {
+		CompletableFuture<Void> result = new CompletableFuture<Void>();
+		result.completeExceptionally(exception);
+		return result;
 	}
 
-	// handle error code, but the way the program is coded these shouldn't happen
-	private void handleError(int code) throws RTSPException {
+	// the exception for an error code, but the way the program is coded these shouldn't happen
+	private static RTSPException error(int code) {
 		switch (code) {
 		case 400:
-			throw new RTSPException("Bad Request, no video loaded.");
+			return new RTSPException("Bad Request, no video loaded.");
 		case 404:
-			throw new RTSPException("File not found.");
+			return new RTSPException("File not found.");
 		case 454:
-			throw new RTSPException("Session not found");
+			return new RTSPException("Session not found");
+		default:
+			return new RTSPException("Request failed with code " + code + ".");
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,307 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * An incremental parser of RTSP responses working on bytes. Data is given as
+ * it comes from the socket, in pieces of any size, and <code>parse</code>
+ * says when a whole response (status line, headers and a body of
+ * Content-Length bytes) has been read, so it fits non-blocking sockets as well
+ * as blocking ones.
+ *
+ * The response is copied into a buffer owned by the parser, and headers are
+ * kept as positions in that buffer: parsing a response and looking up its
+ * status and headers (case-insensitively) allocate nothing. Only the methods
+ * returning a String allocate. Everything read from the parser is valid until
+ * the next response is parsed.
+ */
+public class RTSPResponseParser {
+	/**
+	 * Results of <code>parse</code>.
+	 */
+	public static final int INCOMPLETE = 0;
+	public static final int COMPLETE = 1;
+
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final int MAXIMUM_HEADERS = 32;
+	private static final byte[] VERSION = { 'R', 'T', 'S', 'P', '/', '1', '.', '0' };
+	private static final String CONTENT_LENGTH = "Content-Length";
+
+	private static final int STATUS_LINE = 0;
+	private static final int HEADER_LINE = 1;
+	private static final int BODY = 2;
+	private static final int DONE = 3;
+
+	private final byte[] data;
+	private final ByteBuffer bodyView;
+	private final int[] nameStart = new int[MAXIMUM_HEADERS];
+	private final int[] nameEnd = new int[MAXIMUM_HEADERS];
+	private final int[] valueStart = new int[MAXIMUM_HEADERS];
+	private final int[] valueEnd = new int[MAXIMUM_HEADERS];
+
+	private int state = STATUS_LINE;
+	private int length; // bytes of the current response in data
+	private int lineStart;
+	private int headerCount;
+	private int responseCode;
+	private int messageStart;
+	private int messageEnd;
+	private int bodyStart;
+	private int bodyLength;
+
+	/**
+	 * Creates a parser for responses of up to 8 KB, headers and body
+	 * included.
+	 */
+	public RTSPResponseParser() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param capacity
+	 *            The largest response accepted, in bytes.
+	 */
+	public RTSPResponseParser(int capacity) {
+		data = new byte[capacity];
+		bodyView = ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads bytes from a buffer until a response is complete, or until the
+	 * buffer is empty. Bytes after the end of a response are left in the
+	 * buffer for the next one. Once a response is complete, the next call
+	 * starts a new one.
+	 *
+	 * @param in
+	 *            The bytes received, from its position to its limit.
+	 * @return COMPLETE if a whole response was read, or INCOMPLETE if more
+	 *         bytes are needed.
+	 * @throws RTSPException
+	 *             If the response doesn't match the expected format or is
+	 *             larger than the capacity of the parser.
+	 */
+	public int parse(ByteBuffer in) throws RTSPException {
+		if (state == DONE) reset();
+		while (in.hasRemaining()) {
+			if (state == BODY) {
+				int count = Math.min(in.remaining(), bodyStart + bodyLength - length);
+				in.get(data, length, count);
+				length += count;
+			}
+			else {
+				// copy up to the end of the line at once
+				int count = lineLength(in);
+				if (count > data.length - length) throw new RTSPException("Response from RTSP server too long.");
+				in.get(data, length, count);
+				length += count;
+				if (data[length - 1] != '\n') continue;
+				int lineEnd = length - 1;
+				if (lineEnd > lineStart && data[lineEnd - 1] == '\r') lineEnd--;
+				if (state == STATUS_LINE) parseStatusLine(lineStart, lineEnd);
+				else if (lineEnd == lineStart) endOfHeaders();
+				else parseHeaderLine(lineStart, lineEnd);
+				lineStart = length;
+			}
+			if (state == BODY && length == bodyStart + bodyLength) {
+				state = DONE;
+				return COMPLETE;
+			}
+		}
+		return INCOMPLETE;
+	}
+
+	// the number of bytes up to and including the next newline, or all of them if there is none
+	private static int lineLength(ByteBuffer in) {
+		int end = in.limit();
+		for (int i = in.position(); i < end; i++) {
+			if (in.get(i) == '\n') return i + 1 - in.position();
+		}
+		return end - in.position();
+	}
+
+	/**
+	 * Returns true if part of a response has been read, but not all of it.
+	 * Between responses, a connection may carry interleaved packets instead.
+	 */
+	public boolean isInResponse() {
+		return state == HEADER_LINE || state == BODY || (state == STATUS_LINE && length > lineStart);
+	}
+
+	/**
+	 * Forgets any partial response, to start parsing a new one.
+	 */
+	public void reset() {
+		state = STATUS_LINE;
+		length = 0;
+		lineStart = 0;
+		headerCount = 0;
+		responseCode = 0;
+		bodyLength = 0;
+	}
+
+	private void parseStatusLine(int start, int end) throws RTSPException {
+		if (start == end) return; // tolerate blank lines between responses
+		// RTSP/1.0 200 OK
+		int position = start + VERSION.length;
+		if (end < position + 4 || !equalsIgnoreCase(start, position, VERSION) || data[position] != ' ')
+			throw new RTSPException("Invalid response from RTSP server.");
+		int code = 0;
+		int digits = 0;
+		for (position++; position < end && data[position] >= '0' && data[position] <= '9'; position++, digits++)
+			code = code * 10 + data[position] - '0';
+		if (digits != 3 || (position < end && data[position] != ' '))
+			throw new RTSPException("Invalid response from RTSP server.");
+		responseCode = code;
+		messageStart = Math.min(position + 1, end);
+		messageEnd = end;
+		state = HEADER_LINE;
+	}
+
+	private void parseHeaderLine(int start, int end) {
+		int colon = start;
+		while (colon < end && data[colon] != ':')
+			colon++;
+		if (colon == end || headerCount == MAXIMUM_HEADERS) return; // ignored, like the reader does
+		nameStart[headerCount] = start;
+		nameEnd[headerCount] = trimEnd(start, colon);
+		int value = colon + 1;
+		while (value < end && isSpace(data[value]))
+			value++;
+		valueStart[headerCount] = value;
+		valueEnd[headerCount] = trimEnd(value, end);
+		headerCount++;
+	}
+
+	private void endOfHeaders() throws RTSPException {
+		long contentLength = getHeaderLong(CONTENT_LENGTH, 0);
+		if (contentLength < 0 || contentLength > data.length - length)
+			throw new RTSPException("Response from RTSP server too long.");
+		bodyStart = length;
+		bodyLength = (int) contentLength;
+		state = BODY;
+	}
+
+	/**
+	 * Returns the numeric response code of the last complete response.
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * Returns the response message associated to the response code. This
+	 * allocates a String, it's meant for people, not for automated checks.
+	 */
+	public String getResponseMessage() {
+		return new String(data, messageStart, messageEnd - messageStart, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns the number of headers of the response.
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Returns the index of the first header with the given name, ignoring
+	 * case, or -1 if the response has no such header.
+	 */
+	public int findHeader(CharSequence name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (nameEnd[i] - nameStart[i] == name.length() && equalsIgnoreCase(nameStart[i], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the response has a header with the given name.
+	 */
+	public boolean hasHeader(CharSequence name) {
+		return findHeader(name) >= 0;
+	}
+
+	/**
+	 * Returns true if the value of the named header is the given value,
+	 * ignoring case.
+	 */
+	public boolean headerValueEquals(CharSequence name, CharSequence value) {
+		int header = findHeader(name);
+		return header >= 0 && valueEnd[header] - valueStart[header] == value.length()
+				&& equalsIgnoreCase(valueStart[header], value);
+	}
+
+	/**
+	 * Returns the value of the named header as a number.
+	 *
+	 * @return The value, or <tt>defaultValue</tt> if there is no such header
+	 *         or its value isn't a positive decimal number.
+	 */
+	public long getHeaderLong(CharSequence name, long defaultValue) {
+		int header = findHeader(name);
+		if (header < 0 || valueStart[header] == valueEnd[header]) return defaultValue;
+		long value = 0;
+		for (int i = valueStart[header]; i < valueEnd[header]; i++) {
+			if (data[i] < '0' || data[i] > '9' || value > (Long.MAX_VALUE - 9) / 10) return defaultValue;
+			value = value * 10 + data[i] - '0';
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of the named header field. This allocates a String.
+	 *
+	 * @return The value of the header field named by headerName, or null if
+	 *         that header wasn't included in the response.
+	 */
+	public String getHeaderValue(CharSequence name) {
+		int header = findHeader(name);
+		if (header < 0) return null;
+		return new String(data, valueStart[header], valueEnd[header] - valueStart[header], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns the body of the response (empty without Content-Length), as a
+	 * read-only view over the parser's buffer. The same view is returned
+	 * every time, positioned at the start of the body.
+	 */
+	public ByteBuffer getBody() {
+		bodyView.limit(bodyStart + bodyLength).position(bodyStart);
+		return bodyView;
+	}
+
+	// compares ASCII bytes starting at a position with a name, ignoring case
+	private boolean equalsIgnoreCase(int start, CharSequence name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (toLowerCase(data[start + i]) != toLowerCase(name.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, byte[] expected) {
+		for (int i = start; i < end; i++) {
+			if (toLowerCase(data[i]) != toLowerCase(expected[i - start])) return false;
+		}
+		return true;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && isSpace(data[end - 1]))
+			end--;
+		return end;
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
@@ -0,0 +1,168 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.nio.ByteBuffer;
+
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * The frames played most recently, so they can be shown again without asking
+ * the server (see InstantReplay). The payloads are copied, once presented,
+ * into a ring in a direct buffer, outside the heap, and the oldest frames are
+ * overwritten as new ones come. The window is bounded by its size in bytes
+ * (the system property <code>rtsp.rewind.bytes</code>, 32 MB by default, 0
+ * for no window) and by MAXIMUM_FRAMES.
+ *
+ * Frames are numbered by the order they were recorded in, from the first
+ * frame still in the window to the end, the number the next frame will get.
+ * Recording is done by the playout, reading by the InstantReplay, so
+ * everything is synchronized.
+ */
+public class RewindWindow {
+	public static final String SIZE_PROPERTY = "rtsp.rewind.bytes";
+
+	private static final int DEFAULT_SIZE = 32 * 1024 * 1024;
+	private static final int MAXIMUM_FRAMES = 8192;
+
+	private final ByteBuffer data;
+
+	// guarded by this, a ring of the frames recorded, indexed by their number modulo MAXIMUM_FRAMES
+	private final long[] sequenceNumbers = new long[MAXIMUM_FRAMES];
+	private final long[] timestamps = new long[MAXIMUM_FRAMES];
+	private final int[] offsets = new int[MAXIMUM_FRAMES];
+	private final int[] lengths = new int[MAXIMUM_FRAMES];
+	private final byte[] payloadTypes = new byte[MAXIMUM_FRAMES];
+	private final boolean[] markers = new boolean[MAXIMUM_FRAMES];
+	private long first;
+	private long end;
+	private long wrapped; // the first frame recorded since the write offset went back to the start
+	private int writeOffset;
+
+	/**
+	 * Creates an empty window.
+	 *
+	 * @param size
+	 *            The size of the window, in bytes of payload.
+	 */
+	public RewindWindow(int size) {
+		this.data = ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * Creates a window of the size given by the system property, or returns
+	 * null if the size is 0.
+	 */
+	public static RewindWindow fromSystemProperties() {
+		int size = DEFAULT_SIZE;
+		try {
+			size = Integer.parseInt(System.getProperty(SIZE_PROPERTY, Integer.toString(size)));
+		}
+		catch (NumberFormatException e) {
+			System.err.println("Invalid rewind window size: " + e.getMessage());
+		}
+		return size > 0 ? new RewindWindow(size) : null;
+	}
+
+	/**
+	 * Adds a frame that was just presented, after the others. The oldest
+	 * frames are dropped to make room for it.
+	 */
+	public synchronized void record(Frame frame) {
+		int length = frame.getPayloadLength();
+		if (length > data.capacity()) return;
+		// the payload is never split, if it doesn't fit before the end of the buffer it goes at the start
+		if (writeOffset + length > data.capacity()) {
+			// the frames from before the previous wrap are after the write offset, where nothing goes anymore
+			first = Math.max(first, wrapped);
+			wrapped = end;
+			writeOffset = 0;
+		}
+		while (first < end && (end - first == MAXIMUM_FRAMES || overlaps(first, writeOffset, length)))
+			first++;
+
+		ByteBuffer target = data.duplicate();
+		target.position(writeOffset);
+		target.put(frame.getPayloadBuffer());
+		int slot = (int) (end % MAXIMUM_FRAMES);
+		sequenceNumbers[slot] = frame.getExtendedSequenceNumber();
+		timestamps[slot] = frame.getExtendedTimestamp();
+		offsets[slot] = writeOffset;
+		lengths[slot] = length;
+		payloadTypes[slot] = frame.getPayloadType();
+		markers[slot] = frame.isMarkerOn();
+		end++;
+		writeOffset += length;
+	}
+
+	// the oldest frames are the ones right after the write offset, so they're dropped in order; an empty frame in
+	// the range counts as overlapping, or it would keep the frames after it from being dropped
+	private boolean overlaps(long number, int offset, int length) {
+		int slot = (int) (number % MAXIMUM_FRAMES);
+		return offsets[slot] < offset + length && offsets[slot] + Math.max(lengths[slot], 1) > offset;
+	}
+
+	/**
+	 * Returns the number of the oldest frame in the window.
+	 */
+	public synchronized long getFirst() {
+		return first;
+	}
+
+	/**
+	 * Returns the number the next frame recorded will get, one after the most
+	 * recent frame in the window.
+	 */
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the extended timestamp of a frame in the window.
+	 */
+	public synchronized long getTimestamp(long number) {
+		return timestamps[(int) (number % MAXIMUM_FRAMES)];
+	}
+
+	/**
+	 * Returns the number of the first frame in the window with a timestamp at
+	 * or after the given one, or the end if there is none.
+	 */
+	public synchronized long find(long timestamp) {
+		long low = first;
+		long high = end;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (timestamps[(int) (middle % MAXIMUM_FRAMES)] < timestamp) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Copies a frame of the window into a new pooled Frame, which the caller
+	 * must release.
+	 *
+	 * @return The frame, or null if it is not in the window anymore.
+	 */
+	public synchronized Frame read(long number, BufferPool pool) {
+		if (number < first || number >= end) return null;
+		int slot = (int) (number % MAXIMUM_FRAMES);
+		ByteBuffer source = data.duplicate();
+		source.position(offsets[slot]).limit(offsets[slot] + lengths[slot]);
+		ByteBuffer buffer = pool.acquire();
+		buffer.put(source);
+		Frame frame = new Frame(payloadTypes[slot], markers[slot], (short) sequenceNumbers[slot],
+				(int) timestamps[slot], buffer, 0, lengths[slot], pool);
+		frame.setExtendedNumbers(sequenceNumbers[slot], timestamps[slot]);
+		return frame;
+	}
+
+	/**
+	 * Drops every frame.
+	 */
+	public synchronized void clear() {
+		first = end;
+		wrapped = end;
+		writeOffset = 0;
+	}
+}
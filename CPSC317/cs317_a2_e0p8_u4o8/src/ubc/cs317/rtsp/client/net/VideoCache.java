@@ -0,0 +1,215 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache on disk of the videos played, so a video played again is read from
+ * the disk instead of streamed from the server again. Each video is a
+ * CacheEntry, in a directory named after the server, its port and the video
+ * (percent-escaped, so different videos never share a directory).
+ * A stream received from the network is recorded into a new entry; once the
+ * server sent the whole video, the entry is complete and later opens of the
+ * same video play it at its original timing, while a CacheFiller fetches the
+ * packets lost the first time, and confirms the end of the video, in the
+ * background.
+ *
+ * The cache is used when the system property <code>rtsp.cache.dir</code>
+ * names its directory. Entries that are not in use are deleted, least
+ * recently used first, when the cache grows over
+ * <code>rtsp.cache.maxBytes</code> (512 MB by default).
+ */
+public class VideoCache {
+	public static final String DIRECTORY_PROPERTY = "rtsp.cache.dir";
+	public static final String MAX_BYTES_PROPERTY = "rtsp.cache.maxBytes";
+
+	private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+	private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+	private static VideoCache defaultCache;
+	private static boolean defaultCreated;
+
+	private final File directory;
+	private final long maxBytes;
+
+	// guarded by this, the entries in use, with the number of users in the entry
+	private final Map<String, CacheEntry> open = new HashMap<String, CacheEntry>();
+
+	/**
+	 * Creates a cache in a directory, which is created if needed.
+	 *
+	 * @param maxBytes
+	 *            The most the entries not in use may take on disk.
+	 */
+	public VideoCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+	}
+
+	/**
+	 * Returns the cache given by the system properties, or null if there is
+	 * none.
+	 */
+	public static synchronized VideoCache getDefault() {
+		if (!defaultCreated) {
+			defaultCreated = true;
+			String path = System.getProperty(DIRECTORY_PROPERTY);
+			if (path != null) {
+				long maxBytes = DEFAULT_MAX_BYTES;
+				try {
+					maxBytes = Long.parseLong(System.getProperty(MAX_BYTES_PROPERTY, Long.toString(maxBytes)));
+				}
+				catch (NumberFormatException e) {
+					System.err.println("Invalid cache size: " + e.getMessage());
+				}
+				defaultCache = new VideoCache(new File(path), maxBytes);
+			}
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Returns the key of a video in the cache.
+	 */
+	public static String getKey(String server, int port, String videoName) {
+		return server + ":" + port + "/" + videoName;
+	}
+
+	/**
+	 * Opens the entry of a video to play it, if the whole video is cached.
+	 * The entry must be given back with <code>release</code>.
+	 *
+	 * @return The entry, or null if the video is not cached, or only in part.
+	 */
+	synchronized CacheEntry openForPlayback(String key) {
+		CacheEntry entry = open.get(key);
+		if (entry == null) {
+			File entryDirectory = getDirectory(key);
+			if (!new File(entryDirectory, CacheEntry.INDEX_FILE).isFile()) return null;
+			try {
+				entry = CacheEntry.load(key, entryDirectory);
+			}
+			catch (IOException e) {
+				System.err.println("Dropping the cache of " + key + ": " + e.getMessage());
+				delete(entryDirectory);
+				return null;
+			}
+			if (!entry.isComplete()) {
+				delete(entryDirectory); // cut short, recording the video again replaces it anyway
+				return null;
+			}
+			open.put(key, entry);
+		}
+		else if (!entry.isComplete()) {
+			return null; // still being recorded
+		}
+		entry.users++;
+		entry.getDirectory().setLastModified(System.currentTimeMillis()); // for the LRU order
+		return entry;
+	}
+
+	/**
+	 * Starts recording a video into a new entry, replacing whatever was
+	 * cached of it. The entry must be given back with <code>release</code>.
+	 *
+	 * @return The entry, or null if the video is in use already.
+	 */
+	synchronized CacheEntry openForRecording(String key) {
+		if (open.containsKey(key)) return null;
+		File entryDirectory = getDirectory(key);
+		delete(entryDirectory);
+		try {
+			CacheEntry entry = CacheEntry.create(key, entryDirectory);
+			entry.users++;
+			open.put(key, entry);
+			return entry;
+		}
+		catch (IOException e) {
+			System.err.println("Unable to cache " + key + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Opens an entry in use once more, for a CacheFiller.
+	 */
+	synchronized void retain(CacheEntry entry) {
+		entry.users++;
+	}
+
+	/**
+	 * Gives back an entry. Once nobody uses it, it is closed, and the cache
+	 * is brought back within its size.
+	 */
+	synchronized void release(CacheEntry entry) {
+		if (--entry.users > 0) return;
+		open.remove(entry.getKey());
+		entry.close();
+		evict();
+	}
+
+	// deletes the least recently used entries not in use until the cache fits
+	private void evict() {
+		File[] entries = directory.listFiles();
+		if (entries == null) return;
+		long total = 0;
+		for (File entry : entries)
+			total += size(entry);
+		if (total <= maxBytes) return;
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File entry : entries) {
+			if (total <= maxBytes) break;
+			if (isOpen(entry)) continue;
+			total -= size(entry);
+			delete(entry);
+		}
+	}
+
+	private boolean isOpen(File entryDirectory) {
+		for (CacheEntry entry : open.values())
+			if (entry.getDirectory().equals(entryDirectory)) return true;
+		return false;
+	}
+
+	// the key with every other byte than letters, digits, '.', '_' and '-' percent-escaped, so no two keys collide
+	private File getDirectory(String key) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			if (b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z' || b >= '0' && b <= '9' || b == '.' || b == '_' || b == '-')
+				name.append((char) b);
+			else
+				name.append('%').append(HEX_DIGITS.charAt((b >> 4) & 0xf)).append(HEX_DIGITS.charAt(b & 0xf));
+		}
+		return new File(directory, name.toString());
+	}
+
+	private static long size(File entryDirectory) {
+		File[] files = entryDirectory.listFiles();
+		if (files == null) return 0;
+		long size = 0;
+		for (File file : files)
+			size += file.length();
+		return size;
+	}
+
+	// deletes the directory of an entry and its files
+	static void delete(File entryDirectory) {
+		File[] files = entryDirectory.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		entryDirectory.delete();
+	}
+}
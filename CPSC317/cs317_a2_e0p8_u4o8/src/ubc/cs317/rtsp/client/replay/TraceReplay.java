@@ -0,0 +1,159 @@
+package ubc.cs317.rtsp.client.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.metrics.Histogram;
+import ubc.cs317.rtsp.client.metrics.SessionMetrics;
+import ubc.cs317.rtsp.client.model.BufferPool;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.net.PacketTraceReader;
+import ubc.cs317.rtsp.client.net.PlaybackPipeline;
+import ubc.cs317.rtsp.client.net.Playout;
+
+/**
+ * Replays a packet capture (see PacketCapture) through the same playback
+ * pipeline as a live session, on a virtual clock, as fast as the machine
+ * goes. Every packet enters the pipeline at its captured arrival time and
+ * frames are "presented" by recording when they would have been shown, so
+ * the result only depends on the capture and on the playout code: two
+ * versions of the playout can be compared on identical input.
+ *
+ * The summary gives the frames dropped (and why), the stalls, the startup
+ * delay and the presentation error, which is how far from the timeline of
+ * the stream (given by the RTP timestamps, starting at the first frame
+ * presented after the start or after a stall) each frame was shown. Stalls
+ * are counted on their own, so they don't add to the error of every frame
+ * after them.
+ *
+ * Usage: <code>TraceReplay capture.rtptrace...</code>
+ */
+public class TraceReplay {
+	private static final long IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(1); // the receiver's default
+	private static final long DRAIN_LIMIT_NS = TimeUnit.MINUTES.toNanos(10);
+	private static final long NANOS_PER_TIMESTAMP_UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final VirtualScheduler clock = new VirtualScheduler();
+	private final BufferPool pool = BufferPool.getDefault();
+	private final SessionMetrics metrics = new SessionMetrics();
+	private final Histogram presentationError = new Histogram();
+	private final PlaybackPipeline pipeline;
+
+	private long packets;
+	private long firstArrivalNanos = -1;
+	private long lastArrivalNanos;
+	private long framesPresented;
+	private long firstPresentationNanos = -1;
+	private long anchorNanos;
+	private long anchorTimestamp;
+	private long anchorRebufferCount = -1;
+	private long lastPresentedSequence = Long.MIN_VALUE;
+	private long framesSkipped;
+
+	public TraceReplay() {
+		pipeline = new PlaybackPipeline(clock, pool, metrics, new Playout.Presenter() {
+			@Override
+			public void present(Frame frame) {
+				framePresented(frame);
+			}
+
+			@Override
+			public void prepare(Frame frame) {} // nothing is decoded
+		});
+	}
+
+	/**
+	 * Feeds every packet of a capture to the pipeline, then plays what is left
+	 * in the buffer.
+	 *
+	 * @throws IOException
+	 *             If the capture can't be read.
+	 */
+	public void replay(File trace) throws IOException {
+		PacketTraceReader reader = new PacketTraceReader(trace);
+		try {
+			while (true) {
+				ByteBuffer packet = pool.acquire();
+				if (!reader.readPacket(packet)) {
+					pool.release(packet);
+					break;
+				}
+				long arrival = reader.getArrivalNanos();
+				if (firstArrivalNanos < 0) {
+					// the playout is started by PLAY, right before the first packet
+					firstArrivalNanos = arrival;
+					clock.advanceTo(arrival);
+					pipeline.getPlayout().start();
+				}
+				else if (arrival - lastArrivalNanos > IDLE_TIMEOUT_NS) {
+					clock.advanceTo(lastArrivalNanos + IDLE_TIMEOUT_NS);
+					pipeline.streamIdle();
+				}
+				clock.advanceTo(arrival);
+				lastArrivalNanos = arrival;
+				packets++;
+				pipeline.packetReceived(packet, arrival);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		// the end of the capture is the end of the stream
+		clock.advanceTo(lastArrivalNanos + IDLE_TIMEOUT_NS);
+		pipeline.streamIdle();
+		clock.runUntilIdle(clock.nanoTime() + DRAIN_LIMIT_NS);
+		pipeline.close();
+	}
+
+	private void framePresented(Frame frame) {
+		long now = clock.nanoTime();
+		if (firstPresentationNanos < 0) firstPresentationNanos = now;
+		if (metrics.getRebufferCount() != anchorRebufferCount) {
+			// the timeline starts again after every stall
+			anchorRebufferCount = metrics.getRebufferCount();
+			anchorNanos = now;
+			anchorTimestamp = frame.getExtendedTimestamp();
+		}
+		long ideal = anchorNanos + (frame.getExtendedTimestamp() - anchorTimestamp) * NANOS_PER_TIMESTAMP_UNIT;
+		presentationError.record(TimeUnit.NANOSECONDS.toMicros(Math.abs(now - ideal)));
+		if (lastPresentedSequence != Long.MIN_VALUE)
+			framesSkipped += Math.max(0, frame.getExtendedSequenceNumber() - lastPresentedSequence - 1);
+		lastPresentedSequence = frame.getExtendedSequenceNumber();
+		framesPresented++;
+	}
+
+	/**
+	 * Prints the result of the replay.
+	 */
+	public void printSummary(PrintStream out) {
+		out.printf("packets: %d over %.1fs, %d lost, %d reordered, jitter %.1fms%n", packets,
+				(lastArrivalNanos - firstArrivalNanos) / 1e9, metrics.getPacketsLost(), metrics.getPacketsReordered(),
+				metrics.getJitterMillis());
+		out.printf("frames: %d presented, %d skipped (%d late, %d duplicate, %d overflow drops)%n", framesPresented,
+				framesSkipped, metrics.getLateDrops(), metrics.getDuplicates(), metrics.getOverflowDrops());
+		out.printf("stalls: %d, %dms rebuffering, startup delay %dms, buffer target at end %dms%n",
+				metrics.getRebufferCount(), metrics.getRebufferMillis(),
+				firstPresentationNanos < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(firstPresentationNanos - firstArrivalNanos),
+				metrics.getBufferTargetMillis());
+		out.printf("presentation error: mean %.0fus, p99 %dus, max %dus%n", presentationError.getMean(),
+				presentationError.getPercentile(0.99), presentationError.getMax());
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: TraceReplay capture.rtptrace...");
+			System.exit(1);
+		}
+		for (String trace : args) {
+			long start = System.nanoTime();
+			TraceReplay replay = new TraceReplay();
+			replay.replay(new File(trace));
+			System.out.println(trace + " (replayed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ "ms)");
+			replay.printSummary(System.out);
+		}
+	}
+}
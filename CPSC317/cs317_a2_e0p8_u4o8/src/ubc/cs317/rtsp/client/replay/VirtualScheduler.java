@@ -0,0 +1,103 @@
+package ubc.cs317.rtsp.client.replay;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.net.PlayoutScheduler;
+
+/**
+ * A PlayoutScheduler on a virtual clock, which only moves when told to. Tasks
+ * run on the thread advancing the clock, in deadline order (and in the order
+ * they were scheduled for the same deadline), with the clock set to their
+ * deadline, so a replay gives the same result every time and takes no longer
+ * than the work it does.
+ */
+class VirtualScheduler extends PlayoutScheduler {
+	private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+	private long now;
+	private long scheduledCount;
+
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	@Override
+	public Future<?> schedule(Runnable task, long deadlineNanos) {
+		Task scheduled = new Task(task, Math.max(now, deadlineNanos), scheduledCount++);
+		tasks.add(scheduled);
+		return scheduled;
+	}
+
+	/**
+	 * Moves the clock forward, running every task due until then.
+	 */
+	void advanceTo(long time) {
+		Task task;
+		while ((task = tasks.peek()) != null && task.deadline <= time) {
+			tasks.poll();
+			if (task.cancelled) continue;
+			now = task.deadline;
+			task.done = true;
+			task.runnable.run();
+		}
+		now = Math.max(now, time);
+	}
+
+	/**
+	 * Runs tasks until none is left, or until the clock reaches a limit.
+	 */
+	void runUntilIdle(long limit) {
+		Task task;
+		while ((task = tasks.peek()) != null && task.deadline <= limit)
+			advanceTo(task.deadline);
+	}
+
+	private static class Task implements Future<Object>, Comparable<Task> {
+		private final Runnable runnable;
+		private final long deadline;
+		private final long order;
+		private boolean cancelled;
+		private boolean done;
+
+		Task(Runnable runnable, long deadline, long order) {
+			this.runnable = runnable;
+			this.deadline = deadline;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			if (deadline != o.deadline) return deadline < o.deadline ? -1 : 1;
+			return order < o.order ? -1 : order == o.order ? 0 : 1;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (done) return false;
+			cancelled = true;
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done || cancelled;
+		}
+
+		@Override
+		public Object get() {
+			return null;
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) {
+			return null;
+		}
+	}
+}
@@ -15,18 +15,21 @@ package ubc.cs317.rtsp.client.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Image;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
-import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
 import ubc.cs317.rtsp.client.model.Frame;
 import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.listener.ListenerQueue;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
 
 public class MainWindow extends JFrame implements SessionListener {
@@ -34,17 +37,26 @@ public class MainWindow extends JFrame implements SessionListener {
 	private Session session;
 
 	private VideoControlToolbar videoControlToolbar;
-	private JLabel imagePanel;
+	private VideoPanel videoPanel;
 	private JLabel videoNamePanel;
 
+	// the frame shown is kept until the next one, its image is reused by the decoder once it's released
+	private final Object shownLock = new Object();
+	private Frame shownFrame;
+
 	public MainWindow() {
 
 		super("Video Client");
 
 		videoControlToolbar = new VideoControlToolbar(this);
-		imagePanel = new JLabel();
-		imagePanel.setHorizontalAlignment(SwingConstants.CENTER);
-		imagePanel.setVerticalAlignment(SwingConstants.CENTER);
+		videoPanel = new VideoPanel();
+		videoPanel.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				if (session != null)
+					session.setDisplaySize(videoPanel.getWidth(), videoPanel.getHeight());
+			}
+		});
 		videoNamePanel = new JLabel();
 		videoNamePanel.setHorizontalAlignment(SwingConstants.CENTER);
 
@@ -57,7 +69,7 @@ public class MainWindow extends JFrame implements SessionListener {
 		});
 
 		this.setLayout(new BorderLayout(1, 1));
-		this.add(imagePanel, BorderLayout.CENTER);
+		this.add(videoPanel, BorderLayout.CENTER);
 		this.add(videoControlToolbar, BorderLayout.PAGE_START);
 		this.add(videoNamePanel, BorderLayout.PAGE_END);
 
@@ -77,12 +89,15 @@ public class MainWindow extends JFrame implements SessionListener {
 		if (this.session != null) {
 			this.session.removeSessionListener(this);
 			this.session.closeConnection();
+			showFrame(null, null);
 		}
 
 		this.session = session;
 
 		if (session != null) {
-			session.addSessionListener(this);
+			// a frame shown late is useless, only the newest one waits
+			session.addSessionListener(this, ListenerQueue.LATEST_ONLY, 1);
+			session.setDisplaySize(videoPanel.getWidth(), videoPanel.getHeight());
 		}
 	}
 
@@ -114,21 +129,39 @@ public class MainWindow extends JFrame implements SessionListener {
 	@Override
 	public void frameReceived(Frame frame) {
 		if (frame == null)
-			imagePanel.setIcon(null);
+			showFrame(null, null);
 		else {
+			// usually decoded ahead of time by the session for this size
+			Image scaledImage = frame.getImage(videoPanel.getWidth(),
+					videoPanel.getHeight());
+			if (scaledImage != null)
+				showFrame(frame.retain(), scaledImage);
+		}
+	}
 
-			Image scaledImage = frame.getImage().getScaledInstance(
-					-imagePanel.getWidth(), imagePanel.getHeight(),
-					Image.SCALE_FAST);
-			imagePanel.setIcon(new ImageIcon(scaledImage));
+	// shows the image of a retained frame, and releases the frame shown before once the panel is done with it
+	private void showFrame(Frame frame, Image image) {
+		Frame previous;
+		synchronized (shownLock) {
+			previous = shownFrame;
+			shownFrame = frame;
+			videoPanel.showImage(image);
 		}
+		if (previous != null)
+			previous.release();
 	}
 
 	@Override
-	public void videoNameChanged(String videoName) {
-		if (videoName==null)
-			videoNamePanel.setText("(click open to select a video)");
-		else
-			videoNamePanel.setText("Video: " + videoName);
+	public void videoNameChanged(final String videoName) {
+		// called from the thread the session delivers events to this window on
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (videoName==null)
+					videoNamePanel.setText("(click open to select a video)");
+				else
+					videoNamePanel.setText("Video: " + videoName);
+			}
+		});
 	}
 }
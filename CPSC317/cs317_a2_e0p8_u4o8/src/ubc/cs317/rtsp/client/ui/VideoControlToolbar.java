@@ -15,17 +15,23 @@ package ubc.cs317.rtsp.client.ui;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.swing.JButton;
 import javax.swing.JOptionPane;
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
 
 public class VideoControlToolbar extends JToolBar {
 
+	private static final long SEEK_BACK_MILLIS = 5000;
+
 	private MainWindow main;
 	private JButton openButton, playButton, pauseButton;
+	private JButton backButton, reverseButton, stepBackButton, stepForwardButton;
 	private JButton closeButton;
 	private JButton disconnectButton;
 
@@ -40,14 +46,10 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					String videoName = JOptionPane
-							.showInputDialog("Video file:");
-					if (videoName != null)
-						main.getSession().open(videoName);
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
-				}
+				String videoName = JOptionPane
+						.showInputDialog("Video file:");
+				if (videoName != null)
+					reportFailure(main.getSession().openAsync(videoName));
 			}
 		});
 		this.add(openButton);
@@ -59,11 +61,7 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().play();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
-				}
+				reportFailure(main.getSession().playAsync());
 			}
 		});
 		this.add(playButton);
@@ -73,27 +71,61 @@ public class VideoControlToolbar extends JToolBar {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().pause();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
-				}
+				reportFailure(main.getSession().pauseAsync());
 			}
 		});
 		this.add(pauseButton);
 
 		this.addSeparator();
 
+		backButton = new JButton("Back 5s");
+		backButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				reportFailure(main.getSession().seekBackAsync(SEEK_BACK_MILLIS));
+			}
+		});
+		this.add(backButton);
+
+		reverseButton = new JButton("Reverse");
+		reverseButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				reportFailure(main.getSession().playBackwardAsync());
+			}
+		});
+		this.add(reverseButton);
+
+		stepBackButton = new JButton("Step back");
+		stepBackButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				reportFailure(main.getSession().stepBackAsync());
+			}
+		});
+		this.add(stepBackButton);
+
+		stepForwardButton = new JButton("Step forward");
+		stepForwardButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				reportFailure(main.getSession().stepForwardAsync());
+			}
+		});
+		this.add(stepForwardButton);
+
+		this.addSeparator();
+
 		closeButton = new JButton("Close");
 		closeButton.addActionListener(new ActionListener() {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				try {
-					main.getSession().close();
-				} catch (RTSPException ex) {
-					JOptionPane.showMessageDialog(main, ex.getMessage());
-				}
+				reportFailure(main.getSession().closeAsync());
 			}
 		});
 		this.add(closeButton);
@@ -110,4 +142,21 @@ public class VideoControlToolbar extends JToolBar {
 		});
 		this.add(disconnectButton);
 	}
+
+	// shows the error of a request once it's answered, the buttons never wait for the server
+	private void reportFailure(CompletableFuture<Void> request) {
+		request.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				if (failure == null) return;
+				final RTSPException exception = RTSPException.unwrap(failure);
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						main.exceptionThrown(exception);
+					}
+				});
+			}
+		});
+	}
 }
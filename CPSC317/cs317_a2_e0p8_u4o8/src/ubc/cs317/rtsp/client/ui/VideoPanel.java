@@ -0,0 +1,142 @@
+package ubc.cs317.rtsp.client.ui;
+
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A surface that draws video frames with active rendering. Frames are drawn
+ * with Graphics2D into the back buffer of a BufferStrategy (usually a
+ * VolatileImage kept in video memory) and flipped to the screen from a render
+ * thread, instead of going through a new ImageIcon and the EDT for every
+ * frame. Requests to show frames are coalesced: if frames arrive faster than
+ * the display refreshes, only the latest one is drawn.
+ */
+public class VideoPanel extends Canvas {
+	private static final int DEFAULT_REFRESH_RATE = 60;
+
+	private final ScheduledExecutorService renderer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "video-render");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final Runnable renderTask = new Runnable() {
+		@Override
+		public void run() {
+			renderPending.set(false);
+			render();
+		}
+	};
+	private final AtomicBoolean renderPending = new AtomicBoolean();
+	private final long refreshIntervalNanos;
+
+	private final Object imageLock = new Object();
+	private Image image; // guarded by imageLock, held while drawing it
+	private volatile long lastRenderNanos;
+
+	public VideoPanel() {
+		setBackground(Color.BLACK);
+		setIgnoreRepaint(true); // we draw ourselves, exposes are handled in paint
+		refreshIntervalNanos = TimeUnit.SECONDS.toNanos(1) / refreshRate();
+	}
+
+	/**
+	 * Shows an image, scaled to fit the panel. May be called from any thread.
+	 * Once it returns, the image shown before isn't drawn anymore, so it can
+	 * be reused.
+	 *
+	 * @param image
+	 *            The image to show, or null to clear the panel.
+	 */
+	public void showImage(Image image) {
+		synchronized (imageLock) {
+			this.image = image;
+		}
+		requestRender();
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		createBufferStrategy(2);
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		requestRender(); // exposed or resized, draw the current image again
+	}
+
+	@Override
+	public void update(Graphics g) {
+		paint(g);
+	}
+
+	// schedules a render, unless one is already pending which will pick up the latest image
+	private void requestRender() {
+		if (!renderPending.compareAndSet(false, true)) return;
+		long delay = lastRenderNanos + refreshIntervalNanos - System.nanoTime();
+		renderer.schedule(renderTask, Math.max(0, delay), TimeUnit.NANOSECONDS);
+	}
+
+	private void render() {
+		BufferStrategy strategy = getBufferStrategy();
+		if (strategy == null || !isDisplayable()) return;
+		lastRenderNanos = System.nanoTime();
+		synchronized (imageLock) {
+			do {
+				do {
+					Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+					try {
+						draw(g, image);
+					}
+					finally {
+						g.dispose();
+					}
+				} while (strategy.contentsRestored());
+				strategy.show();
+			} while (strategy.contentsLost());
+		}
+		Toolkit.getDefaultToolkit().sync();
+	}
+
+	private void draw(Graphics2D g, Image current) {
+		int width = getWidth();
+		int height = getHeight();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, height);
+		if (current == null) return;
+
+		int imageWidth = current.getWidth(null);
+		int imageHeight = current.getHeight(null);
+		if (imageWidth <= 0 || imageHeight <= 0) return;
+
+		// fit and center, frames are usually decoded close to this size already
+		double scale = Math.min((double) width / imageWidth, (double) height / imageHeight);
+		int drawWidth = (int) (imageWidth * scale);
+		int drawHeight = (int) (imageHeight * scale);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(current, (width - drawWidth) / 2, (height - drawHeight) / 2, drawWidth, drawHeight, null);
+	}
+
+	private static int refreshRate() {
+		if (GraphicsEnvironment.isHeadless()) return DEFAULT_REFRESH_RATE;
+		int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+				.getDisplayMode().getRefreshRate();
+		return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+	}
+}
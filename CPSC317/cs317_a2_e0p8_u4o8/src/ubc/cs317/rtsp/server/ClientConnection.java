@@ -0,0 +1,218 @@
+package ubc.cs317.rtsp.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the RTSP requests of one client connection, in the dialect of the
+ * course server: SETUP, PLAY, PAUSE and TEARDOWN, one video at a time, with
+ * lines ended by a single newline. The RTP packets are sent by an
+ * RTPStreamer, to the UDP port of the client or, if the client asks for
+ * RTP/AVP/TCP, interleaved with the responses on this connection.
+ */
+class ClientConnection implements Runnable {
+	private static final int INIT = 0;
+	private static final int READY = 1;
+	private static final int PLAYING = 2;
+	private static final int MAXIMUM_INTERLEAVED_LENGTH = 0xffff;
+
+	private final StandInServer server;
+	private final Socket socket;
+	private OutputStream out; // responses and interleaved packets, written under its lock
+
+	private int status = INIT;
+	private String videoName;
+	private String sessionNo;
+	private RTPStreamer streamer;
+
+	ClientConnection(StandInServer server, Socket socket) {
+		this.server = server;
+		this.socket = socket;
+	}
+
+	@Override
+	public void run() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			out = new BufferedOutputStream(socket.getOutputStream());
+			String requestLine;
+			while ((requestLine = in.readLine()) != null) {
+				if (requestLine.isEmpty()) continue;
+				Map<String, String> headers = new HashMap<String, String>();
+				String headerLine;
+				while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+					String[] header = headerLine.split(":", 2);
+					if (header.length == 2) headers.put(header[0].trim().toUpperCase(), header[1].trim());
+				}
+				handleRequest(requestLine, headers);
+			}
+		}
+		catch (IOException e) {} // client went away
+		finally {
+			if (streamer != null) server.closeStreamer(streamer);
+			try {
+				socket.close();
+			}
+			catch (IOException e) {} // swallow
+		}
+	}
+
+	private void handleRequest(String requestLine, Map<String, String> headers) throws IOException {
+		String[] request = requestLine.split(" ");
+		String cseq = headers.get("CSEQ");
+		if (request.length != 3 || cseq == null) {
+			respond(400, "Bad Request", cseq);
+			return;
+		}
+		String method = request[0].toUpperCase();
+		if (!method.equals("SETUP") && (sessionNo == null || !sessionNo.equals(headers.get("SESSION")))) {
+			respond(454, "Session Not Found", cseq);
+			return;
+		}
+
+		switch (method) {
+		case "SETUP":
+			setup(request[1], headers.get("TRANSPORT"), cseq);
+			break;
+		case "PLAY":
+			if (status == INIT) {
+				respond(455, "Method Not Valid In This State", cseq);
+				break;
+			}
+			streamer.play();
+			status = PLAYING;
+			respond(200, "OK", cseq);
+			break;
+		case "PAUSE":
+			if (status == INIT) {
+				respond(455, "Method Not Valid In This State", cseq);
+				break;
+			}
+			streamer.pause();
+			status = READY;
+			respond(200, "OK", cseq);
+			break;
+		case "TEARDOWN":
+			if (streamer != null) server.closeStreamer(streamer);
+			streamer = null;
+			sessionNo = null;
+			videoName = null;
+			status = INIT;
+			respond(200, "OK", cseq);
+			break;
+		default:
+			respond(501, "Not Implemented", cseq);
+		}
+	}
+
+	private void setup(String name, String transport, String cseq) throws IOException {
+		if (status != INIT) {
+			respond(455, "Method Not Valid In This State", cseq);
+			return;
+		}
+		int channel = -1;
+		int clientPort = -1;
+		if (transport != null && transport.toUpperCase().startsWith("RTP/AVP/TCP"))
+			channel = Math.max(0, parseParameter(transport, "interleaved"));
+		else
+			clientPort = parseParameter(transport, "client_port");
+		if (channel < 0 && clientPort <= 0) {
+			respond(400, "Bad Request", cseq);
+			return;
+		}
+		Video video = server.getVideo(name);
+		if (video == null) {
+			respond(404, "Not Found", cseq);
+			return;
+		}
+		videoName = name;
+		sessionNo = server.nextSessionNumber();
+		status = READY;
+		if (channel >= 0) {
+			streamer = server.createStreamer(video, interleavedSink(channel));
+			respond(200, "OK", cseq, "RTP/AVP/TCP;interleaved=" + channel + "-" + (channel + 1));
+		}
+		else {
+			streamer = server.createStreamer(video,
+					server.datagramSink(new InetSocketAddress(socket.getInetAddress(), clientPort)));
+			respond(200, "OK", cseq);
+		}
+	}
+
+	// sends the packets of a stream on this connection, each one after a '$', the channel and its length
+	private PacketSink interleavedSink(final int channel) {
+		return new PacketSink() {
+			@Override
+			public void send(byte[] packet) {
+				send(packet, channel);
+			}
+
+			@Override
+			public void sendControl(byte[] packet) {
+				send(packet, channel + 1);
+			}
+
+			private void send(byte[] packet, int channel) {
+				if (packet.length > MAXIMUM_INTERLEAVED_LENGTH) return;
+				byte[] header = { '$', (byte) channel, (byte) (packet.length >> 8), (byte) packet.length };
+				try {
+					synchronized (out) {
+						out.write(header);
+						out.write(packet);
+						out.flush();
+					}
+				}
+				catch (IOException e) {} // the connection is going away
+			}
+
+			@Override
+			public boolean isReliable() {
+				return true;
+			}
+		};
+	}
+
+	// Transport: RTP/UDP; client_port= 1234; or RTP/AVP/TCP;interleaved=0-1, the first number of the parameter
+	private static int parseParameter(String transport, String name) {
+		if (transport == null) return -1;
+		for (String parameter : transport.split(";")) {
+			String[] pair = parameter.split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase(name)) {
+				try {
+					return Integer.parseInt(pair[1].trim().split("-")[0]);
+				}
+				catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void respond(int code, String message, String cseq) throws IOException {
+		respond(code, message, cseq, null);
+	}
+
+	// the Transport header is only given in the response to SETUP of interleaved streams
+	private void respond(int code, String message, String cseq, String transport) throws IOException {
+		StringBuilder response = new StringBuilder();
+		response.append("RTSP/1.0 ").append(code).append(' ').append(message).append('\n');
+		if (cseq != null) response.append("CSeq: ").append(cseq).append('\n');
+		if (sessionNo != null) response.append("Session: ").append(sessionNo).append('\n');
+		if (transport != null) response.append("Transport: ").append(transport).append('\n');
+		response.append('\n');
+		synchronized (out) {
+			out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+		server.log(socket.getRemoteSocketAddress() + " " + code + " " + (videoName == null ? "" : videoName));
+	}
+}
@@ -0,0 +1,108 @@
+package ubc.cs317.rtsp.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what happens to each RTP packet the server sends, to imitate a bad
+ * network or a bad sender: random loss, reordering, jitter, periodic bursts
+ * where packets are held back and then sent all at once, and a sender clock
+ * running faster or slower than real time. Decisions come from a seeded
+ * random generator, so a run with the same seed is the same every time.
+ *
+ * An injector is shared by every session of the server and can be used from
+ * any thread.
+ */
+public class FaultInjector {
+	private final double lossRate;
+	private final double reorderRate;
+	private final long reorderDelayNanos;
+	private final long jitterNanos;
+	private final long burstPeriodNanos;
+	private final long burstDelayNanos;
+	private final double driftPpm;
+	private final Random random;
+
+	/**
+	 * Creates an injector.
+	 *
+	 * @param lossRate
+	 *            The fraction of packets that are not sent.
+	 * @param reorderRate
+	 *            The fraction of packets that are held back behind later
+	 *            packets.
+	 * @param reorderDelayMillis
+	 *            How long a reordered packet is held back.
+	 * @param jitterMillis
+	 *            Every packet is delayed by a random time up to this.
+	 * @param burstPeriodMillis
+	 *            How often packets are held back for a burst, or 0 for no
+	 *            bursts.
+	 * @param burstDelayMillis
+	 *            How long packets are held back at the start of every burst
+	 *            period.
+	 * @param driftPpm
+	 *            How much faster than real time (or slower, if negative) the
+	 *            sender's clock runs, in parts per million.
+	 * @param seed
+	 *            The seed of the random decisions.
+	 */
+	public FaultInjector(double lossRate, double reorderRate, long reorderDelayMillis, long jitterMillis,
+			long burstPeriodMillis, long burstDelayMillis, double driftPpm, long seed) {
+		this.lossRate = lossRate;
+		this.reorderRate = reorderRate;
+		this.reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(reorderDelayMillis);
+		this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+		this.burstPeriodNanos = TimeUnit.MILLISECONDS.toNanos(burstPeriodMillis);
+		this.burstDelayNanos = TimeUnit.MILLISECONDS.toNanos(burstDelayMillis);
+		this.driftPpm = driftPpm;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Returns true if the next packet should be dropped.
+	 */
+	public synchronized boolean drop() {
+		return lossRate > 0 && random.nextDouble() < lossRate;
+	}
+
+	/**
+	 * Returns how long the sending of a packet should be delayed.
+	 *
+	 * @param streamNanos
+	 *            The time the packet is due at, relative to the start of the
+	 *            stream.
+	 */
+	public synchronized long delayNanos(long streamNanos) {
+		long delay = 0;
+		if (jitterNanos > 0) delay += (long) (random.nextDouble() * jitterNanos);
+		if (reorderRate > 0 && random.nextDouble() < reorderRate) delay += reorderDelayNanos;
+		if (burstPeriodNanos > 0) {
+			long intoPeriod = streamNanos % burstPeriodNanos;
+			if (intoPeriod < burstDelayNanos) delay += burstDelayNanos - intoPeriod;
+		}
+		return delay;
+	}
+
+	/**
+	 * Converts a duration on the sender's clock into real time.
+	 */
+	public long realNanos(long senderNanos) {
+		return (long) (senderNanos / (1 + driftPpm / 1e6));
+	}
+
+	/**
+	 * Converts a duration in real time into the sender's clock.
+	 */
+	public long senderNanos(long realNanos) {
+		return (long) (realNanos * (1 + driftPpm / 1e6));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("loss %.1f%%, reorder %.1f%% by %dms, jitter %dms, burst %dms every %dms, drift %.0fppm",
+				lossRate * 100, reorderRate * 100, TimeUnit.NANOSECONDS.toMillis(reorderDelayNanos),
+				TimeUnit.NANOSECONDS.toMillis(jitterNanos), TimeUnit.NANOSECONDS.toMillis(burstDelayNanos),
+				TimeUnit.NANOSECONDS.toMillis(burstPeriodNanos), driftPpm);
+	}
+}
@@ -0,0 +1,106 @@
+package ubc.cs317.rtsp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Reads the RTCP packets clients send to the server and answers the generic
+ * NACKs (RFC 4585, transport layer feedback with FMT 1) among them: every
+ * packet listed, by its PID and the bitmask of the following ones, is sent
+ * again by the streamer of the media SSRC. The report blocks of receiver
+ * reports about our streams are logged, with the round trip computed from
+ * the LSR and DLSR fields. Other RTCP packets are skipped.
+ */
+class FeedbackReceiver implements Runnable {
+	private static final int MAXIMUM_PACKET_SIZE = 1500;
+	private static final int RTP_VERSION = 2;
+	private static final int RECEIVER_REPORT = 201;
+	private static final int TRANSPORT_FEEDBACK = 205;
+	private static final int GENERIC_NACK = 1;
+	private static final int REPORT_BLOCK_LENGTH = 24;
+	private static final long NTP_EPOCH_OFFSET_SECONDS = 2208988800L; // from 1900 to 1970
+
+	private final StandInServer server;
+	private final DatagramSocket socket;
+
+	FeedbackReceiver(StandInServer server, DatagramSocket socket) {
+		this.server = server;
+		this.socket = socket;
+	}
+
+	@Override
+	public void run() {
+		byte[] data = new byte[MAXIMUM_PACKET_SIZE];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		try {
+			while (true) {
+				packet.setLength(data.length);
+				socket.receive(packet);
+				packetReceived(data, packet.getLength());
+			}
+		}
+		catch (IOException e) {} // socket closed
+	}
+
+	// walks through the packets of a compound RTCP packet
+	private void packetReceived(byte[] data, int length) {
+		int offset = 0;
+		while (offset + 4 <= length) {
+			if ((data[offset] & 0xff) >> 6 != RTP_VERSION) return;
+			int format = data[offset] & 0x1f;
+			int type = data[offset + 1] & 0xff;
+			int end = offset + 4 + 4 * readShort(data, offset + 2);
+			if (end > length) return;
+			if (type == TRANSPORT_FEEDBACK && format == GENERIC_NACK && end - offset >= 12)
+				nackReceived(readInt(data, offset + 8), data, offset + 12, end);
+			else if (type == RECEIVER_REPORT)
+				for (int i = 0, block = offset + 8; i < format && block + REPORT_BLOCK_LENGTH <= end;
+						i++, block += REPORT_BLOCK_LENGTH)
+					reportReceived(data, block);
+			offset = end;
+		}
+	}
+
+	// each entry is the PID and the BLP: bit i asks for packet PID + i + 1 as well
+	private void nackReceived(int mediaSsrc, byte[] data, int offset, int end) {
+		RTPStreamer streamer = server.getStreamer(mediaSsrc);
+		if (streamer == null) return;
+		for (; offset + 4 <= end; offset += 4) {
+			int pid = readShort(data, offset);
+			int blp = readShort(data, offset + 2);
+			streamer.retransmit(pid);
+			for (int i = 0; i < 16; i++) {
+				if ((blp & (1 << i)) != 0) streamer.retransmit((pid + i + 1) & 0xffff);
+			}
+		}
+	}
+
+	// SSRC, fraction lost (8 bits) and cumulative lost (24 bits), highest sequence number, jitter, LSR and DLSR
+	private void reportReceived(byte[] data, int offset) {
+		int ssrc = readInt(data, offset);
+		if (server.getStreamer(ssrc) == null) return;
+		int fractionLost = data[offset + 4] & 0xff;
+		int cumulativeLost = readInt(data, offset + 4) << 8 >> 8;
+		long jitter = readInt(data, offset + 12) & 0xffffffffL;
+		int lastSenderReport = readInt(data, offset + 16);
+		int delay = readInt(data, offset + 20);
+		String roundTrip = "unknown";
+		if (lastSenderReport != 0) {
+			// both in 1/65536 seconds, the middle 32 bits of NTP timestamps
+			long millis = System.currentTimeMillis();
+			int now = (int) ((millis / 1000 + NTP_EPOCH_OFFSET_SECONDS) << 16 | ((millis % 1000) << 16) / 1000);
+			roundTrip = ((now - lastSenderReport - delay) & 0xffffffffL) * 1000 / 65536 + "ms";
+		}
+		server.log(String.format("report on %08x: %.1f%% lost (%d in total), jitter %dms, round trip %s", ssrc,
+				fractionLost * 100 / 256.0, cumulativeLost, jitter, roundTrip));
+	}
+
+	private static int readShort(byte[] data, int offset) {
+		return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return readShort(data, offset) << 16 | readShort(data, offset + 2);
+	}
+}
@@ -0,0 +1,24 @@
+package ubc.cs317.rtsp.server;
+
+/**
+ * Where an RTPStreamer sends its packets: a UDP port of the client, or the
+ * client's RTSP connection for interleaved streams.
+ */
+interface PacketSink {
+
+	/**
+	 * Sends a packet, or loses it quietly if it can't be sent.
+	 */
+	void send(byte[] packet);
+
+	/**
+	 * Sends an RTCP packet, to the RTCP port (or channel) of the client.
+	 */
+	void sendControl(byte[] packet);
+
+	/**
+	 * Returns true if the sink delivers every packet in order (TCP), in which
+	 * case only the clock drift applies to it, not the network faults.
+	 */
+	boolean isReliable();
+}
@@ -0,0 +1,206 @@
+package ubc.cs317.rtsp.server;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the frames of a video to a client as RTP packets, one frame per
+ * packet, on the schedule of the sender's clock, with the faults chosen by a
+ * FaultInjector. Packets use payload type 26 (JPEG) and carry timestamps in
+ * milliseconds, like the course server. Lost packets still use up their
+ * sequence number, so the client sees the loss. Packets interleaved on the
+ * RTSP connection are neither lost nor delayed, TCP takes care of that.
+ *
+ * A sender report (RFC 3550 section 6.4.1) follows a packet every
+ * REPORT_INTERVAL_NS or so, randomized as the RFC wants, with the wall clock
+ * time and the RTP timestamp of the sender's (drifting) clock at that time.
+ * Reports are not subject to the faults.
+ *
+ * Packets asked for again are sent again as they were, if they are among the
+ * last RETRANSMIT_HISTORY sent, and go through the same loss as the others.
+ *
+ * One task per streamer is pending on the shared executor while playing;
+ * delayed packets are sent by tasks of their own, so they overtake nothing
+ * but are overtaken by later packets.
+ */
+class RTPStreamer {
+	private static final int RTP_VERSION = 2;
+	private static final int PAYLOAD_TYPE = 26;
+	private static final int HEADER_LENGTH = 12;
+	private static final int RETRANSMIT_HISTORY = 1024;
+	private static final int SENDER_REPORT = 200;
+	private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+	private static final long NTP_EPOCH_OFFSET_SECONDS = 2208988800L; // from 1900 to 1970
+
+	private final Video video;
+	private final PacketSink sink;
+	private final ScheduledExecutorService executor;
+	private final FaultInjector faults;
+	private final long frameIntervalNanos;
+	private final int frameIntervalMillis;
+	private final int ssrc;
+	private final int firstSequence;
+	private final int firstTimestamp;
+	private final Runnable sendTask = new Runnable() {
+		@Override
+		public void run() {
+			sendNextFrame();
+		}
+	};
+
+	// guarded by this
+	private boolean playing;
+	private int nextFrame;
+	private int anchorFrame;
+	private long anchorNanos;
+	private long streamStartNanos;
+	private Future<?> pendingTask;
+	private long nextReportNanos;
+	private int packetCount;
+	private int octetCount; // of payload
+
+	/**
+	 * Creates a stopped streamer.
+	 *
+	 * @param frameIntervalMillis
+	 *            The time between two frames, on the sender's clock.
+	 * @param random
+	 *            Used to pick the SSRC and the initial sequence number and
+	 *            timestamp.
+	 */
+	RTPStreamer(Video video, PacketSink sink, ScheduledExecutorService executor, FaultInjector faults,
+			int frameIntervalMillis, Random random) {
+		this.video = video;
+		this.sink = sink;
+		this.executor = executor;
+		this.faults = faults;
+		this.frameIntervalMillis = frameIntervalMillis;
+		this.frameIntervalNanos = TimeUnit.MILLISECONDS.toNanos(frameIntervalMillis);
+		this.ssrc = random.nextInt();
+		this.firstSequence = random.nextInt(1 << 16);
+		this.firstTimestamp = random.nextInt();
+	}
+
+	/**
+	 * Starts (or resumes) sending frames where the stream stopped.
+	 */
+	synchronized void play() {
+		if (playing) return;
+		playing = true;
+		anchorNanos = System.nanoTime();
+		anchorFrame = nextFrame;
+		if (nextFrame == 0) streamStartNanos = anchorNanos;
+		pendingTask = executor.schedule(sendTask, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops sending frames. Packets already held back by the faults are still
+	 * sent.
+	 */
+	synchronized void pause() {
+		playing = false;
+		if (pendingTask != null) pendingTask.cancel(false);
+		pendingTask = null;
+	}
+
+	int getSsrc() {
+		return ssrc;
+	}
+
+	/**
+	 * Sends again the packet with the given (16-bit) sequence number, unless
+	 * it hasn't been sent yet or was sent too long ago.
+	 */
+	synchronized void retransmit(int sequenceNumber) {
+		// how many packets before the next one, the sequence number wraps around
+		int back = (firstSequence + nextFrame - sequenceNumber) & 0xffff;
+		if (back == 0 || back > RETRANSMIT_HISTORY || back > nextFrame) return;
+		if (!sink.isReliable() && faults.drop()) return;
+		sink.send(buildPacket(nextFrame - back));
+	}
+
+	private synchronized void sendNextFrame() {
+		if (!playing) return;
+		if (nextFrame >= video.getFrameCount()) {
+			playing = false;
+			return;
+		}
+
+		long due = dueNanos(nextFrame);
+		packetCount++;
+		octetCount += video.getFrame(nextFrame).length;
+		if (sink.isReliable()) {
+			sink.send(buildPacket(nextFrame));
+		}
+		else if (!faults.drop()) {
+			final byte[] packet = buildPacket(nextFrame);
+			long delay = faults.delayNanos(due - streamStartNanos);
+			if (delay == 0) {
+				sink.send(packet);
+			}
+			else {
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						sink.send(packet);
+					}
+				}, delay, TimeUnit.NANOSECONDS);
+			}
+		}
+		long now = System.nanoTime();
+		if (nextFrame == 0 || now >= nextReportNanos) {
+			sink.sendControl(buildSenderReport(now));
+			nextReportNanos = now + (long) (REPORT_INTERVAL_NS * ThreadLocalRandom.current().nextDouble(0.5, 1.5));
+		}
+		nextFrame++;
+		pendingTask = executor.schedule(sendTask, dueNanos(nextFrame) - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	// the real time a frame is sent at, the sender's clock drifts from it
+	private long dueNanos(int frame) {
+		return anchorNanos + faults.realNanos((frame - anchorFrame) * frameIntervalNanos);
+	}
+
+	// the RTP timestamp now, on the sender's clock, with the wall clock time as NTP
+	private byte[] buildSenderReport(long now) {
+		long millis = System.currentTimeMillis();
+		long ntp = (millis / 1000 + NTP_EPOCH_OFFSET_SECONDS) << 32 | ((millis % 1000) << 32) / 1000;
+		long senderMillis = TimeUnit.NANOSECONDS.toMillis(faults.senderNanos(now - anchorNanos));
+		int timestamp = (int) (firstTimestamp + (long) anchorFrame * frameIntervalMillis + senderMillis);
+		ByteBuffer report = ByteBuffer.allocate(28);
+		report.put((byte) (RTP_VERSION << 6)); // no report blocks, the sender receives nothing
+		report.put((byte) SENDER_REPORT);
+		report.putShort((short) 6);
+		report.putInt(ssrc);
+		report.putLong(ntp);
+		report.putInt(timestamp);
+		report.putInt(packetCount);
+		report.putInt(octetCount);
+		return report.array();
+	}
+
+	private byte[] buildPacket(int frame) {
+		byte[] payload = video.getFrame(frame);
+		byte[] packet = new byte[HEADER_LENGTH + payload.length];
+		int sequence = firstSequence + frame;
+		int timestamp = firstTimestamp + frame * frameIntervalMillis;
+		packet[0] = (byte) (RTP_VERSION << 6);
+		packet[1] = (byte) (0x80 | PAYLOAD_TYPE); // marker, every packet is a whole frame
+		packet[2] = (byte) (sequence >> 8);
+		packet[3] = (byte) sequence;
+		packet[4] = (byte) (timestamp >> 24);
+		packet[5] = (byte) (timestamp >> 16);
+		packet[6] = (byte) (timestamp >> 8);
+		packet[7] = (byte) timestamp;
+		packet[8] = (byte) (ssrc >> 24);
+		packet[9] = (byte) (ssrc >> 16);
+		packet[10] = (byte) (ssrc >> 8);
+		packet[11] = (byte) ssrc;
+		System.arraycopy(payload, 0, packet, HEADER_LENGTH, payload.length);
+		return packet;
+	}
+}
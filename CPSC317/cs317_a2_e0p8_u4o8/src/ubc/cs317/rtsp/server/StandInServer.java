@@ -0,0 +1,266 @@
+package ubc.cs317.rtsp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the course RTSP server, so the client can be run,
+ * benchmarked and compared between versions without network access. It
+ * speaks the same dialect as the course server (plus RTP/AVP/TCP, RTP
+ * interleaved on the RTSP connection) and streams MJPEG files from
+ * a directory, or a generated video named <code>synthetic.Mjpeg</code>, with
+ * faults that imitate the "funky" servers: loss, reordering, jitter, bursts
+ * and clock drift. All faults come from a seeded random generator, so runs
+ * are reproducible. Packets asked for again in RTCP generic NACKs, sent to
+ * the port after the RTP one, are sent again (with the same faults). Sender
+ * reports go out every few seconds, and the receiver reports of clients are
+ * logged.
+ *
+ * Usage: <code>StandInServer [options]</code>, where the options are
+ * <pre>
+ *   -port N            RTSP port (default 5554)
+ *   -dir PATH          directory of the MJPEG files (default .)
+ *   -interval MS       time between frames (default 40)
+ *   -loss RATE         fraction of packets lost (default 0)
+ *   -reorder RATE      fraction of packets reordered (default 0)
+ *   -reorder-delay MS  how long reordered packets are held back (default 100)
+ *   -jitter MS         random delay of every packet up to MS (default 0)
+ *   -burst-period MS   hold packets back every MS (default 0, no bursts)
+ *   -burst-delay MS    how long packets are held back (default 500)
+ *   -drift PPM         sender clock speed error (default 0)
+ *   -seed N            seed of the random faults (default 317)
+ *   -quiet             don't log requests
+ * </pre>
+ */
+public class StandInServer {
+	private static final int SENDER_THREADS = 2;
+	private static final int PORT_PAIR_ATTEMPTS = 100;
+
+	private final int port;
+	private final File directory;
+	private final int frameIntervalMillis;
+	private final FaultInjector faults;
+	private final Random random;
+	private final boolean quiet;
+
+	private final Map<String, Video> videos = new HashMap<String, Video>();
+	private final Map<Integer, RTPStreamer> streamers = new ConcurrentHashMap<Integer, RTPStreamer>(); // by SSRC
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private final ExecutorService connections = Executors.newCachedThreadPool(daemonThreads("rtsp-connection"));
+	private final ScheduledExecutorService senders = Executors.newScheduledThreadPool(SENDER_THREADS,
+			daemonThreads("rtp-sender"));
+	private DatagramSocket rtpSocket;
+	private DatagramSocket rtcpSocket;
+
+	/**
+	 * Creates a server. Nothing is opened until <code>run</code> is called.
+	 *
+	 * @param port
+	 *            The TCP port RTSP requests are accepted on.
+	 * @param directory
+	 *            The directory videos are read from.
+	 * @param frameIntervalMillis
+	 *            The time between two frames of every video.
+	 * @param faults
+	 *            The faults applied to every packet sent.
+	 * @param seed
+	 *            The seed of the session numbers, SSRCs and initial sequence
+	 *            numbers and timestamps.
+	 * @param quiet
+	 *            Whether requests are not logged.
+	 */
+	public StandInServer(int port, File directory, int frameIntervalMillis, FaultInjector faults, long seed,
+			boolean quiet) {
+		this.port = port;
+		this.directory = directory;
+		this.frameIntervalMillis = frameIntervalMillis;
+		this.faults = faults;
+		this.random = new Random(seed);
+		this.quiet = quiet;
+	}
+
+	/**
+	 * Accepts connections until the process is killed.
+	 */
+	public void run() throws IOException {
+		openPortPair();
+		connections.execute(new FeedbackReceiver(this, rtcpSocket));
+		ServerSocket serverSocket = new ServerSocket(port);
+		try {
+			log("listening on port " + serverSocket.getLocalPort() + ", RTP from " + rtpSocket.getLocalPort()
+					+ ", " + faults);
+			while (true) {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.execute(new ClientConnection(this, socket));
+			}
+		}
+		finally {
+			serverSocket.close();
+			rtpSocket.close();
+			rtcpSocket.close();
+		}
+	}
+
+	// RTP from an even port and RTCP on the next one, where clients send their feedback
+	private void openPortPair() throws SocketException {
+		for (int i = 0; i < PORT_PAIR_ATTEMPTS; i++) {
+			DatagramSocket socket = new DatagramSocket();
+			if (socket.getLocalPort() % 2 == 0 && socket.getLocalPort() < 0xffff) {
+				try {
+					rtcpSocket = new DatagramSocket(socket.getLocalPort() + 1);
+					rtpSocket = socket;
+					return;
+				}
+				catch (SocketException e) {} // taken, try another one
+			}
+			socket.close();
+		}
+		throw new SocketException("No pair of UDP ports available.");
+	}
+
+	/**
+	 * Returns a video, read from the directory the first time, or null if
+	 * there is no such video.
+	 */
+	synchronized Video getVideo(String name) {
+		Video video = videos.get(name);
+		if (video != null) return video;
+		try {
+			File file = new File(directory, name);
+			if (file.isFile()) video = Video.read(file);
+			else if (name.equals(Video.SYNTHETIC_NAME)) video = Video.synthetic();
+			else return null;
+		}
+		catch (IOException e) {
+			log("unable to read " + name + ": " + e.getMessage());
+			return null;
+		}
+		videos.put(name, video);
+		return video;
+	}
+
+	synchronized String nextSessionNumber() {
+		return Integer.toString(sessionCount.incrementAndGet() * 1000 + random.nextInt(1000));
+	}
+
+	synchronized RTPStreamer createStreamer(Video video, PacketSink sink) {
+		RTPStreamer streamer = new RTPStreamer(video, sink, senders, faults, frameIntervalMillis, random);
+		streamers.put(streamer.getSsrc(), streamer);
+		return streamer;
+	}
+
+	// stops a stream for good, its packets can't be asked for anymore
+	void closeStreamer(RTPStreamer streamer) {
+		streamer.pause();
+		streamers.remove(streamer.getSsrc(), streamer);
+	}
+
+	/**
+	 * Returns the streamer sending with the given SSRC, or null if there is
+	 * none.
+	 */
+	RTPStreamer getStreamer(int ssrc) {
+		return streamers.get(ssrc);
+	}
+
+	// sends the packets of a stream to a UDP port of the client, and RTCP to the next port
+	PacketSink datagramSink(final InetSocketAddress client) {
+		return new PacketSink() {
+			@Override
+			public void send(byte[] packet) {
+				send(rtpSocket, packet, client.getPort());
+			}
+
+			@Override
+			public void sendControl(byte[] packet) {
+				send(rtcpSocket, packet, client.getPort() + 1);
+			}
+
+			private void send(DatagramSocket socket, byte[] packet, int port) {
+				try {
+					socket.send(new DatagramPacket(packet, packet.length, client.getAddress(), port));
+				}
+				catch (IOException e) {} // like the network would, just lose it
+			}
+
+			@Override
+			public boolean isReliable() {
+				return false;
+			}
+		};
+	}
+
+	void log(String message) {
+		if (!quiet) System.out.println(message);
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 5554;
+		File directory = new File(".");
+		int interval = 40;
+		double loss = 0;
+		double reorder = 0;
+		long reorderDelay = 100;
+		long jitter = 0;
+		long burstPeriod = 0;
+		long burstDelay = 500;
+		double drift = 0;
+		long seed = 317;
+		boolean quiet = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-port": port = Integer.parseInt(args[++i]); break;
+				case "-dir": directory = new File(args[++i]); break;
+				case "-interval": interval = Integer.parseInt(args[++i]); break;
+				case "-loss": loss = Double.parseDouble(args[++i]); break;
+				case "-reorder": reorder = Double.parseDouble(args[++i]); break;
+				case "-reorder-delay": reorderDelay = Long.parseLong(args[++i]); break;
+				case "-jitter": jitter = Long.parseLong(args[++i]); break;
+				case "-burst-period": burstPeriod = Long.parseLong(args[++i]); break;
+				case "-burst-delay": burstDelay = Long.parseLong(args[++i]); break;
+				case "-drift": drift = Double.parseDouble(args[++i]); break;
+				case "-seed": seed = Long.parseLong(args[++i]); break;
+				case "-quiet": quiet = true; break;
+				default: throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			System.err.println("Invalid argument: " + e.getMessage() + ", see the class documentation for the options.");
+			System.exit(1);
+		}
+		FaultInjector faults = new FaultInjector(loss, reorder, reorderDelay, jitter, burstPeriod, burstDelay,
+				drift, seed);
+		new StandInServer(port, directory, interval, faults, seed, quiet).run();
+	}
+}
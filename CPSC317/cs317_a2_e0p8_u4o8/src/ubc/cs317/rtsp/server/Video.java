@@ -0,0 +1,121 @@
+package ubc.cs317.rtsp.server;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The frames of a video, held in memory. Videos are read from MJPEG files in
+ * the format of the course server: every frame is a JPEG image preceded by
+ * its length as 5 ASCII digits. A synthetic video can also be generated, so
+ * the server can run without any movie file.
+ */
+public class Video {
+	/**
+	 * The name of the video generated instead of being read from a file.
+	 */
+	public static final String SYNTHETIC_NAME = "synthetic.Mjpeg";
+
+	private static final int LENGTH_DIGITS = 5;
+	private static final int SYNTHETIC_FRAMES = 500;
+	private static final int SYNTHETIC_WIDTH = 384;
+	private static final int SYNTHETIC_HEIGHT = 288;
+
+	private final List<byte[]> frames;
+
+	private Video(List<byte[]> frames) {
+		this.frames = Collections.unmodifiableList(frames);
+	}
+
+	/**
+	 * Returns the number of frames of the video.
+	 */
+	public int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * Returns a frame of the video. The array must not be modified.
+	 */
+	public byte[] getFrame(int index) {
+		return frames.get(index);
+	}
+
+	/**
+	 * Reads a video from an MJPEG file.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read or is not in the expected format.
+	 */
+	public static Video read(File file) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] lengthDigits = new byte[LENGTH_DIGITS];
+			while (true) {
+				try {
+					in.readFully(lengthDigits);
+				}
+				catch (EOFException e) {
+					break;
+				}
+				int length;
+				try {
+					length = Integer.parseInt(new String(lengthDigits, "US-ASCII").trim());
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("Invalid frame length in " + file + " at frame " + frames.size());
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				frames.add(frame);
+			}
+		}
+		finally {
+			in.close();
+		}
+		if (frames.isEmpty()) throw new IOException("No frame in " + file);
+		return new Video(frames);
+	}
+
+	/**
+	 * Generates a video showing its frame number over a moving bar, so lost,
+	 * reordered or repeated frames are easy to spot.
+	 */
+	public static Video synthetic() throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>(SYNTHETIC_FRAMES);
+		BufferedImage image = new BufferedImage(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+			Graphics2D g = image.createGraphics();
+			try {
+				g.setColor(Color.DARK_GRAY);
+				g.fillRect(0, 0, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT);
+				g.setColor(Color.ORANGE);
+				g.fillRect(i * 4 % SYNTHETIC_WIDTH, 0, 16, SYNTHETIC_HEIGHT);
+				g.setColor(Color.WHITE);
+				g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 64));
+				g.drawString(String.format("%04d", i), 110, 170);
+			}
+			finally {
+				g.dispose();
+			}
+			out.reset();
+			ImageIO.write(image, "jpeg", out);
+			frames.add(out.toByteArray());
+		}
+		return new Video(frames);
+	}
+}